@@ -0,0 +1,223 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the time and allocation per call of the RLAgent methods on the training hot path.
+ *
+ * Every method is run against a game in progress (see BenchmarkFixture) on the 5v5 and 10v10 maps and on
+ * synthetic 50v50 and 200v200 versions of the 10v10 map. Where the agent caches per-turn work, the cache
+ * is cleared before every call so the numbers include it, except for the "(cached)" cases. For each case
+ * it reports, like JMH with the gc profiler:
+ *
+ * ns/op      average time per call
+ * B/op       bytes allocated per call
+ * MB/sec     allocation rate
+ * gc.count   collections during the measurement
+ *
+ * Usage: AgentBenchmark [seconds per case] [fixture names...]
+ */
+public class AgentBenchmark {
+
+	private static final String SMALL_CONFIG = "data/5fv5fConfig.xml";
+	private static final String LARGE_CONFIG = "data/10fv10fConfig.xml";
+
+	/**
+	 * One benchmarked operation. Calls are made in batches, so an operation can pick its arguments from
+	 * the index of the call.
+	 */
+	private abstract static class Operation {
+
+		final String name;
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		//returns something derived from the result, so the call can't be optimized away
+		abstract double run(BenchmarkFixture fixture, int call);
+	}
+
+	private static final Operation[] OPERATIONS = {
+		new Operation("calculateFeatureVector") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				fixture.agent.invalidateTurnCaches();
+				return fixture.agent.calculateFeatureVector(fixture.stateView, fixture.historyView,
+						footman(fixture, call), enemy(fixture, call))[1];
+			}
+		},
+		new Operation("calculateFeatureVector (cached)") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				return fixture.agent.calculateFeatureVector(fixture.stateView, fixture.historyView,
+						footman(fixture, call), enemy(fixture, call))[1];
+			}
+		},
+		new Operation("calcQValue") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				fixture.agent.invalidateTurnCaches();
+				return fixture.agent.calcQValue(fixture.stateView, fixture.historyView,
+						footman(fixture, call), enemy(fixture, call));
+			}
+		},
+		new Operation("calcQValue (cached)") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				return fixture.agent.calcQValue(fixture.stateView, fixture.historyView,
+						footman(fixture, call), enemy(fixture, call));
+			}
+		},
+		new Operation("selectAction") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				fixture.agent.invalidateTurnCaches();
+				return fixture.agent.selectAction(fixture.stateView, fixture.historyView, footman(fixture, call));
+			}
+		},
+		new Operation("selectAction (cached)") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				return fixture.agent.selectAction(fixture.stateView, fixture.historyView, footman(fixture, call));
+			}
+		},
+		new Operation("updateWeights (cached)") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				RLAgent agent = fixture.agent;
+				int footmanId = footman(fixture, call);
+				double[] features = agent.calculateFeatureVector(fixture.stateView, fixture.historyView,
+						footmanId, enemy(fixture, call));
+				return agent.updateWeights(agent.weights, features, -1, fixture.stateView, fixture.historyView,
+						footmanId)[0];
+			}
+		},
+		new Operation("calculateReward") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				fixture.agent.invalidateTurnCaches();
+				return fixture.agent.calculateReward(fixture.stateView, fixture.historyView, footman(fixture, call));
+			}
+		},
+		new Operation("calculateReward (cached)") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				return fixture.agent.calculateReward(fixture.stateView, fixture.historyView, footman(fixture, call));
+			}
+		},
+		new Operation("middleStep") {
+			@Override
+			double run(BenchmarkFixture fixture, int call) {
+				fixture.agent.invalidateTurnCaches();
+				return fixture.agent.middleStep(fixture.stateView, fixture.historyView).size();
+			}
+		}
+	};
+
+	//the ids of our live footmen and the enemy's in each fixture, indexed by call
+	private static int footman(BenchmarkFixture fixture, int call) {
+		List<Integer> ids = fixture.stateView.getUnitIds(fixture.agent.getPlayerNumber());
+		return ids.get(call % ids.size());
+	}
+
+	private static int enemy(BenchmarkFixture fixture, int call) {
+		List<Integer> ids = fixture.stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM);
+		return ids.get(call % ids.size());
+	}
+
+	public static void main(String[] args) throws IOException {
+		double seconds = args.length >= 1 ? Double.parseDouble(args[0]) : 1;
+		List<String> selected = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			selected.add(args[i]);
+		}
+
+		SepiaExperiment small = SepiaExperiment.load(SMALL_CONFIG);
+		SepiaExperiment large = SepiaExperiment.load(LARGE_CONFIG);
+		List<BenchmarkFixture> fixtures = new ArrayList<>();
+		String[] names = { "5v5", "10v10", "50v50", "200v200" };
+		for (String name : names) {
+			if (!selected.isEmpty() && !selected.contains(name)) {
+				continue;
+			}
+			switch (name) {
+			case "5v5":
+				fixtures.add(BenchmarkFixture.create(small, name, 0));
+				break;
+			case "10v10":
+				fixtures.add(BenchmarkFixture.create(large, name, 0));
+				break;
+			case "50v50":
+				fixtures.add(BenchmarkFixture.create(large, name, 50));
+				break;
+			default:
+				fixtures.add(BenchmarkFixture.create(large, name, 200));
+				break;
+			}
+		}
+
+		System.out.println(String.format("%-8s %-32s %12s %10s %10s %8s", "map", "operation", "ns/op", "B/op",
+				"MB/sec", "gc.count"));
+		for (BenchmarkFixture fixture : fixtures) {
+			for (Operation operation : OPERATIONS) {
+				//warm up so the JIT has compiled the agent before we time it
+				measure(fixture, operation, seconds / 2);
+				Result result = measure(fixture, operation, seconds);
+				System.out.println(String.format("%-8s %-32s %12.1f %10.1f %10.1f %8d", fixture.name,
+						operation.name, result.nanosPerCall, result.bytesPerCall,
+						result.bytesPerCall / result.nanosPerCall * 1e9 / (1 << 20), result.collections));
+			}
+		}
+	}
+
+	private static final class Result {
+		double nanosPerCall;
+		double bytesPerCall;
+		long collections;
+	}
+
+	private static Result measure(BenchmarkFixture fixture, Operation operation, double seconds) {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		long duration = (long) (seconds * 1e9);
+		long calls = 0;
+		double sink = 0;
+		long collections = collectionCount();
+		long allocated = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 100; i++, calls++) {
+				sink += operation.run(fixture, (int) calls);
+			}
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < duration);
+		allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+		//keep the results alive so the calls can't be optimized away
+		if (sink == 42) {
+			System.out.println();
+		}
+
+		Result result = new Result();
+		result.nanosPerCall = (double) elapsed / calls;
+		result.bytesPerCall = (double) allocated / calls;
+		result.collections = collectionCount() - collections;
+		return result;
+	}
+
+	private static long collectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(collector.getCollectionCount(), 0);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,123 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+
+import org.w3c.dom.Document;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A game in progress for the agent benchmarks: the state and history views of our player in the middle of
+ * an episode, and an RLAgent that has played up to that turn.
+ *
+ * The episode is played out in a real SEPIA model, our footmen controlled by the agent and the enemy
+ * attacking the closest footman, until a turn where the agent has to react to damage being dealt. The
+ * views are captured at the start of that turn, before the agent has seen it.
+ */
+final class BenchmarkFixture {
+
+	//most turns to play while looking for a turn with damage
+	private static final int MAX_TURNS = 200;
+
+	final String name;
+	final State.StateView stateView;
+	final History.HistoryView historyView;
+	final RLAgent agent;
+
+	private BenchmarkFixture(String name, State.StateView stateView, History.HistoryView historyView,
+			RLAgent agent) {
+		this.name = name;
+		this.stateView = stateView;
+		this.historyView = historyView;
+		this.agent = agent;
+	}
+
+	/**
+	 * Plays the map of a configuration file up to the first turn with damage.
+	 *
+	 * @param experiment The configuration, e.g. data/5fv5fConfig.xml
+	 * @param name The name to report the fixture under
+	 * @param footmenPerSide If positive, the map's armies are replaced with this many footmen per side
+	 * @return The fixture
+	 * @throws IOException If the map can't be loaded
+	 */
+	static BenchmarkFixture create(SepiaExperiment experiment, String name, int footmenPerSide)
+			throws IOException {
+		Document map = ScenarioGenerator.parse(new File(experiment.getMapFile()));
+		if (footmenPerSide > 0) {
+			ScenarioGenerator.resizeArmies(map, footmenPerSide, 0, 0);
+		}
+		StateCreator stateCreator = new XmlStateCreator(unmarshal(map, experiment.getMapFile()));
+		SimpleModel model = new SimpleModel(stateCreator.createState(), stateCreator,
+				experiment.createConfiguration());
+		model.createNewWorld();
+
+		//learning, so the benchmarks include the weight updates
+		RLAgent agent = new RLAgent(0, new String[] { "1", "false" });
+		agent.freeze = false;
+
+		Map<Integer, Integer> enemyTargets = new HashMap<>();
+		for (int turn = 0; ; turn++) {
+			State.StateView stateView = model.getState().getView(agent.getPlayerNumber());
+			History.HistoryView historyView = model.getHistory().getView(agent.getPlayerNumber());
+			if (turn > 0 && (!historyView.getDamageLogs(turn - 1).isEmpty() || turn == MAX_TURNS)) {
+				return new BenchmarkFixture(name, stateView, historyView, agent);
+			}
+
+			Map<Integer, Action> actions = turn == 0 ? agent.initialStep(stateView, historyView) :
+					agent.middleStep(stateView, historyView);
+			model.addActions(actions, agent.getPlayerNumber());
+			model.addActions(attackClosest(model.getState().getView(RLAgent.ENEMY_PLAYERNUM), enemyTargets),
+					RLAgent.ENEMY_PLAYERNUM);
+			model.executeStep();
+		}
+	}
+
+	//sends every enemy without a live target after the footman closest to it
+	private static Map<Integer, Action> attackClosest(State.StateView stateView, Map<Integer, Integer> targets) {
+		Map<Integer, Action> actions = new HashMap<>();
+		List<Integer> footmen = stateView.getUnitIds(0);
+		for (Integer enemyId : stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM)) {
+			Integer target = targets.get(enemyId);
+			if (target != null && stateView.getUnit(target) != null) {
+				continue;
+			}
+			Unit.UnitView enemy = stateView.getUnit(enemyId);
+			int closest = -1;
+			int closestDistance = Integer.MAX_VALUE;
+			for (Integer footmanId : footmen) {
+				Unit.UnitView footman = stateView.getUnit(footmanId);
+				int distance = Math.max(Math.abs(footman.getXPosition() - enemy.getXPosition()),
+						Math.abs(footman.getYPosition() - enemy.getYPosition()));
+				if (distance < closestDistance) {
+					closest = footmanId;
+					closestDistance = distance;
+				}
+			}
+			if (closest >= 0) {
+				targets.put(enemyId, closest);
+				actions.put(enemyId, Action.createCompoundAttack(enemyId, closest));
+			}
+		}
+		return actions;
+	}
+
+	private static XmlState unmarshal(Document map, String mapFile) throws IOException {
+		try {
+			return (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(map);
+		} catch (JAXBException ex) {
+			throw new IOException("Failed to load map " + mapFile + ". Reason: " + ex, ex);
+		}
+	}
+}
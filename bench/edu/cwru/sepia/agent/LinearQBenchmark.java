@@ -0,0 +1,69 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Random;
+
+/**
+ * Measures the scoring throughput of LinearQKernel, in Q-evaluations per second.
+ *
+ * Every iteration batch-scores all candidate defenders for one attacker, the way action selection and the
+ * max-Q target do. Feature vectors are random, laid out like a FeatureTensor row.
+ *
+ * Usage: LinearQBenchmark [seconds per case]
+ */
+public class LinearQBenchmark {
+
+	private static final int[] NUM_FEATURES = { 5, 8, 16, 32 };
+	private static final int[] NUM_DEFENDERS = { 5, 10, 50, 200 };
+
+	public static void main(String[] args) {
+		double seconds = args.length >= 1 ? Double.parseDouble(args[0]) : 1;
+		Random random = new Random(12345);
+
+		System.out.println("features  defenders   Q-evals/sec");
+		for (int numFeatures : NUM_FEATURES) {
+			for (int numDefenders : NUM_DEFENDERS) {
+				double[] weights = randomArray(random, numFeatures);
+				double[] features = randomArray(random, numFeatures * numDefenders);
+				double[] scores = new double[numDefenders];
+
+				//warm up so the JIT has compiled the kernel before we time it
+				run(weights, features, scores, numDefenders, seconds / 2);
+				double evaluationsPerSecond = run(weights, features, scores, numDefenders, seconds);
+
+				System.out.println(String.format("%8d  %9d  %12.4g", numFeatures, numDefenders,
+						evaluationsPerSecond));
+			}
+		}
+	}
+
+	private static double run(double[] weights, double[] features, double[] scores, int numDefenders,
+			double seconds) {
+		long duration = (long) (seconds * 1e9);
+		long evaluations = 0;
+		double sink = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 1000; i++) {
+				LinearQKernel.scoreAll(weights, features, 0, numDefenders, scores);
+				sink += LinearQKernel.max(scores, numDefenders);
+			}
+			evaluations += 1000L * numDefenders;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < duration);
+
+		//keep the results alive so the scoring can't be optimized away
+		if (sink == 42) {
+			System.out.println();
+		}
+		return evaluations / (elapsed / 1e9);
+	}
+
+	private static double[] randomArray(Random random, int length) {
+		double[] array = new double[length];
+		for (int i = 0; i < length; i++) {
+			array[i] = random.nextDouble() * 2 - 1;
+		}
+		return array;
+	}
+}
@@ -0,0 +1,107 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Random;
+
+/**
+ * Measures how long the Q-function backends take for a whole turn, in microseconds.
+ *
+ * A turn is scored with one batched forward pass over every (footman, enemy) pair, and an event trains on
+ * one choice per footman with one batched backward pass, the way RLAgent uses a QFunction. Feature vectors
+ * are random, laid out like a FeatureTensor. The linear Q-function is LinearQKernel over the same data, for
+ * comparison.
+ *
+ * Usage: QFunctionBenchmark [seconds per case]
+ */
+public class QFunctionBenchmark {
+
+	private static final String[] BACKENDS = { QFunctions.LINEAR, TileCodingQ.KIND, MlpQ.KIND };
+	private static final int[] FOOTMEN_PER_SIDE = { 10, 50, 200 };
+
+	public static void main(String[] args) {
+		double seconds = args.length >= 1 ? Double.parseDouble(args[0]) : 1;
+		Random random = new Random(12345);
+		int numFeatures = FeatureRegistry.DEFAULT.size();
+
+		System.out.println("backend   footmen  forward us/turn  backward us/event");
+		for (String backend : BACKENDS) {
+			for (int footmen : FOOTMEN_PER_SIDE) {
+				AgentOptions options = AgentOptions.parse(new String[] { "q.backend=" + backend });
+				QFunction q = QFunctions.create(options, numFeatures, random);
+				double[] weights = randomArray(random, numFeatures);
+				double[] features = randomArray(random, footmen * footmen * numFeatures);
+				double[] scores = new double[footmen * footmen];
+				int[] offsets = new int[footmen];
+				double[] steps = new double[footmen];
+				for (int a = 0; a < footmen; a++) {
+					offsets[a] = (a * footmen + random.nextInt(footmen)) * numFeatures;
+					steps[a] = (random.nextDouble() * 2 - 1) * 1e-6;
+				}
+
+				//warm up so the JIT has compiled the backend before we time it
+				forward(q, weights, features, scores, seconds / 2);
+				double forward = forward(q, weights, features, scores, seconds);
+				backward(q, weights, features, offsets, steps, seconds / 2);
+				double backward = backward(q, weights, features, offsets, steps, seconds);
+
+				System.out.println(String.format("%-8s  %7d  %15.2f  %17.2f", backend, footmen, forward, backward));
+			}
+		}
+	}
+
+	private static double forward(QFunction q, double[] weights, double[] features, double[] scores,
+			double seconds) {
+		long duration = (long) (seconds * 1e9);
+		long turns = 0;
+		double sink = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 100; i++) {
+				if (q == null) {
+					LinearQKernel.scoreAll(weights, features, 0, scores.length, scores);
+				} else {
+					q.scoreAll(features, 0, scores.length, scores);
+				}
+				sink += scores[i % scores.length];
+			}
+			turns += 100;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < duration);
+
+		//keep the results alive so the scoring can't be optimized away
+		if (sink == 42) {
+			System.out.println();
+		}
+		return elapsed / 1e3 / turns;
+	}
+
+	private static double backward(QFunction q, double[] weights, double[] features, int[] offsets,
+			double[] steps, double seconds) {
+		long duration = (long) (seconds * 1e9);
+		long events = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 100; i++) {
+				if (q == null) {
+					for (int c = 0; c < offsets.length; c++) {
+						LinearQKernel.update(weights, features, offsets[c], steps[c]);
+					}
+				} else {
+					q.updateAll(features, offsets, steps, offsets.length);
+				}
+			}
+			events += 100;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < duration);
+		return elapsed / 1e3 / events;
+	}
+
+	private static double[] randomArray(Random random, int length) {
+		double[] array = new double[length];
+		for (int i = 0; i < length; i++) {
+			array[i] = random.nextDouble() * 2 - 1;
+		}
+		return array;
+	}
+}
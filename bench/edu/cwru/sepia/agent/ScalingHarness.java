@@ -0,0 +1,166 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Plays whole learning episodes on generated NvN battles (see ScenarioGenerator) and reports how the agent
+ * scales with the number of units. For each battle size it reports:
+ *
+ * turns/ep   turns per episode
+ * ep/hour    episodes per hour, agent and engine together
+ * p50, p99   latency of the agent's per-turn decision (middleStep) in microseconds
+ * max        the slowest decision in microseconds
+ * heap MB    highest heap use during the episodes, after a full collection before the first one
+ * gc ms      time spent collecting during the episodes
+ *
+ * The battles are played in CombatSimulator, or with engine sepia in SEPIA's own model against the
+ * configured enemy agent. A size that runs out of memory is reported as such and ends the run.
+ *
+ * Usage: ScalingHarness [simulator | sepia] [episodes per size] [footmenPerSide,...] [baseConfig]
+ *        [name=value...]
+ *
+ * e.g. ScalingHarness simulator 10 5,10,50,200,1000 data/10fv10fConfig.xml replan.budget=32
+ *
+ * name=value arguments are passed to the agent as options.
+ */
+public class ScalingHarness {
+
+	private static final String DEFAULT_SIZES = "5,10,50,200,1000";
+	private static final String DEFAULT_CONFIG = "data/10fv10fConfig.xml";
+
+	/**
+	 * An agent that times its per-turn decisions. It learns from the start and is headless, so it prints
+	 * nothing, never saves its weights and doesn't end the process.
+	 */
+	private static final class TimedAgent extends RLAgent {
+
+		final LatencyHistogram decisions = new LatencyHistogram();
+
+		TimedAgent(int episodes, List<String> options) {
+			super(0, agentArgs(episodes, options));
+			freeze = false;
+			//the first evaluation rounds are skipped, but their rewards are still averaged after episode 5
+			Arrays.fill(evaluationRewards, 0.0);
+		}
+
+		private static String[] agentArgs(int episodes, List<String> options) {
+			List<String> args = new ArrayList<>(Arrays.asList(Integer.toString(episodes), "false",
+					"session.headless=true"));
+			args.addAll(options);
+			return args.toArray(new String[args.size()]);
+		}
+
+		@Override
+		Map<Integer, Action> middleStep(BattleView view) {
+			long start = System.nanoTime();
+			Map<Integer, Action> actions = super.middleStep(view);
+			decisions.record(System.nanoTime() - start);
+			return actions;
+		}
+	}
+
+	public static void main(String[] arguments) throws IOException {
+		List<String> options = new ArrayList<>();
+		List<String> positional = new ArrayList<>();
+		for (String arg : arguments) {
+			(arg.indexOf('=') > 0 ? options : positional).add(arg);
+		}
+		String[] args = positional.toArray(new String[positional.size()]);
+		String engine = args.length >= 1 ? args[0] : "simulator";
+		int episodes = args.length >= 2 ? Integer.parseInt(args[1]) : 10;
+		String sizes = args.length >= 3 ? args[2] : DEFAULT_SIZES;
+		File baseConfig = new File(args.length >= 4 ? args[3] : DEFAULT_CONFIG);
+		if (!engine.equals("simulator") && !engine.equals("sepia")) {
+			System.err.println("Usage: ScalingHarness [simulator | sepia] [episodes per size] " +
+					"[footmenPerSide,...] [baseConfig] [name=value...]");
+			System.exit(1);
+		}
+
+		System.out.println(String.format("%-7s %10s %10s %9s %9s %10s %9s %9s", "units", "turns/ep", "ep/hour",
+				"p50 us", "p99 us", "max us", "heap MB", "gc ms"));
+		File scenarios = Files.createTempDirectory("scenarios").toFile();
+		for (String size : sizes.split(",")) {
+			int footmenPerSide = Integer.parseInt(size.trim());
+			String units = footmenPerSide + "v" + footmenPerSide;
+			try {
+				System.out.println(run(engine, baseConfig, scenarios, footmenPerSide, episodes, units, options));
+			} catch (OutOfMemoryError ex) {
+				System.out.println(String.format("%-7s out of memory", units));
+				break;
+			}
+		}
+		System.exit(0);
+	}
+
+	private static String run(String engine, File baseConfig, File scenarios, int footmenPerSide, int episodes,
+			String units, List<String> options) throws IOException {
+		//set up the battle before measuring, so only the episodes count
+		CombatSimulator simulator = null;
+		SepiaExperiment experiment = null;
+		File config = ScenarioGenerator.generate(baseConfig, scenarios, footmenPerSide, 0, 0);
+		if (engine.equals("simulator")) {
+			Document map = ScenarioGenerator.parse(new File(SepiaExperiment.load(config.getPath()).getMapFile()));
+			Element state = map.getDocumentElement();
+			simulator = new CombatSimulator(ReplayConverter.readHeader(state), ReplayConverter.readUnits(state),
+					new Random(12345), CombatSimulator.DEFAULT_TURN_LIMIT);
+		} else {
+			experiment = SepiaExperiment.load(config.getPath());
+			experiment.setParameter("experiment.NumEpisodes", Integer.toString(episodes));
+		}
+		TimedAgent agent = new TimedAgent(episodes, options);
+
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+		long gcTime = collectionTime();
+		long start = System.nanoTime();
+		if (simulator != null) {
+			ScriptedOpponent opponent = new ScriptedOpponent(RLAgent.ENEMY_PLAYERNUM, agent.getPlayerNumber());
+			for (int episode = 0; episode < episodes; episode++) {
+				simulator.playEpisode(agent, opponent);
+			}
+		} else {
+			experiment.run(new Agent[] { agent, experiment.createAgent(RLAgent.ENEMY_PLAYERNUM) });
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		gcTime = collectionTime() - gcTime;
+
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+		//the agent decides once on every turn
+		LatencyHistogram decisions = agent.decisions;
+		return String.format("%-7s %10.1f %10.0f %9.1f %9.1f %10.1f %9.1f %9d", units,
+				(double) decisions.getCount() / episodes,
+				episodes / seconds * 3600, decisions.getPercentile(0.5) / 1e3, decisions.getPercentile(0.99) / 1e3,
+				decisions.getMax() / 1e3, peakHeap / (double) (1 << 20), gcTime);
+	}
+
+	private static long collectionTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(collector.getCollectionTime(), 0);
+		}
+		return time;
+	}
+}
@@ -0,0 +1,215 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms and throughput counters for the agent's hot path, written to CSV files every few
+ * seconds.
+ *
+ * The game thread only records into histograms and counters it owns. Every flush interval it hands a
+ * snapshot of them to a background thread, which appends one row per probe to latency.csv and one row to
+ * throughput.csv in the metrics directory:
+ *
+ * latency.csv     time_ms,episode,metric,count,mean_us,p50_us,p90_us,p99_us,max_us
+ * throughput.csv  time_ms,episode,seconds,turns,events,events_per_turn,decisions,decisions_per_sec,
+ *                 episodes,turns_per_episode
+ *
+ * Each row covers the interval since the previous one. When metrics are off the agent holds no
+ * AgentMetrics at all, so the only cost is a null check.
+ */
+final class AgentMetrics {
+
+	//the timed probes
+	static final int MIDDLE_STEP = 0;
+	static final int EVENT_CHECK = 1;
+	static final int SELECT_ACTION = 2;
+	static final int UPDATE_WEIGHTS = 3;
+	static final int CALCULATE_REWARD = 4;
+
+	private static final String[] PROBE_NAMES = {
+		"middleStep", "eventHasOccurred", "selectAction", "updateWeights", "calculateReward"
+	};
+
+	private final long flushIntervalNanos;
+	private final ExecutorService writer;
+	private final Writer latencyFile;
+	private final Writer throughputFile;
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[PROBE_NAMES.length];
+	private long turns;
+	private long events;
+	private long decisions;
+	private long episodes;
+	private long episodeTurns;
+	private long lastFlush = System.nanoTime();
+
+	private AgentMetrics(Writer latencyFile, Writer throughputFile, double flushIntervalSeconds) {
+		this.latencyFile = latencyFile;
+		this.throughputFile = throughputFile;
+		this.flushIntervalNanos = (long) (flushIntervalSeconds * 1e9);
+		for (int p = 0; p < histograms.length; p++) {
+			histograms[p] = new LatencyHistogram();
+		}
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "agent-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts recording metrics, appending to the files in the given directory.
+	 *
+	 * @param directory Where to write latency.csv and throughput.csv, created if needed
+	 * @param flushIntervalSeconds How often to write a row
+	 * @return The metrics
+	 * @throws IOException If the files can't be opened
+	 */
+	static AgentMetrics open(File directory, double flushIntervalSeconds) throws IOException {
+		directory.mkdirs();
+		Writer latencyFile = openCsv(new File(directory, "latency.csv"),
+				"time_ms,episode,metric,count,mean_us,p50_us,p90_us,p99_us,max_us");
+		Writer throughputFile;
+		try {
+			throughputFile = openCsv(new File(directory, "throughput.csv"),
+					"time_ms,episode,seconds,turns,events,events_per_turn,decisions,decisions_per_sec," +
+					"episodes,turns_per_episode");
+		} catch (IOException ex) {
+			latencyFile.close();
+			throw ex;
+		}
+		return new AgentMetrics(latencyFile, throughputFile, flushIntervalSeconds);
+	}
+
+	private static Writer openCsv(File file, String header) throws IOException {
+		boolean created = !file.exists() || file.length() == 0;
+		Writer csv = new BufferedWriter(new FileWriter(file, true));
+		if (created) {
+			csv.write(header + "\n");
+		}
+		return csv;
+	}
+
+	/**
+	 * Records the time since start, a System.nanoTime() taken when the probed call began.
+	 */
+	void record(int probe, long start) {
+		histograms[probe].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Counts a turn, and whether the agent had to react to an event on it.
+	 */
+	void turn(boolean eventOccurred) {
+		turns++;
+		if (eventOccurred) {
+			events++;
+		}
+	}
+
+	/**
+	 * Counts one footman being given a target.
+	 */
+	void decision() {
+		decisions++;
+	}
+
+	/**
+	 * Counts a finished episode and how many turns it took.
+	 */
+	void endEpisode(int numTurns) {
+		episodes++;
+		episodeTurns += numTurns;
+	}
+
+	/**
+	 * Hands the metrics of the last interval to the background writer if the interval is over.
+	 *
+	 * @param episode The current episode, for the rows written
+	 */
+	void maybeFlush(int episode) {
+		if (System.nanoTime() - lastFlush >= flushIntervalNanos) {
+			flush(episode);
+		}
+	}
+
+	/**
+	 * Hands the metrics since the last flush to the background writer.
+	 *
+	 * @param episode The current episode, for the rows written
+	 */
+	void flush(final int episode) {
+		long now = System.nanoTime();
+		final double seconds = (now - lastFlush) / 1e9;
+		lastFlush = now;
+
+		final LatencyHistogram[] snapshots = new LatencyHistogram[histograms.length];
+		for (int p = 0; p < histograms.length; p++) {
+			snapshots[p] = histograms[p].snapshotAndReset();
+		}
+		final long turns = this.turns;
+		final long events = this.events;
+		final long decisions = this.decisions;
+		final long episodes = this.episodes;
+		final long episodeTurns = this.episodeTurns;
+		this.turns = 0;
+		this.events = 0;
+		this.decisions = 0;
+		this.episodes = 0;
+		this.episodeTurns = 0;
+
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long time = System.currentTimeMillis();
+					for (int p = 0; p < snapshots.length; p++) {
+						LatencyHistogram histogram = snapshots[p];
+						latencyFile.write(String.format(Locale.ROOT, "%d,%d,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+								time, episode, PROBE_NAMES[p], histogram.getCount(), histogram.getMean() / 1e3,
+								histogram.getPercentile(0.5) / 1e3, histogram.getPercentile(0.9) / 1e3,
+								histogram.getPercentile(0.99) / 1e3, histogram.getMax() / 1e3));
+					}
+					latencyFile.flush();
+
+					throughputFile.write(String.format(Locale.ROOT, "%d,%d,%.3f,%d,%d,%.4f,%d,%.1f,%d,%.1f\n",
+							time, episode, seconds, turns, events, turns == 0 ? 0 : (double) events / turns, decisions,
+							seconds == 0 ? 0 : decisions / seconds, episodes,
+							episodes == 0 ? 0 : (double) episodeTurns / episodes));
+					throughputFile.flush();
+				} catch (IOException ex) {
+					System.err.println("Failed to write metrics. Reason: " + ex.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the metrics since the last flush and closes the files.
+	 *
+	 * @param episode The current episode, for the rows written
+	 */
+	void close(int episode) {
+		flush(episode);
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			latencyFile.close();
+			throughputFile.close();
+		} catch (IOException ex) {
+			System.err.println("Failed to close metrics. Reason: " + ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package edu.cwru.sepia.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional settings of the agent, passed as name=value agent arguments in the configuration file, e.g.
+ *
+ * <Argument>replay.capacity=50000</Argument>
+ *
+ * Arguments without an equals sign are the positional arguments read by the RLAgent constructor and are
+ * ignored here.
+ */
+final class AgentOptions {
+
+	private final Map<String, String> options = new HashMap<>();
+
+	private AgentOptions() {
+	}
+
+	static AgentOptions parse(String[] args) {
+		AgentOptions parsed = new AgentOptions();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) {
+				parsed.options.put(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+			}
+		}
+		return parsed;
+	}
+
+	boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	String getString(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	int getInt(String name, int defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	long getLong(String name, long defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	double getDouble(String name, double defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	boolean getBoolean(String name, boolean defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
@@ -0,0 +1,129 @@
+package edu.cwru.sepia.agent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything RLAgent keeps from one episode to the next, in the binary format of savePlayerData.
+ *
+ * magic, version, the feature names, the weights, numEpisodesPlayed, freeze, evalRoundCounter,
+ * evaluationRewards (a flag per round saying whether it was played yet, and its reward), avgRewards, the
+ * state of the agent's Random and, since version 2, a flag saying whether the Q-function isn't the linear
+ * one, followed by the Q-function as QFunctions.write writes it if so. Version 1 snapshots are still read.
+ *
+ * What only lives for an episode (rosters, per-turn caches, pending batched updates) isn't kept, SEPIA saves
+ * agents between episodes. Neither is the experience replay buffer, which refills as the agent plays.
+ */
+final class AgentSnapshot {
+
+	private static final int MAGIC = 0x524c4147; // "RLAG"
+	private static final int VERSION = 2;
+
+	final List<String> features;
+	final double[] weights;
+	final int numEpisodesPlayed;
+	final boolean freeze;
+	final int evalRoundCounter;
+	final Double[] evaluationRewards;
+	final List<Double> avgRewards;
+	final long randomState;
+	//null for the linear Q-function
+	final QFunction qFunction;
+
+	AgentSnapshot(List<String> features, double[] weights, int numEpisodesPlayed, boolean freeze,
+			int evalRoundCounter, Double[] evaluationRewards, List<Double> avgRewards, long randomState,
+			QFunction qFunction) {
+		this.features = new ArrayList<>(features);
+		this.weights = weights.clone();
+		this.numEpisodesPlayed = numEpisodesPlayed;
+		this.freeze = freeze;
+		this.evalRoundCounter = evalRoundCounter;
+		this.evaluationRewards = evaluationRewards.clone();
+		this.avgRewards = new ArrayList<>(avgRewards);
+		this.randomState = randomState;
+		this.qFunction = qFunction;
+	}
+
+	/**
+	 * Writes the snapshot. The stream is flushed but not closed.
+	 *
+	 * @throws IOException If the stream can't be written
+	 */
+	void write(OutputStream outputStream) throws IOException {
+		DataOutputStream out = new DataOutputStream(outputStream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(features.size());
+		for (String feature : features) {
+			out.writeUTF(feature);
+		}
+		out.writeInt(weights.length);
+		for (double weight : weights) {
+			out.writeDouble(weight);
+		}
+		out.writeInt(numEpisodesPlayed);
+		out.writeBoolean(freeze);
+		out.writeInt(evalRoundCounter);
+		out.writeInt(evaluationRewards.length);
+		for (Double reward : evaluationRewards) {
+			out.writeBoolean(reward != null);
+			out.writeDouble(reward == null ? 0 : reward);
+		}
+		out.writeInt(avgRewards.size());
+		for (double reward : avgRewards) {
+			out.writeDouble(reward);
+		}
+		out.writeLong(randomState);
+		out.writeBoolean(qFunction != null);
+		if (qFunction != null) {
+			QFunctions.write(qFunction, out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads a snapshot written by write. The stream isn't closed.
+	 *
+	 * @throws IOException If the stream can't be read or doesn't hold a snapshot
+	 */
+	static AgentSnapshot read(InputStream inputStream) throws IOException {
+		DataInputStream in = new DataInputStream(inputStream);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not an agent snapshot");
+		}
+		int version = in.readInt();
+		if (version != 1 && version != VERSION) {
+			throw new IOException("Unsupported agent snapshot version " + version);
+		}
+		List<String> features = new ArrayList<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			features.add(in.readUTF());
+		}
+		double[] weights = new double[in.readInt()];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = in.readDouble();
+		}
+		int numEpisodesPlayed = in.readInt();
+		boolean freeze = in.readBoolean();
+		int evalRoundCounter = in.readInt();
+		Double[] evaluationRewards = new Double[in.readInt()];
+		for (int i = 0; i < evaluationRewards.length; i++) {
+			boolean played = in.readBoolean();
+			double reward = in.readDouble();
+			evaluationRewards[i] = played ? reward : null;
+		}
+		List<Double> avgRewards = new ArrayList<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			avgRewards.add(in.readDouble());
+		}
+		long randomState = in.readLong();
+		QFunction qFunction = version >= 2 && in.readBoolean() ? QFunctions.read(in) : null;
+		return new AgentSnapshot(features, weights, numEpisodesPlayed, freeze, evalRoundCounter, evaluationRewards,
+				avgRewards, randomState, qFunction);
+	}
+}
@@ -0,0 +1,169 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * One weight update per event for all the footmen that chose a target on it.
+ *
+ * The TD errors of all footmen are computed with the weights as they were at the start of the event, their
+ * gradients are summed, and the sum is applied once, so no footman sees weights that were already moved by
+ * the footmen before it. Each footman's target needs one max-Q over its row of the FeatureTensor, so an event
+ * costs one pass over the live (footman, enemy) pairs.
+ *
+ * With nSteps = 0 the target is the same as updateWeights': the footman's reward so far plus the discounted
+ * max-Q of the current turn, for the features of the enemy it just chose. With nSteps = n > 0 every choice is
+ * kept until the footman has chosen n more times, and is then trained towards the discounted sum of the
+ * rewards the footman got in between plus the discounted max-Q at the n-th later choice. Choices still waiting
+ * when the footman dies or the episode ends are trained towards their rewards alone.
+ */
+final class BatchedUpdate {
+
+	private final int numFeatures;
+	private final int nSteps;
+	private final double gamma;
+
+	//sum of learning rate times TD error times features of the event so far
+	private final double[] gradient;
+	private int numTerms;
+
+	//per footman slot, the last nSteps choices as a ring: their features, discounted returns so far and ages
+	private double[][] pendingFeatures = new double[0][];
+	private double[][] pendingReturns = new double[0][];
+	private int[][] pendingAges = new int[0][];
+	private int[] pendingStart = new int[0];
+	private int[] pendingCount = new int[0];
+	//the footman's cumulative reward at its last choice, to split the cumulative reward into a stream
+	private double[] rewardAtChoice = new double[0];
+
+	/**
+	 * @param numFeatures The length of a feature vector
+	 * @param nSteps How many later choices a choice is bootstrapped from, 0 for the online target
+	 * @param gamma The discount factor
+	 */
+	BatchedUpdate(int numFeatures, int nSteps, double gamma) {
+		if (nSteps < 0) {
+			throw new IllegalArgumentException("nSteps must not be negative");
+		}
+		this.numFeatures = numFeatures;
+		this.nSteps = nSteps;
+		this.gamma = gamma;
+		gradient = new double[numFeatures];
+	}
+
+	/**
+	 * Forgets the pending choices, for a new episode.
+	 *
+	 * @param numSlots The number of footman slots of the episode
+	 */
+	void reset(int numSlots) {
+		if (pendingCount.length < numSlots) {
+			pendingFeatures = new double[numSlots][nSteps * numFeatures];
+			pendingReturns = new double[numSlots][nSteps];
+			pendingAges = new int[numSlots][nSteps];
+			pendingStart = new int[numSlots];
+			pendingCount = new int[numSlots];
+			rewardAtChoice = new double[numSlots];
+		}
+		Arrays.fill(pendingStart, 0);
+		Arrays.fill(pendingCount, 0);
+		Arrays.fill(rewardAtChoice, 0);
+		Arrays.fill(gradient, 0);
+		numTerms = 0;
+	}
+
+	/**
+	 * Adds a footman's choice on the current event.
+	 *
+	 * @param slot The footman's roster slot
+	 * @param weights The weights at the start of the event
+	 * @param features Array holding the features of the chosen (footman, enemy) pair
+	 * @param offset Index of the first feature of the pair in features
+	 * @param totalReward The footman's cumulative reward
+	 * @param maxQ The footman's highest Q-value on the current turn
+	 * @param learningRate The learning rate
+	 */
+	void choose(int slot, double[] weights, double[] features, int offset, double totalReward, double maxQ,
+			double learningRate) {
+		if (nSteps == 0) {
+			double error = totalReward + gamma * maxQ - LinearQKernel.score(weights, features, offset);
+			LinearQKernel.update(gradient, features, offset, learningRate * error);
+			numTerms++;
+			return;
+		}
+
+		addReward(slot, totalReward);
+		//the oldest choice has waited n choices and is bootstrapped from this one
+		if (pendingCount[slot] == nSteps) {
+			int oldest = pendingStart[slot];
+			addTerm(weights, slot, oldest, pendingReturns[slot][oldest] + Math.pow(gamma, nSteps) * maxQ,
+					learningRate);
+			pendingStart[slot] = (oldest + 1) % nSteps;
+			pendingCount[slot]--;
+		}
+		int newest = (pendingStart[slot] + pendingCount[slot]) % nSteps;
+		System.arraycopy(features, offset, pendingFeatures[slot], newest * numFeatures, numFeatures);
+		pendingReturns[slot][newest] = 0;
+		pendingAges[slot][newest] = 0;
+		pendingCount[slot]++;
+	}
+
+	/**
+	 * Trains a footman's pending choices towards the rewards it got after them, because it died or the
+	 * episode ended.
+	 *
+	 * @param slot The footman's roster slot
+	 * @param weights The weights at the start of the event
+	 * @param totalReward The footman's final cumulative reward
+	 * @param learningRate The learning rate
+	 */
+	void finish(int slot, double[] weights, double totalReward, double learningRate) {
+		if (nSteps == 0 || pendingCount[slot] == 0) {
+			return;
+		}
+		addReward(slot, totalReward);
+		for (int p = 0; p < pendingCount[slot]; p++) {
+			int pending = (pendingStart[slot] + p) % nSteps;
+			addTerm(weights, slot, pending, pendingReturns[slot][pending], learningRate);
+		}
+		pendingCount[slot] = 0;
+	}
+
+	/**
+	 * Adds the summed gradient of the event to the weights and starts a new event.
+	 *
+	 * @param weights The weights, updated in place
+	 * @return true if anything was added
+	 */
+	boolean apply(double[] weights) {
+		if (numTerms == 0) {
+			return false;
+		}
+		for (int i = 0; i < numFeatures; i++) {
+			weights[i] += gradient[i];
+		}
+		Arrays.fill(gradient, 0);
+		numTerms = 0;
+		return true;
+	}
+
+	/**
+	 * Adds the reward the footman got since its last choice to the returns of its pending choices.
+	 */
+	private void addReward(int slot, double totalReward) {
+		double reward = totalReward - rewardAtChoice[slot];
+		rewardAtChoice[slot] = totalReward;
+		for (int p = 0; p < pendingCount[slot]; p++) {
+			int pending = (pendingStart[slot] + p) % nSteps;
+			pendingReturns[slot][pending] += Math.pow(gamma, pendingAges[slot][pending]) * reward;
+			pendingAges[slot][pending]++;
+		}
+	}
+
+	private void addTerm(double[] weights, int slot, int pending, double target, double learningRate) {
+		double[] features = pendingFeatures[slot];
+		int offset = pending * numFeatures;
+		double error = target - LinearQKernel.score(weights, features, offset);
+		LinearQKernel.update(gradient, features, offset, learningRate * error);
+		numTerms++;
+	}
+}
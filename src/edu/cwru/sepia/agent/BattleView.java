@@ -0,0 +1,45 @@
+package edu.cwru.sepia.agent;
+
+import java.util.List;
+
+/**
+ * The state of a footman battle on the current turn and what happened on the last one, as the agent reads
+ * it.
+ *
+ * This is the subset of SEPIA's StateView and HistoryView that RLAgent uses. SepiaBattleView adapts the
+ * real views, CombatSimulator implements it directly so the agent can be trained without SEPIA.
+ */
+interface BattleView {
+
+	int getTurnNumber();
+
+	int getXExtent();
+
+	int getYExtent();
+
+	/**
+	 * @return The IDs of the player's live units
+	 */
+	List<Integer> getUnitIds(int player);
+
+	/**
+	 * @return The name of the unit's template, e.g. Footman, or null if it isn't alive
+	 */
+	String getUnitName(int unitId);
+
+	/**
+	 * @return true if the unit is alive
+	 */
+	boolean hasUnit(int unitId);
+
+	int getHP(int unitId);
+
+	int getXPosition(int unitId);
+
+	int getYPosition(int unitId);
+
+	/**
+	 * @return What happened on the last turn, empty on the first turn
+	 */
+	TurnLog getLastTurn();
+}
@@ -0,0 +1,428 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.util.DistanceMetrics;
+
+import org.w3c.dom.Element;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A footman battle played out in our own JVM, for training on many more episodes than SEPIA can run.
+ *
+ * Only what our scenarios use is simulated: footmen given compound attacks on an open map. Every turn,
+ * in unit order, a unit with a target either attacks it, if it is within range, or steps to the free
+ * neighbouring tile that brings it closest to it. A unit that can't get any closer gives up, like SEPIA's
+ * compound attack does when its path is blocked. Attacks land at the same time after everybody moved, so
+ * a unit killed on a turn still strikes on it, and a hit does between half (rounded up) and all of the
+ * attacker's basic attack minus the defender's armor plus its piercing attack. Units at 0 HP or less die
+ * at the end of the turn.
+ *
+ * The simulator implements BattleView, so RLAgent plays it through the same code as a SEPIA battle.
+ * Everything is kept in flat arrays that are reused between episodes, so an episode allocates next to
+ * nothing beyond what the agent does.
+ */
+final class CombatSimulator implements BattleView {
+
+	//ends episodes where the two sides can't reach each other
+	static final int DEFAULT_TURN_LIMIT = 10000;
+
+	private final ReplayHeader header;
+	private final List<ReplayUnit> initialUnits;
+	private final Random random;
+	private final int turnLimit;
+
+	private int turn;
+
+	//the units of the battle, by index
+	private int numUnits;
+	private int[] ids = new int[0];
+	private int[] players = new int[0];
+	private String[] names = new String[0];
+	private int[] hp = new int[0];
+	private int[] x = new int[0];
+	private int[] y = new int[0];
+	private int[] basicAttack = new int[0];
+	private int[] piercingAttack = new int[0];
+	private int[] armor = new int[0];
+	private int[] range = new int[0];
+	private boolean[] alive = new boolean[0];
+	//the ID of the unit each unit is attacking, -1 if none
+	private int[] targets = new int[0];
+
+	//index + 1 of the unit with each ID and of the unit on each tile, 0 if there is none
+	private int[] indexOfId = new int[0];
+	private final int[] occupant;
+
+	//the units that attack on the current turn
+	private int[] attackers = new int[0];
+
+	private TurnLog lastTurn = new TurnLog();
+	private TurnLog currentTurn = new TurnLog();
+
+	/**
+	 * @param header The map and unit templates of the battle
+	 * @param units The units at the start of every episode
+	 * @param random Source of the damage rolls
+	 * @param turnLimit Turn at which an episode is stopped if neither side has won
+	 */
+	CombatSimulator(ReplayHeader header, List<ReplayUnit> units, Random random, int turnLimit) {
+		this.header = header;
+		this.initialUnits = new ArrayList<>(units);
+		this.random = random;
+		this.turnLimit = turnLimit;
+		this.occupant = new int[header.xExtent * header.yExtent];
+		reset();
+	}
+
+	/**
+	 * Reads the battle from a SEPIA map or state save, e.g. data/rl_5fv5f.xml or saves/state0.SRTSsav.
+	 *
+	 * @throws IOException If the file can't be read
+	 */
+	static CombatSimulator load(File map, Random random) throws IOException {
+		Element state = ReplayConverter.parse(map);
+		return new CombatSimulator(ReplayConverter.readHeader(state), ReplayConverter.readUnits(state), random,
+				DEFAULT_TURN_LIMIT);
+	}
+
+	/**
+	 * Puts the units back where they were at the start, for a new episode.
+	 */
+	void reset() {
+		load(initialUnits, 0);
+	}
+
+	/**
+	 * Sets up the battle with the given units, e.g. a frame of a replay. Units with a target start out
+	 * attacking it.
+	 *
+	 * @param units The live units
+	 * @param turnNumber The turn of the battle
+	 * @throws IllegalArgumentException If a unit has an unknown template, is off the map or shares a tile
+	 */
+	void load(Collection<ReplayUnit> units, int turnNumber) {
+		turn = turnNumber;
+		lastTurn.clear();
+		currentTurn.clear();
+		Arrays.fill(occupant, 0);
+		Arrays.fill(indexOfId, 0);
+		ensureCapacity(units.size());
+
+		numUnits = 0;
+		for (ReplayUnit unit : units) {
+			ReplayHeader.Player player = header.getPlayer(unit.player);
+			String[] template = player == null ? null : player.getTemplate(unit.templateId);
+			if (template == null) {
+				throw new IllegalArgumentException("Unknown template " + unit.templateId + " of " + unit);
+			}
+			if (unit.x < 0 || unit.x >= header.xExtent || unit.y < 0 || unit.y >= header.yExtent) {
+				throw new IllegalArgumentException("Off the map: " + unit);
+			}
+			if (occupant[tile(unit.x, unit.y)] != 0) {
+				throw new IllegalArgumentException("Tile is already taken: " + unit);
+			}
+
+			int i = numUnits++;
+			ids[i] = unit.id;
+			players[i] = unit.player;
+			names[i] = ReplayHeader.get(template, "name");
+			hp[i] = unit.hp;
+			x[i] = unit.x;
+			y[i] = unit.y;
+			basicAttack[i] = stat(template, "baseAttack");
+			piercingAttack[i] = stat(template, "piercingAttack");
+			armor[i] = stat(template, "armor");
+			range[i] = stat(template, "range");
+			alive[i] = true;
+			targets[i] = unit.target;
+
+			if (unit.id >= indexOfId.length) {
+				indexOfId = Arrays.copyOf(indexOfId, Math.max(2 * indexOfId.length, unit.id + 1));
+			}
+			indexOfId[unit.id] = i + 1;
+			occupant[tile(unit.x, unit.y)] = i + 1;
+		}
+	}
+
+	/**
+	 * Gives a player's units their commands for the current turn. Commands for units the player doesn't
+	 * control are rejected, like SEPIA does.
+	 *
+	 * @param player The player issuing the commands
+	 * @param actions Compound attacks by unit ID
+	 */
+	void issue(int player, Map<Integer, Action> actions) {
+		for (Map.Entry<Integer, Action> command : actions.entrySet()) {
+			TargetedAction action = (TargetedAction) command.getValue();
+			int i = index(command.getKey());
+			if (i < 0 || !alive[i]) {
+				currentTurn.addFeedback(player, command.getKey(), action.getTargetId(), ActionFeedback.INVALIDUNIT);
+			} else if (players[i] != player) {
+				currentTurn.addFeedback(player, ids[i], action.getTargetId(), ActionFeedback.INVALIDCONTROLLER);
+			} else {
+				currentTurn.addCommand(player, ids[i], action.getTargetId());
+				targets[i] = action.getTargetId();
+			}
+		}
+	}
+
+	/**
+	 * Plays out the current turn with the commands issued so far and moves on to the next one.
+	 */
+	void step() {
+		//moves happen one unit at a time, so a unit can take a tile freed earlier in the turn
+		int numAttackers = 0;
+		for (int i = 0; i < numUnits; i++) {
+			if (!alive[i] || targets[i] < 0) {
+				continue;
+			}
+			int t = index(targets[i]);
+			if (t < 0 || !alive[t]) {
+				//the target died before this turn
+				endAttack(i, ActionFeedback.FAILED);
+			} else if (DistanceMetrics.chebyshevDistance(x[i], y[i], x[t], y[t]) <= range[i]) {
+				attackers[numAttackers++] = i;
+			} else if (stepTowards(i, x[t], y[t])) {
+				currentTurn.addFeedback(players[i], ids[i], targets[i], ActionFeedback.INCOMPLETE);
+			} else {
+				endAttack(i, ActionFeedback.FAILED);
+			}
+		}
+
+		//attacks land at the same time
+		for (int a = 0; a < numAttackers; a++) {
+			int i = attackers[a];
+			int t = index(targets[i]);
+			int damage = rollDamage(i, t);
+			hp[t] -= damage;
+			currentTurn.addDamage(ids[i], ids[t], damage);
+		}
+		for (int i = 0; i < numUnits; i++) {
+			if (alive[i] && hp[i] <= 0) {
+				alive[i] = false;
+				occupant[tile(x[i], y[i])] = 0;
+				currentTurn.addDeath(ids[i], players[i]);
+			}
+		}
+		for (int a = 0; a < numAttackers; a++) {
+			int i = attackers[a];
+			if (!alive[i]) {
+				continue;
+			}
+			if (alive[index(targets[i])]) {
+				currentTurn.addFeedback(players[i], ids[i], targets[i], ActionFeedback.INCOMPLETE);
+			} else {
+				endAttack(i, ActionFeedback.COMPLETED);
+			}
+		}
+
+		turn++;
+		TurnLog finished = currentTurn;
+		currentTurn = lastTurn;
+		lastTurn = finished;
+		currentTurn.clear();
+	}
+
+	/**
+	 * @return true if at most one player has units left or the turn limit was reached
+	 */
+	boolean isOver() {
+		if (turn >= turnLimit) {
+			return true;
+		}
+		int firstPlayer = -1;
+		for (int i = 0; i < numUnits; i++) {
+			if (alive[i]) {
+				if (firstPlayer < 0) {
+					firstPlayer = players[i];
+				} else if (players[i] != firstPlayer) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Plays one episode from the starting units, calling the agent the way SEPIA does.
+	 *
+	 * @param agent Controls its player's footmen
+	 * @param opponent Controls the other player's footmen
+	 * @return The number of turns played
+	 */
+	int playEpisode(RLAgent agent, ScriptedOpponent opponent) {
+		reset();
+		opponent.reset();
+		Map<Integer, Action> actions = agent.initialStep(this);
+		while (true) {
+			issue(agent.getPlayerNumber(), actions);
+			issue(opponent.getPlayerNumber(), opponent.commands(this));
+			step();
+			if (isOver()) {
+				break;
+			}
+			actions = agent.middleStep(this);
+		}
+		agent.terminalStep(this);
+		return turn;
+	}
+
+	/**
+	 * @return The ID of the unit the given unit is attacking, -1 if none
+	 */
+	int getTarget(int unitId) {
+		int i = index(unitId);
+		return i < 0 ? -1 : targets[i];
+	}
+
+	@Override
+	public int getTurnNumber() {
+		return turn;
+	}
+
+	@Override
+	public int getXExtent() {
+		return header.xExtent;
+	}
+
+	@Override
+	public int getYExtent() {
+		return header.yExtent;
+	}
+
+	@Override
+	public List<Integer> getUnitIds(int player) {
+		List<Integer> unitIds = new ArrayList<>();
+		for (int i = 0; i < numUnits; i++) {
+			if (alive[i] && players[i] == player) {
+				unitIds.add(ids[i]);
+			}
+		}
+		return unitIds;
+	}
+
+	@Override
+	public String getUnitName(int unitId) {
+		int i = liveIndex(unitId);
+		return i < 0 ? null : names[i];
+	}
+
+	@Override
+	public boolean hasUnit(int unitId) {
+		return liveIndex(unitId) >= 0;
+	}
+
+	@Override
+	public int getHP(int unitId) {
+		return hp[liveIndex(unitId)];
+	}
+
+	@Override
+	public int getXPosition(int unitId) {
+		return x[liveIndex(unitId)];
+	}
+
+	@Override
+	public int getYPosition(int unitId) {
+		return y[liveIndex(unitId)];
+	}
+
+	@Override
+	public TurnLog getLastTurn() {
+		return lastTurn;
+	}
+
+	private void endAttack(int i, ActionFeedback result) {
+		currentTurn.addFeedback(players[i], ids[i], targets[i], result);
+		targets[i] = -1;
+	}
+
+	/**
+	 * Moves a unit to the free neighbouring tile closest to the given one, by Chebyshev distance and then by
+	 * straight line distance, if that is closer than where it is.
+	 *
+	 * @return false if no neighbouring tile is closer
+	 */
+	private boolean stepTowards(int i, int targetX, int targetY) {
+		int bestX = -1;
+		int bestY = -1;
+		int bestDistance = DistanceMetrics.chebyshevDistance(x[i], y[i], targetX, targetY);
+		int bestSquared = squaredDistance(x[i], y[i], targetX, targetY);
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				int nx = x[i] + dx;
+				int ny = y[i] + dy;
+				if ((dx == 0 && dy == 0) || nx < 0 || nx >= header.xExtent || ny < 0 || ny >= header.yExtent ||
+						occupant[tile(nx, ny)] != 0) {
+					continue;
+				}
+				int distance = DistanceMetrics.chebyshevDistance(nx, ny, targetX, targetY);
+				int squared = squaredDistance(nx, ny, targetX, targetY);
+				if (distance < bestDistance || (distance == bestDistance && squared < bestSquared)) {
+					bestX = nx;
+					bestY = ny;
+					bestDistance = distance;
+					bestSquared = squared;
+				}
+			}
+		}
+		if (bestX < 0) {
+			return false;
+		}
+		occupant[tile(x[i], y[i])] = 0;
+		x[i] = bestX;
+		y[i] = bestY;
+		occupant[tile(bestX, bestY)] = i + 1;
+		return true;
+	}
+
+	private int rollDamage(int attacker, int defender) {
+		int damage = Math.max(basicAttack[attacker] - armor[defender], 0) + piercingAttack[attacker];
+		return damage - random.nextInt(damage / 2 + 1);
+	}
+
+	private int index(int unitId) {
+		return unitId >= 0 && unitId < indexOfId.length ? indexOfId[unitId] - 1 : -1;
+	}
+
+	private int liveIndex(int unitId) {
+		int i = index(unitId);
+		return i >= 0 && alive[i] ? i : -1;
+	}
+
+	private int tile(int tileX, int tileY) {
+		return tileY * header.xExtent + tileX;
+	}
+
+	private static int squaredDistance(int x1, int y1, int x2, int y2) {
+		return (x1 - x2) * (x1 - x2) + (y1 - y2) * (y1 - y2);
+	}
+
+	private static int stat(String[] template, String name) {
+		String value = ReplayHeader.get(template, name);
+		return value == null ? 0 : Integer.parseInt(value);
+	}
+
+	private void ensureCapacity(int size) {
+		if (ids.length < size) {
+			ids = new int[size];
+			players = new int[size];
+			names = new String[size];
+			hp = new int[size];
+			x = new int[size];
+			y = new int[size];
+			basicAttack = new int[size];
+			piercingAttack = new int[size];
+			armor = new int[size];
+			range = new int[size];
+			alive = new boolean[size];
+			targets = new int[size];
+			attackers = new int[size];
+		}
+	}
+}
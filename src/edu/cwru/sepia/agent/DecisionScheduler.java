@@ -0,0 +1,129 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Spreads the footmen's decisions over turns, so that no turn takes much longer than the others however big
+ * the armies are.
+ *
+ * Footmen that need a new target are queued with an urgency: idle (no command, or its action ended) before
+ * target died before under attack (hit by an enemy that hadn't hit it before) before the rest, who are only
+ * replanned because an event happened somewhere. A footman that is queued again keeps the higher of its
+ * urgencies and the turn it was first queued on.
+ *
+ * On every turn the queued footmen decide most urgent first, and of the same urgency the ones that have waited
+ * longest first, until the turn's budget is used up: at most maxDecisions decisions, and none once budgetNanos
+ * have passed since the turn started. At least one footman decides on every turn that has any queued, so the
+ * queue always drains. A footman that isn't reached stays queued and keeps carrying out its last command.
+ */
+final class DecisionScheduler {
+
+	static final int EVENT = 0;
+	static final int UNDER_ATTACK = 1;
+	static final int TARGET_DIED = 2;
+	static final int IDLE = 3;
+
+	private static final int NOT_QUEUED = -1;
+	//bits of a slot and of a turn in a sort key, see schedule
+	private static final int SLOT_BITS = 24;
+	private static final int TURN_BITS = 32;
+
+	private final int maxDecisions;
+	private final long budgetNanos;
+
+	//per footman slot, its urgency (NOT_QUEUED if it isn't queued) and the turn it was queued on
+	private int[] urgencies = new int[0];
+	private int[] queuedSince = new int[0];
+	private long[] keys = new long[0];
+
+	/**
+	 * @param maxDecisions The most decisions per turn, 0 for no limit
+	 * @param budgetNanos The time after the start of a turn after which no more decisions are made, 0 for no
+	 * limit
+	 */
+	DecisionScheduler(int maxDecisions, long budgetNanos) {
+		if (maxDecisions < 0 || budgetNanos < 0) {
+			throw new IllegalArgumentException("maxDecisions and budgetNanos must not be negative");
+		}
+		this.maxDecisions = maxDecisions;
+		this.budgetNanos = budgetNanos;
+	}
+
+	/**
+	 * Empties the queue, for a new episode.
+	 *
+	 * @param numSlots The number of footman slots of the episode
+	 */
+	void reset(int numSlots) {
+		if (urgencies.length < numSlots) {
+			urgencies = new int[numSlots];
+			queuedSince = new int[numSlots];
+			keys = new long[numSlots];
+		}
+		Arrays.fill(urgencies, NOT_QUEUED);
+	}
+
+	/**
+	 * Queues a footman for a new target, or raises its urgency if it is queued already.
+	 *
+	 * @param slot The footman's roster slot
+	 * @param urgency IDLE, TARGET_DIED, UNDER_ATTACK or EVENT
+	 * @param turn The current turn
+	 */
+	void request(int slot, int urgency, int turn) {
+		if (urgencies[slot] == NOT_QUEUED) {
+			queuedSince[slot] = turn;
+		}
+		urgencies[slot] = Math.max(urgencies[slot], urgency);
+	}
+
+	/**
+	 * Drops the footmen that died from the queue and puts the slots of the others in the order they should
+	 * decide in.
+	 *
+	 * @param roster Our footmen
+	 * @param into Receives the slots, must hold at least roster.numSlots() values
+	 * @return The number of queued footmen
+	 */
+	int schedule(UnitRoster roster, int[] into) {
+		int numQueued = 0;
+		for (int slot = 0; slot < roster.numSlots(); slot++) {
+			if (urgencies[slot] == NOT_QUEUED) {
+				continue;
+			}
+			if (!roster.isAlive(slot)) {
+				urgencies[slot] = NOT_QUEUED;
+				continue;
+			}
+			//most urgent, then longest waiting, then roster order, in one primitive sort
+			long key = IDLE - urgencies[slot];
+			key = (key << TURN_BITS) | queuedSince[slot];
+			keys[numQueued++] = (key << SLOT_BITS) | slot;
+		}
+		Arrays.sort(keys, 0, numQueued);
+		for (int i = 0; i < numQueued; i++) {
+			into[i] = (int) (keys[i] & ((1 << SLOT_BITS) - 1));
+		}
+		return numQueued;
+	}
+
+	/**
+	 * @param numDecided The number of footmen that decided on this turn so far
+	 * @param turnStart System.nanoTime() at the start of the turn
+	 * @return true if another footman may decide on this turn
+	 */
+	boolean hasBudget(int numDecided, long turnStart) {
+		if (numDecided == 0) {
+			return true;
+		}
+		return (maxDecisions == 0 || numDecided < maxDecisions) &&
+				(budgetNanos == 0 || System.nanoTime() - turnStart < budgetNanos);
+	}
+
+	/**
+	 * Takes a footman off the queue after it chose a target.
+	 */
+	void decided(int slot) {
+		urgencies[slot] = NOT_QUEUED;
+	}
+}
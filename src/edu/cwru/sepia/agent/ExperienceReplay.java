@@ -0,0 +1,234 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Random;
+
+/**
+ * Fixed capacity ring buffer of transitions, replayed in minibatches to update the linear Q-function.
+ *
+ * A transition holds the features of the (footman, enemy) pair that was chosen, the reward the footman got
+ * until its next choice, and the features of every enemy it could attack at that next choice, which are
+ * needed to compute the max Q-value of the target with the weights at replay time. A transition without
+ * candidates, the footman's last choice before it died or the episode ended, is terminal and its target is
+ * just the reward.
+ *
+ * Everything is stored in flat primitive arrays allocated up front, so adding a transition and training
+ * on a minibatch don't allocate. Once the buffer is full the oldest transitions are overwritten.
+ *
+ * Minibatches are sampled uniformly, or in proportion to each transition's last TD error when prioritized
+ * (using a sum tree, with importance sampling weights to correct for the bias).
+ */
+final class ExperienceReplay {
+
+	//how strongly the TD error determines the sampling probability, 0 is uniform
+	private static final double PRIORITY_EXPONENT = 0.6;
+	//how much of the sampling bias the importance sampling weights correct, 1 is all of it
+	private static final double IMPORTANCE_EXPONENT = 0.4;
+	//keeps transitions with no TD error from never being sampled again
+	private static final double MIN_PRIORITY = 1e-3;
+
+	private final int capacity;
+	private final int numFeatures;
+	private final boolean prioritized;
+
+	//most candidates a transition can hold, grows if a map with more enemies is played
+	private int maxCandidates;
+
+	private final double[] features;
+	private final double[] rewards;
+	private final int[] numCandidates;
+	private double[] candidates;
+
+	//sum tree over the priorities: leaves start at capacity, node i is the sum of nodes 2i and 2i + 1
+	private final double[] priorityTree;
+	private double maxPriority = 1;
+
+	private int next;
+	private int size;
+
+	//minibatch scratch space
+	private int[] batch = new int[0];
+	private double[] batchErrors = new double[0];
+	private double[] batchImportance = new double[0];
+	private final double[] gradient;
+
+	/**
+	 * @param capacity Number of transitions to keep
+	 * @param numFeatures Length of a feature vector
+	 * @param maxCandidates Most enemies a footman can choose from, e.g. the number of enemies at the start
+	 * @param prioritized Sample by TD error instead of uniformly
+	 */
+	ExperienceReplay(int capacity, int numFeatures, int maxCandidates, boolean prioritized) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.numFeatures = numFeatures;
+		this.maxCandidates = Math.max(maxCandidates, 1);
+		this.prioritized = prioritized;
+
+		features = new double[capacity * numFeatures];
+		rewards = new double[capacity];
+		numCandidates = new int[capacity];
+		candidates = new double[capacity * this.maxCandidates * numFeatures];
+		priorityTree = prioritized ? new double[2 * capacity] : null;
+		gradient = new double[numFeatures];
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Makes room for transitions with up to the given number of candidates. Only allocates when a map
+	 * with more enemies than any before is played.
+	 */
+	void ensureCandidateCapacity(int count) {
+		if (count <= maxCandidates) {
+			return;
+		}
+		int stride = maxCandidates * numFeatures;
+		int newStride = count * numFeatures;
+		double[] resized = new double[capacity * newStride];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(candidates, i * stride, resized, i * newStride, numCandidates[i] * numFeatures);
+		}
+		candidates = resized;
+		maxCandidates = count;
+	}
+
+	/**
+	 * Stores a transition, overwriting the oldest one if the buffer is full.
+	 *
+	 * @param source Array holding the chosen pair's features
+	 * @param featureOffset Index of the first chosen feature in source
+	 * @param reward The footman's reward
+	 * @param candidateSource Array holding the candidates' feature vectors, back to back
+	 * @param candidateOffset Index of the first candidate feature in candidateSource
+	 * @param count Number of candidates, 0 for a terminal transition
+	 */
+	void add(double[] source, int featureOffset, double reward,
+			double[] candidateSource, int candidateOffset, int count) {
+		ensureCandidateCapacity(count);
+
+		int i = next;
+		System.arraycopy(source, featureOffset, features, i * numFeatures, numFeatures);
+		rewards[i] = reward;
+		numCandidates[i] = count;
+		System.arraycopy(candidateSource, candidateOffset, candidates, i * maxCandidates * numFeatures,
+				count * numFeatures);
+		if (prioritized) {
+			//new transitions are sampled at least once with high probability
+			setPriority(i, maxPriority);
+		}
+
+		next = (next + 1) % capacity;
+		size = Math.min(size + 1, capacity);
+	}
+
+	/**
+	 * Samples one minibatch and applies a single gradient step for it, in place.
+	 *
+	 * The gradient is the sum over the batch, so each transition moves the weights as much as an online
+	 * update with the same learning rate would.
+	 *
+	 * @param weights The Q-function weights, updated in place
+	 * @param batchSize Number of transitions in the minibatch
+	 * @param gamma Discount factor
+	 * @param learningRate Step size
+	 * @param random Source of randomness for sampling
+	 */
+	void train(double[] weights, int batchSize, double gamma, double learningRate, Random random) {
+		if (size == 0) {
+			return;
+		}
+		if (batch.length < batchSize) {
+			batch = new int[batchSize];
+			batchErrors = new double[batchSize];
+			batchImportance = new double[batchSize];
+		}
+		sample(batchSize, random);
+
+		double maxImportance = 0;
+		for (int b = 0; b < batchSize; b++) {
+			int i = batch[b];
+
+			double target = rewards[i];
+			if (numCandidates[i] > 0) {
+				int candidateOffset = i * maxCandidates * numFeatures;
+				double maxQ = Double.NEGATIVE_INFINITY;
+				for (int c = 0; c < numCandidates[i]; c++, candidateOffset += numFeatures) {
+					maxQ = Math.max(maxQ, LinearQKernel.score(weights, candidates, candidateOffset));
+				}
+				target += gamma * maxQ;
+			}
+			batchErrors[b] = target - LinearQKernel.score(weights, features, i * numFeatures);
+
+			batchImportance[b] = 1;
+			if (prioritized) {
+				double probability = priorityTree[capacity + i] / priorityTree[1];
+				batchImportance[b] = Math.pow(size * probability, -IMPORTANCE_EXPONENT);
+				maxImportance = Math.max(maxImportance, batchImportance[b]);
+			}
+		}
+
+		for (int k = 0; k < numFeatures; k++) {
+			gradient[k] = 0;
+		}
+		for (int b = 0; b < batchSize; b++) {
+			//normalized so the largest weight is 1 and updates are only ever scaled down
+			double scale = prioritized ? batchErrors[b] * batchImportance[b] / maxImportance : batchErrors[b];
+			int offset = batch[b] * numFeatures;
+			for (int k = 0; k < numFeatures; k++) {
+				gradient[k] += scale * features[offset + k];
+			}
+		}
+
+		for (int k = 0; k < numFeatures; k++) {
+			weights[k] += learningRate * gradient[k];
+		}
+
+		if (prioritized) {
+			for (int b = 0; b < batchSize; b++) {
+				double priority = Math.pow(Math.abs(batchErrors[b]) + MIN_PRIORITY, PRIORITY_EXPONENT);
+				maxPriority = Math.max(maxPriority, priority);
+				setPriority(batch[b], priority);
+			}
+		}
+	}
+
+	//fills the first batchSize entries of batch with transition indices
+	private void sample(int batchSize, Random random) {
+		if (!prioritized) {
+			for (int b = 0; b < batchSize; b++) {
+				batch[b] = random.nextInt(size);
+			}
+			return;
+		}
+
+		//stratified: one sample from each of batchSize equal slices of the total priority
+		double segment = priorityTree[1] / batchSize;
+		for (int b = 0; b < batchSize; b++) {
+			double value = (b + random.nextDouble()) * segment;
+			int node = 1;
+			while (node < capacity) {
+				int left = 2 * node;
+				if (value < priorityTree[left] || priorityTree[left + 1] == 0) {
+					node = left;
+				} else {
+					value -= priorityTree[left];
+					node = left + 1;
+				}
+			}
+			batch[b] = Math.min(node - capacity, size - 1);
+		}
+	}
+
+	private void setPriority(int i, double priority) {
+		int node = capacity + i;
+		double change = priority - priorityTree[node];
+		while (node >= 1) {
+			priorityTree[node] += change;
+			node /= 2;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * The per-turn inputs the features are computed from, prepared once per turn by FeatureTensor and shared by
+ * every feature and every pair.
+ *
+ * Footmen are indexed by row and enemies by column, as in the tensor. Which arrays are filled depends on
+ * the flags the registered features ask for; the others keep whatever they held before.
+ */
+final class FeatureInputs {
+
+	/**
+	 * IDs, positions and the number of live units on both sides. Always filled.
+	 */
+	static final int POSITIONS = 1;
+
+	/**
+	 * attackerHP and defenderHP.
+	 */
+	static final int HP = 1 << 1;
+
+	/**
+	 * The command graph of the last turn: attackerTarget, defenderTarget and targetedByFriendlies.
+	 */
+	static final int COMMANDS = 1 << 2;
+
+	/**
+	 * distance and closenessRank of the pair being computed.
+	 */
+	static final int DISTANCES = 1 << 3;
+
+	int numAttackers;
+	int numDefenders;
+
+	int[] attackerIds = new int[0];
+	int[] attackerX = new int[0];
+	int[] attackerY = new int[0];
+	int[] attackerHP = new int[0];
+	//the enemy each footman was sent after on the last turn, -1 if it wasn't sent a command
+	int[] attackerTarget = new int[0];
+
+	int[] defenderIds = new int[0];
+	int[] defenderX = new int[0];
+	int[] defenderY = new int[0];
+	int[] defenderHP = new int[0];
+	//the unit each enemy was sent after on the last turn, -1 if it wasn't sent a command
+	int[] defenderTarget = new int[0];
+	//how many of our footmen were sent after each enemy on the last turn
+	int[] targetedByFriendlies = new int[0];
+
+	//the range of the enemies' HP, filled with HP
+	int minDefenderHP;
+	int maxDefenderHP;
+	//the most footmen sent after one enemy on the last turn, filled with COMMANDS
+	int maxTargetedByFriendlies;
+
+	//Chebyshev distance of the current pair, and how many enemies are strictly closer to the footman
+	int distance;
+	int closenessRank;
+
+	/**
+	 * Makes room for the given numbers of units and sets the counts.
+	 */
+	void resize(int attackers, int defenders) {
+		numAttackers = attackers;
+		numDefenders = defenders;
+		if (attackerIds.length < attackers) {
+			attackerIds = new int[attackers];
+			attackerX = new int[attackers];
+			attackerY = new int[attackers];
+			attackerHP = new int[attackers];
+			attackerTarget = new int[attackers];
+		}
+		if (defenderIds.length < defenders) {
+			defenderIds = new int[defenders];
+			defenderX = new int[defenders];
+			defenderY = new int[defenders];
+			defenderHP = new int[defenders];
+			defenderTarget = new int[defenders];
+			targetedByFriendlies = new int[defenders];
+		}
+	}
+}
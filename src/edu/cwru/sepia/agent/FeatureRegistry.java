@@ -0,0 +1,266 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ordered list of features the Q-function is built from. Feature i is multiplied by weights[i], so
+ * the number of weights and their layout follow from the order here.
+ *
+ * To add a feature, write a PairFeature that declares the inputs it reads and add it to KNOWN, so it can
+ * be selected by name, and to DEFAULT if the agent should use it by default. Weights saved for a different
+ * list of features can't be loaded.
+ */
+final class FeatureRegistry {
+
+	/**
+	 * f0 is a constant.
+	 */
+	static final PairFeature CONSTANT = new PairFeature() {
+		@Override
+		public String name() {
+			return "constant";
+		}
+
+		@Override
+		public int inputs() {
+			return 0;
+		}
+
+		@Override
+		public double value(FeatureInputs in, int a, int d) {
+			return 1;
+		}
+
+		@Override
+		public double min(FeatureInputs in, int a) {
+			return 1;
+		}
+
+		@Override
+		public double max(FeatureInputs in, int a) {
+			return 1;
+		}
+	};
+
+	/**
+	 * f1 is the number of enemies left minus the rank of how close this enemy is to the footman compared to
+	 * the others in terms of chebyshev distance.
+	 * Chose to use the feature because it causes the footmen to favor attacking closer enemies
+	 */
+	static final PairFeature CLOSENESS = new PairFeature() {
+		@Override
+		public String name() {
+			return "closeness";
+		}
+
+		@Override
+		public int inputs() {
+			return FeatureInputs.DISTANCES;
+		}
+
+		@Override
+		public double value(FeatureInputs in, int a, int d) {
+			return in.numDefenders - in.closenessRank;
+		}
+
+		//enemies further away are ranked no better
+		@Override
+		public double min(FeatureInputs in, int a) {
+			return 1;
+		}
+
+		@Override
+		public double max(FeatureInputs in, int a) {
+			return in.numDefenders - in.closenessRank;
+		}
+	};
+
+	/**
+	 * f2 is the health ratio of the friendly footman to its target
+	 * This features causes the footmen to favor attacking enemies weaker that themselves
+	 */
+	static final PairFeature HEALTH_RATIO = new PairFeature() {
+		@Override
+		public String name() {
+			return "healthRatio";
+		}
+
+		@Override
+		public int inputs() {
+			return FeatureInputs.HP;
+		}
+
+		@Override
+		public double value(FeatureInputs in, int a, int d) {
+			return in.attackerHP[a] / in.defenderHP[d];
+		}
+
+		//the integer division is monotonic in the enemy's HP
+		@Override
+		public double min(FeatureInputs in, int a) {
+			return Math.min(in.attackerHP[a] / in.minDefenderHP, in.attackerHP[a] / in.maxDefenderHP);
+		}
+
+		@Override
+		public double max(FeatureInputs in, int a) {
+			return Math.max(in.attackerHP[a] / in.minDefenderHP, in.attackerHP[a] / in.maxDefenderHP);
+		}
+	};
+
+	/**
+	 * f3 is the number of friendly units also attacking the target divided by the total number of friendlies.
+	 * The footman's own attack from the last turn doesn't count
+	 */
+	static final PairFeature FRIENDLIES_ATTACKING = new PairFeature() {
+		@Override
+		public String name() {
+			return "friendliesAttacking";
+		}
+
+		@Override
+		public int inputs() {
+			return FeatureInputs.COMMANDS;
+		}
+
+		@Override
+		public double value(FeatureInputs in, int a, int d) {
+			int numFriendliesAlsoAttacking = in.targetedByFriendlies[d];
+			if (in.attackerTarget[a] == in.defenderIds[d]) {
+				numFriendliesAlsoAttacking--;
+			}
+			return numFriendliesAlsoAttacking / in.numAttackers;
+		}
+
+		@Override
+		public double min(FeatureInputs in, int a) {
+			return 0;
+		}
+
+		@Override
+		public double max(FeatureInputs in, int a) {
+			return in.maxTargetedByFriendlies / in.numAttackers;
+		}
+	};
+
+	/**
+	 * f4 is 1 if the target was attacking this footman on the last turn, -1 otherwise
+	 * Chose to use the feature because it encourages footmen to defend themselves
+	 */
+	static final PairFeature ATTACKING_ME = new PairFeature() {
+		@Override
+		public String name() {
+			return "attackingMe";
+		}
+
+		@Override
+		public int inputs() {
+			return FeatureInputs.COMMANDS;
+		}
+
+		@Override
+		public double value(FeatureInputs in, int a, int d) {
+			return in.defenderTarget[d] == in.attackerIds[a] ? 1 : -1;
+		}
+
+		@Override
+		public double min(FeatureInputs in, int a) {
+			return -1;
+		}
+
+		@Override
+		public double max(FeatureInputs in, int a) {
+			return 1;
+		}
+	};
+
+	//consider avoiding those with higher health than you
+	//consider attacking closest
+	//consider attacking the those with lowest relative health
+	//consider attacking one that is attacking you
+	//consider attacking one that others are already attacking
+	//consider attacking those attacking your homies
+	//consider continuing to attack the one you attacked last time
+
+	/**
+	 * The features RLAgent uses.
+	 */
+	static final FeatureRegistry DEFAULT = new FeatureRegistry(CONSTANT, CLOSENESS, HEALTH_RATIO,
+			FRIENDLIES_ATTACKING, ATTACKING_ME);
+
+	//every feature that can be selected by name
+	private static final PairFeature[] KNOWN = { CONSTANT, CLOSENESS, HEALTH_RATIO, FRIENDLIES_ATTACKING,
+			ATTACKING_ME };
+
+	private final PairFeature[] features;
+	private final int inputs;
+
+	FeatureRegistry(PairFeature... features) {
+		this.features = features.clone();
+		int needed = FeatureInputs.POSITIONS;
+		for (PairFeature feature : features) {
+			needed |= feature.inputs();
+		}
+		inputs = needed;
+	}
+
+	/**
+	 * Builds a registry from feature names, e.g. for the features agent option.
+	 *
+	 * @param names Comma separated feature names in weight order, e.g. constant,closeness, or null
+	 * @return The registry of the named features, DEFAULT if names is null
+	 * @throws IllegalArgumentException If a name isn't known
+	 */
+	static FeatureRegistry select(String names) {
+		if (names == null) {
+			return DEFAULT;
+		}
+		List<PairFeature> selected = new ArrayList<>();
+		for (String name : names.split(",")) {
+			PairFeature found = null;
+			for (PairFeature feature : KNOWN) {
+				if (feature.name().equals(name.trim())) {
+					found = feature;
+				}
+			}
+			if (found == null) {
+				throw new IllegalArgumentException("Unknown feature " + name.trim());
+			}
+			selected.add(found);
+		}
+		return new FeatureRegistry(selected.toArray(new PairFeature[selected.size()]));
+	}
+
+	/**
+	 * @return The number of features, which is also the number of weights
+	 */
+	int size() {
+		return features.length;
+	}
+
+	/**
+	 * @return The feature multiplied by weights[i]
+	 */
+	PairFeature get(int i) {
+		return features[i];
+	}
+
+	/**
+	 * @return true if some feature reads the given FeatureInputs input
+	 */
+	boolean needs(int input) {
+		return (inputs & input) != 0;
+	}
+
+	/**
+	 * @return The names of the features in weight order
+	 */
+	List<String> names() {
+		List<String> names = new ArrayList<>();
+		for (PairFeature feature : features) {
+			names.add(feature.name());
+		}
+		return Collections.unmodifiableList(names);
+	}
+}
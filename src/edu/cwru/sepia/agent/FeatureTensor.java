@@ -0,0 +1,434 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.util.DistanceMetrics;
+
+import java.util.*;
+
+/**
+ * Per-turn cache of the feature vectors for every (attacker, defender) pair.
+ *
+ * The features for all pairs are computed once per turn from shared inputs (positions, HP and last
+ * turn's commands) and stored in one flat array laid out as [attacker][defender][feature]. Action
+ * selection, the max Q-value and the weight update all read from here instead of recomputing the
+ * features for each call.
+ *
+ * Which features there are comes from a FeatureRegistry. Only the inputs the registered features read are
+ * prepared, once per turn, and then every feature is computed in a single pass over the pairs.
+ *
+ * A lazy tensor only prepares the inputs when it is built and computes the features of a pair the first
+ * time they are read. With argmax ruling out most enemies without reading their features, choosing a target
+ * then costs less than computing every pair in big battles.
+ */
+final class FeatureTensor {
+
+	private final FeatureRegistry registry;
+	private final int numFeatures;
+	private final boolean lazy;
+
+	//the turn the tensor was built for, -1 when it needs to be rebuilt
+	private int turn = -1;
+
+	private int numAttackers;
+	private int numDefenders;
+	//the rosters the tensor was built from, and the row or column of each of their slots (-1 if dead)
+	private UnitRoster attackers;
+	private UnitRoster defenders;
+	private int[] attackerRows = new int[0];
+	private int[] defenderColumns = new int[0];
+
+	//flat [attacker][defender][feature] storage, reused between turns
+	private double[] data = new double[0];
+	//for a lazy tensor, the pairs in data were computed since the last build if their stamp is buildStamp
+	private int[] pairStamps = new int[0];
+	private int buildStamp;
+	private double[] scores = new double[0];
+	//the enemies nearest to a footman, closest first, for argmax
+	private int[] nearest = new int[0];
+
+	//the inputs of the features, reused between turns
+	private final FeatureInputs inputs = new FeatureInputs();
+
+	//the enemies by position, kept up to date between turns as they move and die
+	private final SpatialIndex defenderPositions = new SpatialIndex();
+	//the enemies in defenderPositions
+	private int[] indexedIds = new int[0];
+	private int numIndexed;
+
+	FeatureTensor() {
+		this(FeatureRegistry.DEFAULT);
+	}
+
+	FeatureTensor(FeatureRegistry registry) {
+		this(registry, false);
+	}
+
+	/**
+	 * @param registry The features to compute
+	 * @param lazy true to compute the features of a pair only when they are read
+	 */
+	FeatureTensor(FeatureRegistry registry, boolean lazy) {
+		this.registry = registry;
+		numFeatures = registry.size();
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Marks the tensor as stale, e.g. when a new episode starts or units were removed from the rosters.
+	 */
+	void invalidate() {
+		turn = -1;
+	}
+
+	/**
+	 * @return true if the tensor was built for the given turn and has not been invalidated since
+	 */
+	boolean isCurrent(int turnNumber) {
+		return turn >= 0 && turn == turnNumber;
+	}
+
+	/**
+	 * Computes the features for every pair of friendly and enemy footmen on the current turn.
+	 *
+	 * @param view The current turn of the battle
+	 * @param playernum Our player number
+	 * @param myFootmen Our footmen, with their HP and positions refreshed for this turn
+	 * @param enemyFootmen The enemy footmen, with their HP and positions refreshed for this turn
+	 */
+	void build(BattleView view, int playernum, UnitRoster myFootmen, UnitRoster enemyFootmen) {
+
+		attackers = myFootmen;
+		defenders = enemyFootmen;
+		numAttackers = myFootmen.size();
+		numDefenders = enemyFootmen.size();
+		ensureCapacity();
+		FeatureInputs in = inputs;
+		boolean needsHP = registry.needs(FeatureInputs.HP);
+		boolean needsCommands = registry.needs(FeatureInputs.COMMANDS);
+		boolean needsDistances = registry.needs(FeatureInputs.DISTANCES);
+
+		int a = 0;
+		for (int slot = 0; slot < myFootmen.numSlots(); slot++) {
+			attackerRows[slot] = myFootmen.isAlive(slot) ? a : -1;
+			if (myFootmen.isAlive(slot)) {
+				in.attackerIds[a] = myFootmen.id(slot);
+				in.attackerX[a] = myFootmen.x(slot);
+				in.attackerY[a] = myFootmen.y(slot);
+				in.attackerHP[a] = myFootmen.hp(slot);
+				in.attackerTarget[a] = -1;
+				a++;
+			}
+		}
+		int d = 0;
+		for (int slot = 0; slot < enemyFootmen.numSlots(); slot++) {
+			defenderColumns[slot] = enemyFootmen.isAlive(slot) ? d : -1;
+			if (enemyFootmen.isAlive(slot)) {
+				in.defenderIds[d] = enemyFootmen.id(slot);
+				in.defenderX[d] = enemyFootmen.x(slot);
+				in.defenderY[d] = enemyFootmen.y(slot);
+				in.defenderHP[d] = enemyFootmen.hp(slot);
+				in.defenderTarget[d] = -1;
+				in.targetedByFriendlies[d] = 0;
+				d++;
+			}
+		}
+		if (needsDistances) {
+			updateDefenderPositions(view);
+		}
+
+		if (needsHP && numDefenders > 0) {
+			in.minDefenderHP = in.defenderHP[0];
+			in.maxDefenderHP = in.defenderHP[0];
+			for (d = 1; d < numDefenders; d++) {
+				in.minDefenderHP = Math.min(in.minDefenderHP, in.defenderHP[d]);
+				in.maxDefenderHP = Math.max(in.maxDefenderHP, in.defenderHP[d]);
+			}
+		}
+
+		//who everybody was attacking on the last turn
+		if (needsCommands && view.getTurnNumber() != 0) {
+			TurnLog lastTurn = view.getLastTurn();
+			for (int i = 0; i < lastTurn.numCommands(); i++) {
+				int target = lastTurn.commandTarget(i);
+				if (lastTurn.commandPlayer(i) == playernum) {
+					int column = defenderIndex(target);
+					if (column >= 0) {
+						in.targetedByFriendlies[column]++;
+					}
+					int row = attackerIndex(lastTurn.commandUnit(i));
+					if (row >= 0) {
+						in.attackerTarget[row] = target;
+					}
+				} else if (lastTurn.commandPlayer(i) == RLAgent.ENEMY_PLAYERNUM) {
+					int column = defenderIndex(lastTurn.commandUnit(i));
+					if (column >= 0) {
+						in.defenderTarget[column] = target;
+					}
+				}
+			}
+		}
+
+		if (needsCommands) {
+			in.maxTargetedByFriendlies = 0;
+			for (d = 0; d < numDefenders; d++) {
+				in.maxTargetedByFriendlies = Math.max(in.maxTargetedByFriendlies, in.targetedByFriendlies[d]);
+			}
+		}
+
+		turn = view.getTurnNumber();
+		if (lazy) {
+			buildStamp++;
+			return;
+		}
+
+		int offset = 0;
+		for (a = 0; a < numAttackers; a++) {
+			int x = in.attackerX[a];
+			int y = in.attackerY[a];
+			for (d = 0; d < numDefenders; d++) {
+				if (needsDistances) {
+					in.distance = DistanceMetrics.chebyshevDistance(x, y, in.defenderX[d], in.defenderY[d]);
+					in.closenessRank = defenderPositions.countCloser(x, y, in.distance);
+				}
+				for (int f = 0; f < numFeatures; f++) {
+					data[offset++] = registry.get(f).value(in, a, d);
+				}
+			}
+		}
+	}
+
+	int numAttackers() {
+		return numAttackers;
+	}
+
+	int numDefenders() {
+		return numDefenders;
+	}
+
+	int attackerId(int a) {
+		return inputs.attackerIds[a];
+	}
+
+	int defenderId(int d) {
+		return inputs.defenderIds[d];
+	}
+
+	/**
+	 * @return the length of the feature vector of a pair
+	 */
+	int numFeatures() {
+		return numFeatures;
+	}
+
+	/**
+	 * @return the row of the given footman, or -1 if it was not in the roster when the tensor was built
+	 */
+	int attackerIndex(int attackerId) {
+		int slot = attackers == null ? -1 : attackers.slotOf(attackerId);
+		return slot < 0 ? -1 : attackerRows[slot];
+	}
+
+	/**
+	 * @return the column of the given enemy, or -1 if it was not in the roster when the tensor was built
+	 */
+	int defenderIndex(int defenderId) {
+		int slot = defenders == null ? -1 : defenders.slotOf(defenderId);
+		return slot < 0 ? -1 : defenderColumns[slot];
+	}
+
+	/**
+	 * Copies the feature vector of one pair into a new array.
+	 */
+	double[] features(int a, int d) {
+		return Arrays.copyOfRange(data, pairOffset(a, d), offset(a, d) + numFeatures);
+	}
+
+	/**
+	 * @return the Q-value of one pair under the given weights
+	 */
+	double score(int a, int d, double[] weights) {
+		return LinearQKernel.score(weights, data, pairOffset(a, d));
+	}
+
+	/**
+	 * Scores every defender for one attacker in a single pass over its row.
+	 *
+	 * @param a The attacker's row
+	 * @param weights The Q-function weights
+	 * @param scores Receives the Q-value of defender d at index d, must hold at least numDefenders values
+	 */
+	void scoreAll(int a, double[] weights, double[] scores) {
+		LinearQKernel.scoreAll(weights, data, rowOffset(a), numDefenders, scores);
+	}
+
+	/**
+	 * Finds the enemy with the highest Q-value for a footman, the first in column order if several tie.
+	 *
+	 * A lazy tensor goes through the enemies closest first and stops as soon as no enemy further away can
+	 * beat the best one so far, going by the bounds of the features (PairFeature.min and max). When the
+	 * weights favour close enemies only the enemies near the footman have their features computed. The
+	 * enemy found is the same as when every enemy is scored.
+	 *
+	 * @param a The attacker's row
+	 * @param weights The Q-function weights
+	 * @return The column of the best enemy, -1 if there are no enemies
+	 */
+	int argmax(int a, double[] weights) {
+		//without distances the enemies aren't indexed by position and there is no order to prune in
+		if (!lazy || !registry.needs(FeatureInputs.DISTANCES)) {
+			if (scores.length < numDefenders) {
+				scores = new double[numDefenders];
+			}
+			scoreAll(a, weights, scores);
+			return LinearQKernel.argmax(scores, numDefenders);
+		}
+
+		FeatureInputs in = inputs;
+		int x = in.attackerX[a];
+		int y = in.attackerY[a];
+		int numNearest = 0;
+		int rank = 0;
+		int rankDistance = -1;
+		int best = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numDefenders; i++) {
+			//find the nearest enemies in growing batches, the order of the ones found before doesn't change
+			if (i == numNearest) {
+				int k = Math.min(Math.max(2 * numNearest, 8), numDefenders);
+				if (nearest.length < k) {
+					nearest = new int[k];
+				}
+				numNearest = defenderPositions.nearest(x, y, k, nearest);
+			}
+			int d = defenderIndex(nearest[i]);
+			int distance = DistanceMetrics.chebyshevDistance(x, y, in.defenderX[d], in.defenderY[d]);
+			if (distance != rankDistance) {
+				rank = i;
+				rankDistance = distance;
+			}
+			//the bound of every feature is no smaller than its value, so neither is their weighted sum
+			if (best >= 0) {
+				in.distance = distance;
+				in.closenessRank = rank;
+				double bound = 0;
+				for (int f = 0; f < numFeatures; f++) {
+					PairFeature feature = registry.get(f);
+					bound += Math.max(weights[f] * feature.min(in, a), weights[f] * feature.max(in, a));
+				}
+				if (bound < bestScore) {
+					break;
+				}
+			}
+			double score = score(a, d, weights);
+			if (best < 0 || score > bestScore || (score == bestScore && d < best)) {
+				best = d;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the flat storage, the features of pair (a, d) start at offset(a, d)
+	 */
+	double[] data() {
+		return data;
+	}
+
+	/**
+	 * @return the index in data() of the first feature of pair (a, d), the defenders of one attacker are
+	 * stored back to back
+	 */
+	int offset(int a, int d) {
+		return (a * numDefenders + d) * numFeatures;
+	}
+
+	/**
+	 * offset(a, d), computing the features of the pair first if the tensor is lazy.
+	 */
+	int pairOffset(int a, int d) {
+		if (lazy) {
+			computePair(a, d);
+		}
+		return offset(a, d);
+	}
+
+	/**
+	 * offset(a, 0), computing the features of the attacker's row first if the tensor is lazy.
+	 */
+	int rowOffset(int a) {
+		if (lazy) {
+			for (int d = 0; d < numDefenders; d++) {
+				computePair(a, d);
+			}
+		}
+		return offset(a, 0);
+	}
+
+	//fills in the features of a pair of a lazy tensor unless they were computed since the last build
+	private void computePair(int a, int d) {
+		int pair = a * numDefenders + d;
+		if (pairStamps[pair] == buildStamp) {
+			return;
+		}
+		FeatureInputs in = inputs;
+		if (registry.needs(FeatureInputs.DISTANCES)) {
+			in.distance = DistanceMetrics.chebyshevDistance(in.attackerX[a], in.attackerY[a], in.defenderX[d],
+					in.defenderY[d]);
+			in.closenessRank = defenderPositions.countCloser(in.attackerX[a], in.attackerY[a], in.distance);
+		}
+		int offset = pair * numFeatures;
+		for (int f = 0; f < numFeatures; f++) {
+			data[offset + f] = registry.get(f).value(in, a, d);
+		}
+		pairStamps[pair] = buildStamp;
+	}
+
+	/**
+	 * Moves the enemies in the spatial index to their current positions and removes the ones that are no
+	 * longer in the roster. Only the enemies that moved or died change the index.
+	 */
+	private void updateDefenderPositions(BattleView view) {
+		if (!defenderPositions.covers(view.getXExtent(), view.getYExtent())) {
+			defenderPositions.reset(view.getXExtent(), view.getYExtent());
+			numIndexed = 0;
+		}
+		for (int i = 0; i < numIndexed; i++) {
+			if (defenderIndex(indexedIds[i]) < 0) {
+				defenderPositions.remove(indexedIds[i]);
+			}
+		}
+		for (int d = 0; d < numDefenders; d++) {
+			defenderPositions.put(inputs.defenderIds[d], inputs.defenderX[d], inputs.defenderY[d]);
+		}
+		if (indexedIds.length < numDefenders) {
+			indexedIds = new int[numDefenders];
+		}
+		System.arraycopy(inputs.defenderIds, 0, indexedIds, 0, numDefenders);
+		numIndexed = numDefenders;
+	}
+
+	/**
+	 * @return the enemies in the roster the tensor was last built from, by position
+	 */
+	SpatialIndex defenderPositions() {
+		return defenderPositions;
+	}
+
+	private void ensureCapacity() {
+		inputs.resize(numAttackers, numDefenders);
+		if (attackerRows.length < attackers.numSlots()) {
+			attackerRows = new int[attackers.numSlots()];
+		}
+		if (defenderColumns.length < defenders.numSlots()) {
+			defenderColumns = new int[defenders.numSlots()];
+		}
+		int size = numAttackers * numDefenders * numFeatures;
+		if (data.length < size) {
+			data = new double[size];
+		}
+		if (lazy && pairStamps.length < numAttackers * numDefenders) {
+			//stamps start out as 0 and buildStamp is positive after the build, so no pair counts as computed
+			pairStamps = new int[numAttackers * numDefenders];
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains one agent per combination of settings, several at a time, and writes one table of how well each
+ * one learned.
+ *
+ * Every run trains its own RLAgent in CombatSimulator against a ScriptedOpponent, with its own seed, and
+ * writes its final weights (in the format of saveWeights, or qfunction.bin for the tiles and mlp Q-functions)
+ * and its learning curve (the average reward of every evaluation round) to its own directory. The agents are
+ * headless (session.headless=true), so they print nothing and leave saving to the sweep. results.tsv in the
+ * output directory has one line per run with its settings, its last and best average evaluation reward and
+ * how long it took.
+ *
+ * The spec file has one name=value per line, # starts a comment. Alternatives are separated by |:
+ *
+ * search=grid                 grid (every combination) or random
+ * samples=20                  combinations to draw for a random search
+ * samples.seed=1              seed of the random search
+ * episodes=300                episodes per run
+ * seeds=1|2|3                 every combination is trained once per seed
+ * map=data/rl_5fv5f.xml       the maps to train on
+ * learn.gamma=0.8|0.9|0.95    anything else is passed to the agent as an option, see AgentOptions
+ * learn.rate=0.00001..0.001   a range, drawn uniformly by a random search
+ * features=constant,closeness|constant,closeness,healthRatio
+ *
+ * Usage: HyperparameterSweep specFile outputDirectory [threads]
+ */
+public class HyperparameterSweep {
+
+	//spec settings that belong to the sweep rather than the agent
+	private static final List<String> SWEEP_SETTINGS = Arrays.asList("search", "samples", "samples.seed",
+			"episodes", "seeds", "map");
+
+	/**
+	 * One training run: a map, a seed and the agent options.
+	 */
+	private static final class Run {
+		final int index;
+		final String map;
+		final long seed;
+		final Map<String, String> options;
+
+		Run(int index, String map, long seed, Map<String, String> options) {
+			this.index = index;
+			this.map = map;
+			this.seed = seed;
+			this.options = options;
+		}
+	}
+
+	/**
+	 * What a run achieved.
+	 */
+	private static final class Result {
+		final Run run;
+		final double finalReward;
+		final double bestReward;
+		final double seconds;
+
+		Result(Run run, double finalReward, double bestReward, double seconds) {
+			this.run = run;
+			this.finalReward = finalReward;
+			this.bestReward = bestReward;
+			this.seconds = seconds;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: HyperparameterSweep specFile outputDirectory [threads]");
+			System.exit(1);
+		}
+		Map<String, List<String>> spec = readSpec(new File(args[0]));
+		final File outputDirectory = new File(args[1]);
+		int numThreads = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		final int episodes = Integer.parseInt(single(spec, "episodes", "300"));
+		if (!spec.containsKey("map")) {
+			System.err.println("The spec doesn't name a map");
+			System.exit(1);
+		}
+		List<String> swept = new ArrayList<>();
+		for (String name : spec.keySet()) {
+			if (!SWEEP_SETTINGS.contains(name)) {
+				swept.add(name);
+			}
+		}
+		List<Run> runs = single(spec, "search", "grid").equals("random") ? randomRuns(spec, swept) :
+				gridRuns(spec, swept);
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("Failed to create " + outputDirectory);
+		}
+
+		System.out.println(runs.size() + " runs of " + episodes + " episodes on " + numThreads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<Result>> futures = new ArrayList<>();
+		for (final Run run : runs) {
+			futures.add(executor.submit(new Callable<Result>() {
+				@Override
+				public Result call() throws IOException {
+					return train(run, episodes, new File(outputDirectory, String.format("run-%04d", run.index)));
+				}
+			}));
+		}
+		List<Result> results = new ArrayList<>();
+		try {
+			for (Future<Result> future : futures) {
+				Result result = future.get();
+				results.add(result);
+				System.out.println(String.format("run %d done, final reward %.2f", result.run.index,
+						result.finalReward));
+			}
+		} catch (ExecutionException ex) {
+			System.err.println("Run failed. Reason: " + ex.getCause());
+			throw ex;
+		} finally {
+			executor.shutdownNow();
+		}
+
+		File table = new File(outputDirectory, "results.tsv");
+		writeResults(table, results, swept);
+		Collections.sort(results, new Comparator<Result>() {
+			@Override
+			public int compare(Result a, Result b) {
+				return Double.compare(b.finalReward, a.finalReward);
+			}
+		});
+		System.out.println("Wrote " + table + ", best runs:");
+		for (int i = 0; i < Math.min(5, results.size()); i++) {
+			Result result = results.get(i);
+			System.out.println(String.format("%.2f run %d %s seed %d %s", result.finalReward, result.run.index,
+					result.run.map, result.run.seed, result.run.options));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Trains one agent and writes its weights and learning curve.
+	 */
+	private static Result train(Run run, int episodes, File directory) throws IOException {
+		//the sweep saves the weights itself, so the runs don't overwrite each other's
+		List<String> args = new ArrayList<>(Arrays.asList(Integer.toString(episodes), "false",
+				Long.toString(run.seed), "session.headless=true"));
+		for (Map.Entry<String, String> option : run.options.entrySet()) {
+			args.add(option.getKey() + "=" + option.getValue());
+		}
+		RLAgent agent = new RLAgent(0, args.toArray(new String[args.size()]));
+		CombatSimulator simulator = CombatSimulator.load(new File(run.map), new Random(run.seed));
+		ScriptedOpponent opponent = new ScriptedOpponent(RLAgent.ENEMY_PLAYERNUM, agent.getPlayerNumber());
+
+		long start = System.nanoTime();
+		for (int episode = 0; episode < episodes; episode++) {
+			simulator.playEpisode(agent, opponent);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create " + directory);
+		}
+		double best = Double.NaN;
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(directory, "rewards.txt")))) {
+			for (double reward : agent.avgRewards) {
+				writer.write(String.format("%f\n", reward));
+				best = Double.isNaN(best) ? reward : Math.max(best, reward);
+			}
+		}
+		if (agent.getQFunction() != null) {
+			QFunctions.save(agent.getQFunction(), new File(directory, "qfunction.bin"));
+		} else {
+			//same format as RLAgent.saveWeights
+			try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(directory, "weights.txt")))) {
+				for (double weight : agent.weights) {
+					writer.write(String.format("%f\n", weight));
+				}
+			}
+		}
+		double last = agent.avgRewards.isEmpty() ? Double.NaN : agent.avgRewards.get(agent.avgRewards.size() - 1);
+		return new Result(run, last, best, seconds);
+	}
+
+	/**
+	 * Reads the spec file into the alternatives of every setting, in the order they are listed.
+	 */
+	private static Map<String, List<String>> readSpec(File file) throws IOException {
+		Map<String, List<String>> spec = new LinkedHashMap<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int comment = line.indexOf('#');
+				if (comment >= 0) {
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				int equals = line.indexOf('=');
+				if (equals <= 0) {
+					throw new IOException("Expected name=value in " + file + " but got " + line);
+				}
+				List<String> alternatives = new ArrayList<>();
+				for (String alternative : line.substring(equals + 1).split("\\|")) {
+					alternatives.add(alternative.trim());
+				}
+				spec.put(line.substring(0, equals).trim(), alternatives);
+			}
+		}
+		return spec;
+	}
+
+	/**
+	 * @return The value of a setting that can't have alternatives
+	 */
+	private static String single(Map<String, List<String>> spec, String name, String defaultValue) {
+		List<String> alternatives = spec.get(name);
+		if (alternatives == null) {
+			return defaultValue;
+		}
+		if (alternatives.size() != 1) {
+			throw new IllegalArgumentException(name + " can't have alternatives");
+		}
+		return alternatives.get(0);
+	}
+
+	private static List<String> seeds(Map<String, List<String>> spec) {
+		return spec.containsKey("seeds") ? spec.get("seeds") : Collections.singletonList("12345");
+	}
+
+	/**
+	 * @return A run for every combination of map, seed and swept option
+	 */
+	private static List<Run> gridRuns(Map<String, List<String>> spec, List<String> swept) {
+		List<Map<String, String>> combinations = new ArrayList<>();
+		combinations.add(new LinkedHashMap<String, String>());
+		for (String name : swept) {
+			List<Map<String, String>> extended = new ArrayList<>();
+			for (Map<String, String> combination : combinations) {
+				for (String value : spec.get(name)) {
+					if (isRange(value)) {
+						throw new IllegalArgumentException("A grid search can't draw from the range " + name + "=" +
+								value);
+					}
+					Map<String, String> options = new LinkedHashMap<>(combination);
+					options.put(name, value);
+					extended.add(options);
+				}
+			}
+			combinations = extended;
+		}
+
+		List<Run> runs = new ArrayList<>();
+		for (String map : spec.get("map")) {
+			for (Map<String, String> options : combinations) {
+				for (String seed : seeds(spec)) {
+					runs.add(new Run(runs.size(), map, Long.parseLong(seed), options));
+				}
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * @return samples randomly drawn combinations of map and swept options, each run once per seed
+	 */
+	private static List<Run> randomRuns(Map<String, List<String>> spec, List<String> swept) {
+		int samples = Integer.parseInt(single(spec, "samples", "20"));
+		Random random = new Random(Long.parseLong(single(spec, "samples.seed", "1")));
+		List<Run> runs = new ArrayList<>();
+		for (int sample = 0; sample < samples; sample++) {
+			List<String> maps = spec.get("map");
+			String map = maps.get(random.nextInt(maps.size()));
+			Map<String, String> options = new LinkedHashMap<>();
+			for (String name : swept) {
+				List<String> alternatives = spec.get(name);
+				String value = alternatives.get(random.nextInt(alternatives.size()));
+				if (isRange(value)) {
+					String[] bounds = value.split("\\.\\.");
+					double low = Double.parseDouble(bounds[0]);
+					double high = Double.parseDouble(bounds[1]);
+					value = Double.toString(low + random.nextDouble() * (high - low));
+				}
+				options.put(name, value);
+			}
+			for (String seed : seeds(spec)) {
+				runs.add(new Run(runs.size(), map, Long.parseLong(seed), options));
+			}
+		}
+		return runs;
+	}
+
+	//a range is two numbers separated by .., e.g. 0.00001..0.001
+	private static boolean isRange(String value) {
+		return value.matches("[-+0-9.eE]+\\.\\.[-+0-9.eE]+");
+	}
+
+	/**
+	 * Writes one tab separated line per run, in run order.
+	 */
+	private static void writeResults(File table, List<Result> results, List<String> swept) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(table))) {
+			StringBuilder header = new StringBuilder("run\tmap\tseed");
+			for (String name : swept) {
+				header.append('\t').append(name);
+			}
+			writer.write(header.append("\tfinalReward\tbestReward\tseconds\n").toString());
+			for (Result result : results) {
+				StringBuilder line = new StringBuilder();
+				line.append(result.run.index).append('\t').append(result.run.map).append('\t').append(result.run.seed);
+				for (String name : swept) {
+					line.append('\t').append(result.run.options.get(name));
+				}
+				writer.write(line.append(String.format("\t%.2f\t%.2f\t%.1f\n", result.finalReward, result.bestReward,
+						result.seconds)).toString());
+			}
+		}
+	}
+}
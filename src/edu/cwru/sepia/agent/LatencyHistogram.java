@@ -0,0 +1,98 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations in nanoseconds with buckets of roughly equal relative width, so recording is a
+ * couple of shifts and an increment and percentiles are accurate to about 6% at any scale.
+ *
+ * Values below 16 get a bucket each. Above that every power of two is split into 16 buckets. Not thread
+ * safe, each histogram has a single writer.
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+
+	private final long[] counts = new long[NUM_BUCKETS];
+	private long count;
+	private long sum;
+	private long max;
+
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[bucket(nanos)]++;
+		count++;
+		sum += nanos;
+		max = Math.max(max, nanos);
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param fraction e.g. 0.99 for the 99th percentile
+	 * @return The upper end of the bucket holding the given percentile, 0 if nothing was recorded
+	 */
+	long getPercentile(double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(fraction * count), 1);
+		long seen = 0;
+		for (int b = 0; b < NUM_BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= rank) {
+				return Math.min(upperBound(b), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return A copy of this histogram, after which this one is emptied
+	 */
+	LatencyHistogram snapshotAndReset() {
+		LatencyHistogram snapshot = new LatencyHistogram();
+		System.arraycopy(counts, 0, snapshot.counts, 0, NUM_BUCKETS);
+		snapshot.count = count;
+		snapshot.sum = sum;
+		snapshot.max = max;
+
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+		return snapshot;
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	//the largest value that falls in the bucket
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
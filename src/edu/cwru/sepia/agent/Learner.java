@@ -0,0 +1,97 @@
+package edu.cwru.sepia.agent;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The central learner of the parallel training pipeline.
+ *
+ * Actors hand in the change they made to the weights during an episode. The learner thread adds these
+ * changes to the central weights as they arrive and publishes a new copy of the weights for the actors
+ * after every publishInterval changes.
+ */
+final class Learner implements WeightSync, Runnable {
+
+	//queued after the last update to stop the learner thread
+	private static final double[] STOP = new double[0];
+
+	private final BlockingQueue<double[]> updates = new LinkedBlockingQueue<>();
+	private final double[] weights;
+	private final int publishInterval;
+
+	private volatile double[] published;
+	private int numUpdates;
+
+	/**
+	 * @param initialWeights The weights to start learning from
+	 * @param publishInterval How many actor updates to apply before publishing new weights to the actors
+	 */
+	Learner(double[] initialWeights, int publishInterval) {
+		if (publishInterval < 1) {
+			throw new IllegalArgumentException("publishInterval must be positive");
+		}
+		this.publishInterval = publishInterval;
+		weights = initialWeights.clone();
+		publish();
+	}
+
+	@Override
+	public double[] latest() {
+		return published;
+	}
+
+	@Override
+	public double[] exchange(double[] baseWeights, double[] learnedWeights) {
+		double[] delta = new double[weights.length];
+		boolean changed = false;
+		for (int i = 0; i < delta.length; i++) {
+			delta[i] = learnedWeights[i] - baseWeights[i];
+			changed |= delta[i] != 0;
+		}
+		//evaluation episodes don't change the weights, so there's nothing to hand in
+		if (changed) {
+			updates.add(delta);
+		}
+		return published;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				double[] delta = updates.take();
+				if (delta == STOP) {
+					break;
+				}
+				for (int i = 0; i < weights.length; i++) {
+					weights[i] += delta[i];
+				}
+				numUpdates++;
+				if (numUpdates % publishInterval == 0) {
+					publish();
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		publish();
+	}
+
+	/**
+	 * Makes the learner thread stop once it has applied all the updates handed in so far.
+	 */
+	void stop() {
+		updates.add(STOP);
+	}
+
+	/**
+	 * @return How many actor updates have been applied
+	 */
+	int getNumUpdates() {
+		return numUpdates;
+	}
+
+	private void publish() {
+		published = weights.clone();
+	}
+}
@@ -0,0 +1,106 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * The linear Q-function over primitive arrays.
+ *
+ * Feature vectors are read straight out of a flat array (such as the FeatureTensor storage), where
+ * consecutive candidates are stored back to back, so a whole row of candidates can be scored in one call
+ * without copying or boxing. Nothing here depends on the number of features other than the length of the
+ * weight vector.
+ */
+final class LinearQKernel {
+
+	private LinearQKernel() {
+	}
+
+	/**
+	 * @param weights The Q-function weights
+	 * @param features Array holding the feature vector
+	 * @param offset Index of the first feature of the vector in features
+	 * @return The dot product of the weights with one feature vector
+	 */
+	static double score(double[] weights, double[] features, int offset) {
+		double q = 0;
+		for (int i = 0; i < weights.length; i++) {
+			q += weights[i] * features[offset + i];
+		}
+		return q;
+	}
+
+	/**
+	 * Scores count feature vectors stored back to back, starting at offset.
+	 *
+	 * @param weights The Q-function weights
+	 * @param features Array holding the feature vectors
+	 * @param offset Index of the first feature of the first vector in features
+	 * @param count Number of feature vectors to score
+	 * @param scores Receives the Q-value of the i-th vector at index i
+	 */
+	static void scoreAll(double[] weights, double[] features, int offset, int count, double[] scores) {
+		int n = weights.length;
+		for (int c = 0; c < count; c++, offset += n) {
+			double q = 0;
+			for (int i = 0; i < n; i++) {
+				q += weights[i] * features[offset + i];
+			}
+			scores[c] = q;
+		}
+	}
+
+	/**
+	 * @return The index of the first highest of the first count scores, -1 if count is 0
+	 */
+	static int argmax(double[] scores, int count) {
+		return argmax(scores, 0, count);
+	}
+
+	/**
+	 * @return The index, counted from offset, of the first highest of the count scores starting at offset, -1
+	 * if count is 0
+	 */
+	static int argmax(double[] scores, int offset, int count) {
+		int best = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int c = 0; c < count; c++) {
+			if (best < 0 || scores[offset + c] > bestScore) {
+				best = c;
+				bestScore = scores[offset + c];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The highest of the first count scores, negative infinity if count is 0
+	 */
+	static double max(double[] scores, int count) {
+		return max(scores, 0, count);
+	}
+
+	/**
+	 * @return The highest of the count scores starting at offset, negative infinity if count is 0
+	 */
+	static double max(double[] scores, int offset, int count) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int c = 0; c < count; c++) {
+			if (scores[offset + c] > max) {
+				max = scores[offset + c];
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Moves the weights by step times one feature vector, in place.
+	 *
+	 * @param weights The Q-function weights, updated in place
+	 * @param features Array holding the feature vector
+	 * @param offset Index of the first feature of the vector in features
+	 * @param step The learning rate times the TD error
+	 */
+	static void update(double[] weights, double[] features, int offset, double step) {
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] += step * features[offset + i];
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package edu.cwru.sepia.agent;
+
+import org.w3c.dom.Element;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Trains the weights from recorded battles instead of playing them.
+ *
+ * The battles are read into memory once, before the first epoch. Every command one of our footmen was given
+ * is a decision to learn from the way RLAgent.updateWeights does while playing: the footman's features
+ * against the enemy it was sent after, on the frame it was sent on, move towards the reward it has gathered
+ * so far in the battle plus gamma times its best Q-value on that same frame. Footmen accumulate the rewards
+ * RLAgent would have given them from the start of the battle, or from the frame after a gap in its turns. The
+ * turn logs behind the commands, the rewards and the features are pieced together from pairs of frames of
+ * consecutive turns by ReplayBattleView.
+ *
+ * Training runs in epochs. Within an epoch the battles are processed in parallel on a fork-join pool, one
+ * task per battle. Each task starts from the weights the epoch started with and learns from its battle's
+ * transitions in order, like the agent would have while playing it. The average of the changes the tasks
+ * made is then added to the weights, in the order the battles were given, so a run doesn't depend on the
+ * number of threads. The final weights are written to agent_weights/weights.txt like a normal training run.
+ *
+ * Usage: OfflineTrainer epochs threads loadWeights (replay.rpl | directory)... [name=value...]
+ *
+ * e.g. OfflineTrainer 20 8 false replays learn.rate=.00005
+ *
+ * Directories are searched for replays, e.g. the ones recorded with the record.directory option, or hold
+ * SEPIA state saves, each of them a battle of its own like in ReplayConverter. Battles in which no unit ever
+ * has a target, like state saves, which don't record commands, have nothing to learn from and are skipped
+ * with a message. name=value arguments are agent options, the features, learn.gamma and learn.rate are used.
+ */
+public class OfflineTrainer {
+
+	public static void main(String[] args) throws IOException {
+		List<String> positional = new ArrayList<>();
+		List<String> agentOptions = new ArrayList<>();
+		for (String arg : args) {
+			(arg.indexOf('=') > 0 ? agentOptions : positional).add(arg);
+		}
+		if (positional.size() < 4) {
+			System.err.println("Usage: OfflineTrainer epochs threads loadWeights (replay.rpl | directory)... " +
+					"[name=value...]");
+			System.exit(1);
+		}
+		int numEpochs = Integer.parseInt(positional.get(0));
+		int numThreads = Integer.parseInt(positional.get(1));
+		List<File> files = new ArrayList<>();
+		for (String path : positional.subList(3, positional.size())) {
+			files.addAll(findBattles(new File(path)));
+		}
+		if (files.isEmpty()) {
+			System.err.println("No replays or saves found");
+			System.exit(1);
+		}
+		List<Recording> battles = new ArrayList<>();
+		for (File file : files) {
+			Recording battle = Recording.load(file);
+			if (battle.hasTargets) {
+				battles.add(battle);
+			} else {
+				System.out.println("Skipping " + file + ", no unit has a target in it so there are no " +
+						"commands to learn from");
+			}
+		}
+		if (battles.isEmpty()) {
+			System.err.println("None of the battles record any commands. State saves don't, record battles " +
+					"with the record.directory agent option instead");
+			System.exit(1);
+		}
+
+		//the initial weights and the settings come from an agent set up like a normal training run would be
+		List<String> agentArgs = new ArrayList<>(Arrays.asList(Integer.toString(numEpochs), positional.get(2)));
+		agentArgs.addAll(agentOptions);
+		RLAgent agent = new RLAgent(0, agentArgs.toArray(new String[agentArgs.size()]));
+		FeatureRegistry features = FeatureRegistry.select(AgentOptions.parse(args).getString("features", null));
+		double[] weights = agent.weights.clone();
+
+		System.out.println("Training on " + battles.size() + " battles with " + numThreads + " threads");
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			for (int epoch = 0; epoch < numEpochs; epoch++) {
+				final List<Battle> tasks = new ArrayList<>();
+				for (Recording battle : battles) {
+					tasks.add(new Battle(battle, features, weights, agent.gamma, agent.learningRate));
+				}
+				pool.invoke(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						invokeAll(tasks);
+					}
+				});
+
+				long numTransitions = 0;
+				double squaredError = 0;
+				for (Battle task : tasks) {
+					LinearQKernel.update(weights, task.join(), 0, 1.0 / tasks.size());
+					numTransitions += task.numTransitions;
+					squaredError += task.squaredError;
+				}
+				System.out.println(String.format("Epoch %d: %d transitions, RMS TD error %.3f", epoch,
+						numTransitions, Math.sqrt(squaredError / Math.max(numTransitions, 1))));
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		System.out.println(String.format("Trained in %.1f s", (System.nanoTime() - start) / 1e9));
+		agent.saveWeights(RLAgent.boxWeights(weights));
+	}
+
+	/**
+	 * @return The replay, the replays in a directory ordered by name, or a directory of saves
+	 */
+	static List<File> findBattles(File path) {
+		if (!path.isDirectory()) {
+			return path.exists() ? Arrays.asList(path) : new ArrayList<File>();
+		}
+		List<File> battles = new ArrayList<>();
+		File[] files = path.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				if (file.getName().endsWith(".rpl")) {
+					battles.add(file);
+				}
+			}
+		}
+		if (battles.isEmpty() && !ReplayConverter.findSaves(path).isEmpty()) {
+			battles.add(path);
+		}
+		return battles;
+	}
+
+	/**
+	 * The frames of a replay or a directory of saves, read once and learned from on every epoch.
+	 */
+	private static final class Recording {
+
+		final ReplayHeader header;
+		final int[] turns;
+		//whether each frame starts a battle rather than following on from the frame before it
+		final boolean[] battleStarts;
+		//every unit alive on each frame, units that didn't change between frames are shared
+		final List<List<ReplayUnit>> frames;
+		//whether any unit has a target on any frame, without one there are no commands
+		final boolean hasTargets;
+
+		private Recording(ReplayHeader header, int[] turns, boolean[] battleStarts, List<List<ReplayUnit>> frames) {
+			this.header = header;
+			this.turns = turns;
+			this.battleStarts = battleStarts;
+			this.frames = frames;
+			boolean targets = false;
+			for (List<ReplayUnit> frame : frames) {
+				for (ReplayUnit unit : frame) {
+					targets |= unit.target != ReplayUnit.NO_TARGET;
+				}
+			}
+			hasTargets = targets;
+		}
+
+		/**
+		 * Reads a replay, or a directory of saves as a battle per save.
+		 */
+		static Recording load(File file) throws IOException {
+			List<Integer> turns = new ArrayList<>();
+			List<Boolean> battleStarts = new ArrayList<>();
+			List<List<ReplayUnit>> frames = new ArrayList<>();
+			ReplayHeader header = null;
+			if (file.isDirectory()) {
+				List<File> saves = ReplayConverter.findSaves(file);
+				for (int i = 0; i < saves.size(); i++) {
+					Element state = ReplayConverter.parse(saves.get(i));
+					if (header == null) {
+						header = ReplayConverter.readHeader(state);
+					}
+					//every save is a battle of its own, like ReplayConverter writes them
+					turns.add(0);
+					battleStarts.add(true);
+					frames.add(ReplayConverter.readUnits(state));
+				}
+			} else {
+				try (ReplayReader reader = ReplayReader.open(file)) {
+					header = reader.getHeader();
+					while (reader.next()) {
+						turns.add(reader.getTurn());
+						battleStarts.add(reader.isBattleStart());
+						frames.add(new ArrayList<>(reader.getUnits()));
+					}
+				}
+			}
+			int[] turnArray = new int[turns.size()];
+			boolean[] battleStartArray = new boolean[turns.size()];
+			for (int i = 0; i < turnArray.length; i++) {
+				turnArray[i] = turns.get(i);
+				battleStartArray[i] = battleStarts.get(i);
+			}
+			return new Recording(header, turnArray, battleStartArray, frames);
+		}
+	}
+
+	/**
+	 * Learns from the decisions of one battle.
+	 */
+	private static final class Battle extends RecursiveTask<double[]> {
+
+		private static final int PLAYERNUM = 0;
+
+		private final Recording recording;
+		private final double[] initialWeights;
+		private final double[] weights;
+		private final double gamma;
+		private final double learningRate;
+
+		private final ReplayBattleView view = new ReplayBattleView();
+		private final UnitRoster myFootmen = new UnitRoster();
+		private final UnitRoster enemyFootmen = new UnitRoster();
+		private final TurnEventIndex turnEvents = new TurnEventIndex();
+		//the features of the last frame, until the decisions made on it have been learned from
+		private final FeatureTensor tensor;
+		private double[] scores = new double[0];
+
+		//the turn of the last frame, -1 before the first
+		private int lastTurn = -1;
+
+		//read after join
+		long numTransitions;
+		double squaredError;
+
+		Battle(Recording recording, FeatureRegistry features, double[] weights, double gamma, double learningRate) {
+			this.recording = recording;
+			this.initialWeights = weights;
+			this.weights = weights.clone();
+			this.gamma = gamma;
+			this.learningRate = learningRate;
+			tensor = new FeatureTensor(features);
+		}
+
+		/**
+		 * @return How much the weights changed while learning from the battle
+		 */
+		@Override
+		protected double[] compute() {
+			for (int i = 0; i < recording.turns.length; i++) {
+				frame(recording.header, recording.turns[i], recording.battleStarts[i], recording.frames.get(i));
+			}
+			double[] change = weights.clone();
+			LinearQKernel.update(change, initialWeights, 0, -1);
+			return change;
+		}
+
+		private void frame(ReplayHeader header, int turn, boolean battleStart, Collection<ReplayUnit> units) {
+			//frames missing from a battle leave nothing to learn from between them, so it starts over too
+			if (!battleStart && turn == lastTurn + 1) {
+				step(view.advance(turn, units));
+			} else {
+				start(view.start(header, turn, units));
+			}
+			lastTurn = turn;
+		}
+
+		/**
+		 * Sets up the rosters on the first frame of a battle, or after frames missing from it.
+		 */
+		private void start(ReplayBattleView view) {
+			myFootmen.clear();
+			enemyFootmen.clear();
+			addFootmen(view, PLAYERNUM, myFootmen);
+			addFootmen(view, RLAgent.ENEMY_PLAYERNUM, enemyFootmen);
+			myFootmen.refresh(view);
+			enemyFootmen.refresh(view);
+			for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+				myFootmen.setTarget(slot, view.getTarget(myFootmen.id(slot)));
+			}
+			turnEvents.invalidate();
+			buildTensor(view);
+		}
+
+		/**
+		 * Learns from the commands given on the last frame, then moves on to this one.
+		 */
+		private void step(ReplayBattleView view) {
+			//the commands of the last turn were decided on the last frame, whose features the tensor still
+			//holds, with the rewards the footmen had gathered up to it
+			myFootmen.rememberTargets();
+			TurnLog lastTurnLog = view.getLastTurn();
+			for (int i = 0; i < lastTurnLog.numCommands(); i++) {
+				int slot = myFootmen.slotOf(lastTurnLog.commandUnit(i));
+				if (lastTurnLog.commandPlayer(i) == PLAYERNUM && slot >= 0) {
+					myFootmen.setTarget(slot, lastTurnLog.commandTarget(i));
+					learn(myFootmen.id(slot), lastTurnLog.commandTarget(i), myFootmen.reward(slot));
+				}
+			}
+
+			//the rewards of the last turn, before the dead are removed
+			myFootmen.refresh(view);
+			enemyFootmen.refresh(view);
+			turnEvents.build(view, PLAYERNUM, myFootmen, enemyFootmen);
+			for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+				myFootmen.addReward(slot, RLAgent.reward(turnEvents, slot));
+			}
+
+			removeDead(view, myFootmen);
+			removeDead(view, enemyFootmen);
+			buildTensor(view);
+		}
+
+		/**
+		 * Moves the Q-value of a footman attacking an enemy on the last frame towards the same target as
+		 * RLAgent.updateWeights.
+		 */
+		private void learn(int attackerId, int defenderId, double totalReward) {
+			int a = tensor.attackerIndex(attackerId);
+			int d = tensor.defenderIndex(defenderId);
+			if (a < 0 || d < 0) {
+				return;
+			}
+			tensor.scoreAll(a, weights, scores);
+			double maxQ = LinearQKernel.max(scores, tensor.numDefenders());
+			double tdError = totalReward + gamma * maxQ - scores[d];
+			LinearQKernel.update(weights, tensor.data(), tensor.offset(a, d), learningRate * tdError);
+			squaredError += tdError * tdError;
+			numTransitions++;
+		}
+
+		private void buildTensor(ReplayBattleView view) {
+			tensor.build(view, PLAYERNUM, myFootmen, enemyFootmen);
+			if (scores.length < tensor.numDefenders()) {
+				scores = new double[tensor.numDefenders()];
+			}
+		}
+
+		private static void addFootmen(BattleView view, int player, UnitRoster roster) {
+			for (Integer unitId : view.getUnitIds(player)) {
+				if ("footman".equalsIgnoreCase(view.getUnitName(unitId))) {
+					roster.add(unitId);
+				}
+			}
+		}
+
+		private static void removeDead(BattleView view, UnitRoster roster) {
+			for (int slot = roster.nextAlive(0); slot >= 0; slot = roster.nextAlive(slot + 1)) {
+				if (!view.hasUnit(roster.id(slot))) {
+					roster.kill(slot);
+				}
+			}
+		}
+	}
+}
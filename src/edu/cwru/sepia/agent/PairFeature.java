@@ -0,0 +1,49 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * One feature of a (footman, enemy) pair, computed by FeatureTensor from the inputs shared by all features.
+ *
+ * A feature says which inputs it reads, so FeatureTensor only prepares the inputs that some registered
+ * feature needs, and the range of values it can take for a footman, so FeatureTensor.argmax can rule out
+ * enemies without computing their features. See FeatureRegistry for the features we use.
+ */
+interface PairFeature {
+
+	/**
+	 * @return A short name of the feature, e.g. for printing the weights
+	 */
+	String name();
+
+	/**
+	 * @return The FeatureInputs flags of the inputs the feature reads
+	 */
+	int inputs();
+
+	/**
+	 * @param in The inputs of the current turn, with the distance inputs set for the pair
+	 * @param a The footman's row in the inputs
+	 * @param d The enemy's column in the inputs
+	 * @return The value of the feature for the pair
+	 */
+	double value(FeatureInputs in, int a, int d);
+
+	/**
+	 * The smallest value the feature can have for the footman against any enemy that isn't closer to it
+	 * than the one the distance inputs are set for.
+	 *
+	 * @param in The inputs of the current turn, with the distance inputs set for the nearest enemy left
+	 * @param a The footman's row in the inputs
+	 * @return A lower bound of the value
+	 */
+	double min(FeatureInputs in, int a);
+
+	/**
+	 * The largest value the feature can have for the footman against any enemy that isn't closer to it
+	 * than the one the distance inputs are set for.
+	 *
+	 * @param in The inputs of the current turn, with the distance inputs set for the nearest enemy left
+	 * @param a The footman's row in the inputs
+	 * @return An upper bound of the value
+	 */
+	double max(FeatureInputs in, int a);
+}
@@ -0,0 +1,212 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains one set of weights with several actors running in parallel.
+ *
+ * Each actor runs its own SEPIA environment on its own thread, with its own RLAgent and the enemy agent
+ * from the configuration file. At the end of every episode an actor hands what it learned to the central
+ * Learner and continues with the latest published weights. The final weights are written to
+ * agent_weights/weights.txt like a normal training run.
+ *
+ * Usage: ParallelTrainer configFile numActors episodesPerActor [publishInterval] [seed] [loadWeights]
+ *
+ * e.g. ParallelTrainer data/10fv10fConfig.xml 8 200 8 12345 false
+ *
+ * publishInterval is the number of actor updates the learner applies before publishing new weights (defaults
+ * to numActors). Actor i uses seed + i, so a run is reproducible for a given seed and number of actors.
+ *
+ * The agents get the arguments the configuration gives player 0, with the episode count and the seed replaced,
+ * so its agent options (features, learn.rate, ...) apply like in a normal training run. loadWeights defaults
+ * to the configuration's, and only the initial agent loads them (or resumes), the actors start from the
+ * learner's weights. Every actor keeps its own results, metrics and recordings in an actorN directory next to
+ * the configured ones, and the actors are headless, so only the trainer reports on the session.
+ */
+public class ParallelTrainer {
+
+	private static final String[] PER_ACTOR_DIRECTORIES = {
+		"experiment.save.replaydirectory", "experiment.save.agentdirectory"
+	};
+
+	//agent options naming where a session writes, the actors can't share them
+	private static final List<String> PER_ACTOR_OUTPUTS = Arrays.asList(
+			"results.file", "metrics.directory", "record.directory");
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: ParallelTrainer configFile numActors episodesPerActor " +
+					"[publishInterval] [seed] [loadWeights]");
+			System.exit(1);
+		}
+		String configFile = args[0];
+		int numActors = Integer.parseInt(args[1]);
+		int episodesPerActor = Integer.parseInt(args[2]);
+		int publishInterval = args.length >= 4 ? Integer.parseInt(args[3]) : numActors;
+		long seed = args.length >= 5 ? Long.parseLong(args[4]) : 12345;
+		String[] configured = SepiaExperiment.load(configFile).getAgentArguments(0);
+		String loadWeights = args.length >= 6 ? args[5] :
+				configured.length >= 2 && configured[1].indexOf('=') < 0 ? configured[1] : "false";
+
+		//the initial weights come from an agent set up the same way a normal training run would be
+		RLAgent initialAgent = new RLAgent(0, agentArguments(configured, episodesPerActor, loadWeights, seed));
+		checkInitialWeights(initialAgent);
+		Learner learner = new Learner(initialAgent.weights, publishInterval);
+		Thread learnerThread = new Thread(learner, "learner");
+		learnerThread.start();
+
+		System.out.println("Training with " + numActors + " actors, " + episodesPerActor + " episodes each");
+		long start = System.nanoTime();
+
+		ExecutorService executor = Executors.newFixedThreadPool(numActors);
+		List<Future<?>> actors = new ArrayList<>();
+		for (int i = 0; i < numActors; i++) {
+			actors.add(executor.submit(new Actor(configFile, configured, i, episodesPerActor, seed + i, learner)));
+		}
+		try {
+			for (Future<?> actor : actors) {
+				actor.get();
+			}
+		} catch (ExecutionException ex) {
+			System.err.println("Actor failed. Reason: " + ex.getCause());
+			throw ex;
+		} finally {
+			executor.shutdownNow();
+			learner.stop();
+			learnerThread.join();
+		}
+
+		double hours = (System.nanoTime() - start) / 3.6e12;
+		System.out.println("Session complete");
+		System.out.println(learner.getNumUpdates() + " updates applied");
+		System.out.println(String.format("%.0f episodes/hour", numActors * episodesPerActor / hours));
+
+		initialAgent.saveWeights(RLAgent.boxWeights(learner.latest()));
+		System.exit(0);
+	}
+
+	/**
+	 * Ends the session if the initial agent was asked to load the weights and couldn't, or loaded weights
+	 * for other features.
+	 */
+	static void checkInitialWeights(RLAgent initialAgent) {
+		if (initialAgent.weights == null) {
+			System.err.println("Failed to load the initial weights from agent_weights/weights.txt, set " +
+					"loadWeights to false to start from random weights");
+			System.exit(1);
+		}
+		if (initialAgent.weights.length != initialAgent.numFeatures()) {
+			System.err.println("Failed to load the initial weights. Reason: there are " +
+					initialAgent.weights.length + " of them but the agent reads " + initialAgent.numFeatures() +
+					" features");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * The arguments of the agent the initial weights come from. It writes nothing during the session, so the
+	 * options naming where a session writes are left out, and eval.threads is ignored since nothing evaluates
+	 * the learner's weights on the side.
+	 *
+	 * @param configured The arguments the configuration gives the agent
+	 * @return The positional arguments of RLAgent for a run, followed by the configured name=value options
+	 */
+	static String[] agentArguments(String[] configured, int numEpisodes, String loadWeights, long seed) {
+		List<String> arguments = new ArrayList<>(Arrays.asList(
+				Integer.toString(numEpisodes), loadWeights, Long.toString(seed)));
+		for (String argument : configured) {
+			String name = optionName(argument);
+			if (name.equals("eval.threads")) {
+				System.err.println("eval.threads isn't supported with several actors, ignoring it");
+			} else if (!name.isEmpty() && !PER_ACTOR_OUTPUTS.contains(name)) {
+				arguments.add(argument);
+			}
+		}
+		return arguments.toArray(new String[arguments.size()]);
+	}
+
+	/**
+	 * The arguments of actor index. It starts from the learner's weights instead of loading or resuming any,
+	 * writes its results, metrics and recordings to an actorN directory next to the configured ones and is
+	 * headless.
+	 *
+	 * @param configured The arguments the configuration gives the agent
+	 * @return The positional arguments of RLAgent for the actor, followed by its name=value options
+	 */
+	static String[] actorArguments(String[] configured, int index, int numEpisodes, long seed) {
+		List<String> arguments = new ArrayList<>(Arrays.asList(
+				Integer.toString(numEpisodes), "false", Long.toString(seed), "session.headless=true"));
+		for (String argument : configured) {
+			String name = optionName(argument);
+			if (name.equals("results.file")) {
+				File file = new File(argument.substring(name.length() + 1));
+				File directory = new File(file.getParentFile(), "actor" + index);
+				arguments.add(name + "=" + new File(directory, file.getName()).getPath());
+			} else if (PER_ACTOR_OUTPUTS.contains(name)) {
+				arguments.add(argument + "/actor" + index);
+			} else if (!name.isEmpty() && !name.equals("resume") && !name.equals("eval.threads")) {
+				arguments.add(argument);
+			}
+		}
+		return arguments.toArray(new String[arguments.size()]);
+	}
+
+	//the name of a name=value argument, empty for a positional one
+	private static String optionName(String argument) {
+		int equals = argument.indexOf('=');
+		return equals > 0 ? argument.substring(0, equals) : "";
+	}
+
+	/**
+	 * Runs the episodes of one actor.
+	 */
+	private static final class Actor implements Runnable {
+
+		private final String configFile;
+		private final String[] agentArguments;
+		private final int index;
+		private final int numEpisodes;
+		private final long seed;
+		private final WeightSync weightSync;
+
+		Actor(String configFile, String[] agentArguments, int index, int numEpisodes, long seed,
+				WeightSync weightSync) {
+			this.configFile = configFile;
+			this.agentArguments = agentArguments;
+			this.index = index;
+			this.numEpisodes = numEpisodes;
+			this.seed = seed;
+			this.weightSync = weightSync;
+		}
+
+		@Override
+		public void run() {
+			try {
+				SepiaExperiment experiment = SepiaExperiment.load(configFile);
+				experiment.setParameter("experiment.NumEpisodes", Integer.toString(numEpisodes));
+				//actors can't share save directories
+				for (String directory : PER_ACTOR_DIRECTORIES) {
+					if (experiment.getParameter(directory) != null) {
+						experiment.setParameter(directory, experiment.getParameter(directory) + "/actor" + index);
+					}
+				}
+
+				RLAgent agent = new RLAgent(0, actorArguments(agentArguments, index, numEpisodes, seed));
+				agent.setWeightSync(weightSync);
+				Agent enemy = experiment.createAgent(RLAgent.ENEMY_PLAYERNUM);
+
+				experiment.run(new Agent[] { agent, enemy });
+			} catch (IOException ex) {
+				throw new RuntimeException("Actor " + index + " failed", ex);
+			}
+		}
+	}
+}
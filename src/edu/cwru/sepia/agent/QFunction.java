@@ -0,0 +1,76 @@
+package edu.cwru.sepia.agent;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A Q-function over the feature vectors of (footman, enemy) pairs that isn't the linear one, see QFunctions.
+ *
+ * Feature vectors are read straight out of a flat array like the FeatureTensor storage, where consecutive
+ * pairs are stored back to back, so all pairs of a turn can be scored in one call. Implementations keep
+ * whatever scratch space they need between calls and don't allocate while scoring or updating, which also
+ * means they must only be used by one thread.
+ */
+interface QFunction {
+
+	/**
+	 * @return The kind of Q-function, e.g. mlp, which picks the read method in QFunctions.read
+	 */
+	String kind();
+
+	/**
+	 * @return The kind of Q-function and its shape, e.g. mlp 5-16-1. Parameters can only be loaded into a
+	 * Q-function with the same description.
+	 */
+	String describe();
+
+	/**
+	 * @return The length of a feature vector
+	 */
+	int numInputs();
+
+	/**
+	 * @param features Array holding the feature vector
+	 * @param offset Index of the first feature of the vector in features
+	 * @return The Q-value of one feature vector
+	 */
+	double score(double[] features, int offset);
+
+	/**
+	 * Scores count feature vectors stored back to back, starting at offset.
+	 *
+	 * @param features Array holding the feature vectors
+	 * @param offset Index of the first feature of the first vector in features
+	 * @param count Number of feature vectors to score
+	 * @param scores Receives the Q-value of the i-th vector at index i
+	 */
+	void scoreAll(double[] features, int offset, int count, double[] scores);
+
+	/**
+	 * Moves the parameters by step times the gradient of the Q-value of one feature vector.
+	 *
+	 * @param features Array holding the feature vector
+	 * @param offset Index of the first feature of the vector in features
+	 * @param step The learning rate times the TD error
+	 */
+	void update(double[] features, int offset, double step);
+
+	/**
+	 * Moves the parameters by the sum of step times gradient over count feature vectors. All gradients are
+	 * taken at the parameters from before the call.
+	 *
+	 * @param features Array holding the feature vectors
+	 * @param offsets Index of the first feature of each vector in features
+	 * @param steps The learning rate times the TD error of each vector
+	 * @param count Number of feature vectors
+	 */
+	void updateAll(double[] features, int[] offsets, double[] steps, int count);
+
+	/**
+	 * Writes the shape and the parameters, to be read back by the kind's read method. The stream isn't
+	 * flushed or closed.
+	 *
+	 * @throws IOException If the stream can't be written
+	 */
+	void write(DataOutputStream out) throws IOException;
+}
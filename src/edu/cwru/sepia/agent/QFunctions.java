@@ -0,0 +1,144 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Creates the Q-function chosen with the agent options, and saves and loads its parameters.
+ *
+ * q.backend picks the Q-function: linear (the default) is the dot product of the weights with the features,
+ * tiles a TileCodingQ with q.tilings tilings (8 by default) of tiles q.tilewidth wide (2 by default) hashed
+ * into q.tablesize weights (4096 by default), and mlp an MlpQ with q.hidden hidden units (16 by default). All
+ * of them read the features chosen with the features option.
+ *
+ * The parameters are saved in a binary file, agent_weights/qfunction.bin by default:
+ *
+ * magic, version, kind (tiles or mlp), then the shape and the parameters as the kind writes them
+ */
+final class QFunctions {
+
+	static final String LINEAR = "linear";
+
+	static final String DEFAULT_PATH = "agent_weights/qfunction.bin";
+
+	private static final int MAGIC = 0x5146554e; // "QFUN"
+	private static final int VERSION = 1;
+
+	private QFunctions() {
+	}
+
+	/**
+	 * @param options The agent options
+	 * @param numInputs The number of features
+	 * @param random Where initial parameters are drawn from
+	 * @return A new Q-function as chosen by q.backend, null for the linear one, which is the weights
+	 * @throws IllegalArgumentException If q.backend isn't known
+	 */
+	static QFunction create(AgentOptions options, int numInputs, Random random) {
+		String backend = options.getString("q.backend", LINEAR);
+		if (isLinear(options)) {
+			return null;
+		} else if (backend.equals(TileCodingQ.KIND)) {
+			return new TileCodingQ(numInputs, options.getInt("q.tilings", 8), options.getInt("q.tablesize", 4096),
+					options.getDouble("q.tilewidth", TileCodingQ.DEFAULT_WIDTH));
+		} else if (backend.equals(MlpQ.KIND)) {
+			return new MlpQ(numInputs, options.getInt("q.hidden", 16), random);
+		}
+		throw new IllegalArgumentException("Unknown Q-function backend " + backend);
+	}
+
+	/**
+	 * @return true if q.backend leaves the Q-function linear
+	 */
+	static boolean isLinear(AgentOptions options) {
+		return options.getString("q.backend", LINEAR).equals(LINEAR);
+	}
+
+	/**
+	 * @return The Q-function's describe, linear for null
+	 */
+	static String describe(QFunction q) {
+		return q == null ? LINEAR : q.describe();
+	}
+
+	/**
+	 * @return true if the parameters of one Q-function can take the place of the other's, which are both
+	 * linear (null) or of the same kind and shape
+	 */
+	static boolean sameShape(QFunction q, QFunction other) {
+		return describe(q).equals(describe(other));
+	}
+
+	/**
+	 * Writes a Q-function. The stream is flushed but not closed.
+	 *
+	 * @throws IOException If the stream can't be written
+	 */
+	static void write(QFunction q, OutputStream outputStream) throws IOException {
+		DataOutputStream out = new DataOutputStream(outputStream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(q.kind());
+		q.write(out);
+		out.flush();
+	}
+
+	/**
+	 * Reads a Q-function written by write. The stream isn't closed.
+	 *
+	 * @throws IOException If the stream can't be read or doesn't hold a Q-function
+	 */
+	static QFunction read(InputStream inputStream) throws IOException {
+		DataInputStream in = new DataInputStream(inputStream);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a Q-function");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported Q-function version " + version);
+		}
+		String kind = in.readUTF();
+		if (kind.equals(TileCodingQ.KIND)) {
+			return TileCodingQ.read(in);
+		} else if (kind.equals(MlpQ.KIND)) {
+			return MlpQ.read(in);
+		}
+		throw new IOException("Unknown Q-function kind " + kind);
+	}
+
+	/**
+	 * Saves a Q-function to a file, replacing it only once it has been written completely.
+	 *
+	 * @throws IOException If the file can't be written
+	 */
+	static void save(QFunction q, File path) throws IOException {
+		path.getAbsoluteFile().getParentFile().mkdirs();
+		File temporary = new File(path.getPath() + ".tmp");
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary))) {
+			write(q, out);
+		}
+		if (path.exists() && !path.delete() || !temporary.renameTo(path)) {
+			throw new IOException("Failed to replace " + path);
+		}
+	}
+
+	/**
+	 * Loads a Q-function saved with save.
+	 *
+	 * @throws IOException If the file can't be read or doesn't hold a Q-function
+	 */
+	static QFunction load(File path) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(path))) {
+			return read(in);
+		}
+	}
+}
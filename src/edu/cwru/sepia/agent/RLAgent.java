@@ -1,17 +1,9 @@
 package edu.cwru.sepia.agent;
 
 import edu.cwru.sepia.action.Action;
-import edu.cwru.sepia.action.ActionResult;
 import edu.cwru.sepia.action.TargetedAction;
-import edu.cwru.sepia.environment.model.history.DamageLog;
-import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
-import edu.cwru.sepia.environment.model.history.History.HistoryView;
 import edu.cwru.sepia.environment.model.state.State;
-import edu.cwru.sepia.environment.model.state.State.StateView;
-import edu.cwru.sepia.environment.model.state.Unit;
-import edu.cwru.sepia.environment.model.state.Unit.UnitView;
-import edu.cwru.sepia.util.DistanceMetrics;
 
 import java.io.*;
 import java.util.*;
@@ -30,16 +22,6 @@ public class RLAgent extends Agent {
 	 * (no random action picking) (essentially determines whether we're in learning or evaluation mode)
 	 */
 	public boolean freeze;
-	//each of our footmen has its id mapped to its cumulative discounted reward
-	//TODO make sure these rewards are discounted
-	public Map<Integer, Double> rewardMap;
-	//ensures the +100 reward can only be claimed once for killing an enemy, so no other unit can also claim
-	//the reward for kill the same enemy. (can occur when two or more footmen attack the same enemy at once)
-	public LinkedList<Integer> enemyBlackList;
-	//stores the set of actions last sent out to the footmen
-	public Map<Integer, Action> currentActionMap;
-	//store the set the actions sent out before that
-	public Map<Integer, Action> previousActionMap;
 	//the rewards from the 5 evaluation rounds
 	public Double[] evaluationRewards;
 	//counter to keep track of which evaluation round we're on
@@ -48,10 +30,35 @@ public class RLAgent extends Agent {
 	public List<Double> avgRewards;
 
 	/**
-	 * List of your footmen and your enemies footmen
+	 * Your footmen and your enemies footmen. Each footman has a slot holding its cumulative reward (our
+	 * footmen) or whether the +100 for killing it was already claimed (enemy footmen), and the targets of
+	 * the commands last sent out and the ones before that.
 	 */
-	private List<Integer> myFootmen;
-	private List<Integer> enemyFootmen;
+	//TODO make sure these rewards are discounted
+	private final UnitRoster myFootmen = new UnitRoster();
+	private final UnitRoster enemyFootmen = new UnitRoster();
+	//the slots of the footmen getting a new target on this turn
+	private int[] replanned = new int[0];
+
+	/**
+	 * The features the Q-function is built from, FeatureRegistry.DEFAULT unless the features option names
+	 * others, e.g. features=constant,closeness,healthRatio. There is one weight per feature.
+	 */
+	private final FeatureRegistry features;
+
+	/**
+	 * Features of every (footman, enemy) pair on the current turn, built once per turn and shared by
+	 * action selection and the weight update. When select.pruned is true the tensor is lazy and a footman's
+	 * best enemy is found without computing the features of the enemies that can't beat it, see
+	 * FeatureTensor.argmax, which picks the same enemies faster in big battles.
+	 */
+	private final FeatureTensor featureTensor;
+
+	/**
+	 * Damage, deaths, kill credit and new actions of every unit on the last turn, built once per turn and
+	 * used to calculate the rewards of all footmen.
+	 */
+	private final TurnEventIndex turnEvents = new TurnEventIndex();
 
 	/**
 	 * Convenience variable specifying enemy agent number. Use this whenever referring
@@ -60,36 +67,177 @@ public class RLAgent extends Agent {
 	public static final int ENEMY_PLAYERNUM = 1;
 
 	/**
-	 * TODO Set this to whatever size your feature vector is.
+	 * The size of the default feature vector, one weight per feature registered in FeatureRegistry.DEFAULT.
 	 */
-	public static final int NUM_FEATURES = 5;
+	public static final int NUM_FEATURES = FeatureRegistry.DEFAULT.size();
 
 	/** Use this random number generator for your epsilon exploration. When you submit we will
 	 * change this seed so make sure that your agent works for more than the default seed.
+	 * The seed can be set with the optional third agent argument, it defaults to 12345.
 	 */
-	//12345
-	public final Random random = new Random(12345);
+	public final Random random;
+	//the same generator, its state is saved with the agent so a resumed agent draws the same numbers
+	private final ResumableRandom resumableRandom;
 
 	/**
 	 * Your Q-function weights.
 	 */
-	public Double[] weights;
+	public double[] weights;
+
+	/**
+	 * When q.backend is tiles or mlp, the Q-function is this TileCodingQ or MlpQ over the features instead of
+	 * the dot product with the weights, see QFunctions. Null for the linear Q-function.
+	 *
+	 * Its parameters are saved to agent_weights/qfunction.bin after every episode, and loaded from there
+	 * instead of the weights when the load weights argument is true. All pairs of a turn are scored in one
+	 * batch the first time a Q-value is needed on it, and the footmen that chose a target on an event are
+	 * trained together with one batched update, their TD errors all taken with the parameters from before the
+	 * event. What works on the weights directly (select.pruned, learn.batched, assign.joint, replay.capacity,
+	 * eval.threads and exchanging weights with other agents) needs the linear Q-function.
+	 */
+	private QFunction qFunction;
+	//the Q-values of every pair of scoredTurn, -1 when they need to be scored again
+	private double[] turnScores = new double[0];
+	private int scoredTurn = -1;
+	//the feature offsets and learning rate times TD error of the choices of the current event
+	private int[] choiceOffsets = new int[0];
+	private double[] choiceSteps = new double[0];
+	private int numChoices;
 
 	/**
 	 * These variables are set for you according to the assignment definition. You can change them,
 	 * but it is not recommended. If you do change them please let us know and explain your reasoning for
 	 * changing them.
+	 *
+	 * They default to 0.9, .0001 and .02 and can be set with the learn.gamma, learn.rate and learn.epsilon
+	 * options, e.g. for a HyperparameterSweep.
+	 */
+	public final double gamma;
+	public final double learningRate;
+	public final double epsilon;
+
+	/**
+	 * Set when this agent is one of several actors training the same weights in parallel (see
+	 * ParallelTrainer). The weights are exchanged with it after every episode, and the trainer is
+	 * responsible for saving the weights and ending the session.
+	 */
+	private WeightSync weightSync;
+	//the shared weights this agent got from its last exchange
+	private double[] syncedWeights;
+
+	/**
+	 * Binary log of the weights after every episode, opened on the first save. Null if it couldn't be
+	 * opened, in which case the weights are saved to the text file after every episode instead.
+	 */
+	private WeightHistory weightHistory;
+	private boolean weightHistoryFailed;
+
+	/**
+	 * Optional name=value agent arguments, see AgentOptions.
+	 */
+	private final AgentOptions options;
+
+	/**
+	 * When session.headless is true, the agent is played by a tool that reads its weights and learning curve
+	 * itself, e.g. HyperparameterSweep or ScalingHarness. The agent then prints nothing about its episodes,
+	 * saves nothing and doesn't end the process after the last episode.
+	 */
+	private final boolean headless;
+
+	/**
+	 * When replay.capacity is set, transitions are stored in this buffer and the weights are trained on
+	 * minibatches sampled from it (replay.batch transitions, replay.updates minibatches per event, sampled
+	 * by TD error if replay.prioritized is true) instead of being updated online.
+	 *
+	 * The minibatches are trained in middleStep, on the same thread and on every event, so the amount of
+	 * training still follows the rate of decisions rather than running apart from the game. replay.updates
+	 * is the ratio of minibatches to events.
+	 */
+	private ExperienceReplay replay;
+	private final int replayBatchSize;
+	private final int replayUpdatesPerEvent;
+	//per footman slot, its last choice until the next one completes it as a transition: the features of the
+	//chosen pair and the footman's cumulative reward when it chose, so the transition gets the reward since
+	private double[] pendingFeatures = new double[0];
+	private double[] rewardAtChoice = new double[0];
+	private boolean[] hasPending = new boolean[0];
+
+	/**
+	 * When record.directory is set, every record.episodes-th episode (4 by default) is recorded there as a
+	 * binary replay with one frame per turn.
+	 */
+	private ReplayRecorder recorder;
+
+	/**
+	 * When metrics.directory is set, latencies of the hot path and throughput counters are written there
+	 * every metrics.interval seconds (10 by default). Null when metrics are off.
+	 */
+	private AgentMetrics metrics;
+
+	/**
+	 * When results.file is set, the results of every episode (mode, outcome, survivors, turns, the reward of
+	 * every footman, wall time and decisions) are appended to it, results.block episodes (64 by default) at a
+	 * time and at the end of the session, see ResultsFile and ResultsQuery. Null when results aren't kept.
+	 */
+	private ResultsFile results;
+	//the start of the current episode and the targets chosen in it, for the results
+	private long episodeStart;
+	private int episodeDecisions;
+	private double[] footmanRewards = new double[0];
+
+	/**
+	 * When assign.joint is true, the footmen's targets are chosen together on every event, maximizing the
+	 * total Q-value with at most assign.capacity footmen per enemy (3 by default), instead of each footman
+	 * taking its own best enemy. Null when targets are chosen independently.
+	 */
+	private TargetAssignment targetAssignment;
+
+	/**
+	 * When replan.incremental is true, only the footmen whose action ended, whose target died or who were
+	 * hit by a new enemy get a new target, and only the commands that changed are sent.
+	 */
+	private final boolean incrementalReplanning;
+
+	/**
+	 * When replan.budget or replan.budgetus is set, the footmen that need a new target are queued by urgency
+	 * and only as many decide on a turn as the budget allows, at most replan.budget of them and none once
+	 * replan.budgetus microseconds of the turn have passed. The others keep their commands and decide on the
+	 * following turns, see DecisionScheduler. Null when every footman that needs a new target gets it at once.
+	 */
+	private DecisionScheduler scheduler;
+
+	/**
+	 * When learn.batched is true, the footmen that chose a target on an event are trained together with one
+	 * summed update, see BatchedUpdate, bootstrapping each choice from learn.nsteps later ones (0 by default,
+	 * the same target as updateWeights). Null when every footman updates the weights on its own.
+	 */
+	private BatchedUpdate batchedUpdate;
+
+	/**
+	 * When eval.threads and eval.config are set, the training episodes never freeze the Q function. Instead
+	 * a snapshot of the weights is taken at the start and every eval.interval episodes (10 by default) and
+	 * played for eval.episodes episodes (5 by default) on eval.config by eval.threads worker threads, in SEPIA
+	 * or, with eval.engine=simulator, in CombatSimulator. Null when evaluation takes turns with learning.
 	 */
-	public final double gamma = 0.9;
-	public final double learningRate = .0001;
-	public final double epsilon = .02;
+	private SnapshotEvaluator snapshotEvaluator;
+	private int evaluationInterval;
+
+	//set on the agents a SnapshotEvaluator plays its episodes with, see evaluateOnly
+	private boolean evaluationOnly;
+	private double evaluationReward;
+
+	//the SEPIA views of the current call, as read by everything below the public methods
+	private final SepiaBattleView sepiaView;
 
 	public RLAgent(int playernum, String[] args) {
 		super(playernum);
+		sepiaView = new SepiaBattleView(playernum, ENEMY_PLAYERNUM);
+		options = AgentOptions.parse(args);
+		headless = options.getBoolean("session.headless", false);
 
 		if (args.length >= 1) {
-			numEpisodes = 65;//TODO revert: Integer.parseInt(args[0]);
-			System.out.println("Running " + numEpisodes + " episodes.");
+			numEpisodes = Integer.parseInt(args[0]);
+			report("Running " + numEpisodes + " episodes.");
 		} else {
 			numEpisodes = 10;
 			System.out.println("Warning! Number of episodes not specified. Defaulting to 10 episodes.");
@@ -103,6 +251,59 @@ public class RLAgent extends Agent {
 		avgRewards = new LinkedList<>();
 		evaluationRewards = new Double[5];
 
+		gamma = options.getDouble("learn.gamma", 0.9);
+		learningRate = options.getDouble("learn.rate", .0001);
+		epsilon = options.getDouble("learn.epsilon", .02);
+		features = FeatureRegistry.select(options.getString("features", null));
+		boolean linear = QFunctions.isLinear(options);
+		for (String option : new String[] {
+				"select.pruned", "learn.batched", "assign.joint", "replay.capacity", "eval.threads" }) {
+			if (!linear && options.has(option)) {
+				System.err.println(option + " needs the linear Q-function, ignoring it");
+			}
+		}
+		featureTensor = new FeatureTensor(features, linear && options.getBoolean("select.pruned", false));
+		replayBatchSize = options.getInt("replay.batch", 32);
+		replayUpdatesPerEvent = options.getInt("replay.updates", 1);
+		if (options.has("record.directory")) {
+			recorder = new ReplayRecorder(new File(options.getString("record.directory", null)),
+					options.getInt("record.episodes", 4), playernum, ENEMY_PLAYERNUM);
+		}
+		incrementalReplanning = options.getBoolean("replan.incremental", false);
+		if (options.has("replan.budget") || options.has("replan.budgetus")) {
+			scheduler = new DecisionScheduler(options.getInt("replan.budget", 0),
+					options.getLong("replan.budgetus", 0) * 1000);
+		}
+		if (linear && options.getBoolean("learn.batched", false)) {
+			batchedUpdate = new BatchedUpdate(features.size(), options.getInt("learn.nsteps", 0), gamma);
+		}
+		if (linear && options.getBoolean("assign.joint", false)) {
+			targetAssignment = new TargetAssignment(options.getInt("assign.capacity", 3));
+		}
+		if (options.has("results.file")) {
+			try {
+				results = ResultsFile.open(new File(options.getString("results.file", null)),
+						options.getInt("results.block", 64));
+			} catch (IOException ex) {
+				System.err.println("Failed to open results. Reason: " + ex.getMessage());
+			}
+		}
+		if (options.has("metrics.directory")) {
+			try {
+				metrics = AgentMetrics.open(new File(options.getString("metrics.directory", null)),
+						options.getDouble("metrics.interval", 10));
+			} catch (IOException ex) {
+				System.err.println("Failed to open metrics. Reason: " + ex.getMessage());
+			}
+		}
+
+		long seed = 12345;
+		if (args.length >= 3 && !args[2].contains("=")) {
+			seed = Long.parseLong(args[2]);
+		}
+		resumableRandom = new ResumableRandom(seed);
+		random = resumableRandom;
+
 		boolean loadWeights = false;
 		if (args.length >= 2) {
 			loadWeights = Boolean.parseBoolean(args[1]);
@@ -111,14 +312,42 @@ public class RLAgent extends Agent {
 		}
 
 		if (loadWeights) {
-			weights = loadWeights();
+			weights = unboxWeights(loadWeights());
 		} else {
 			// initialize weights to random values between -1 and 1
-			weights = new Double[NUM_FEATURES];
+			weights = new double[features.size()];
 			for (int i = 0; i < weights.length; i++) {
 				weights[i] = random.nextDouble() * 2 - 1;
 			}
 		}
+
+		qFunction = QFunctions.create(options, features.size(), random);
+		if (qFunction != null && loadWeights) {
+			loadQFunction();
+		}
+
+		if (options.has("resume")) {
+			File saved = new File(options.getString("resume", null));
+			try (InputStream inputStream = new BufferedInputStream(new FileInputStream(saved))) {
+				loadPlayerData(inputStream);
+			} catch (IOException ex) {
+				System.err.println("Failed to open " + saved + ". Reason: " + ex.getMessage());
+			}
+		}
+
+		if (linear && options.has("eval.threads") && !options.has("eval.config")) {
+			System.err.println("eval.threads needs eval.config, evaluating in turns with learning instead");
+		} else if (linear && options.has("eval.threads")) {
+			//the evaluation agents need the same features to read the snapshots
+			String[] evaluationOptions = options.has("features") ?
+					new String[] { "features=" + options.getString("features", null) } : new String[0];
+			snapshotEvaluator = new SnapshotEvaluator(options.getString("eval.config", null),
+					options.getString("eval.engine", SnapshotEvaluator.SEPIA), options.getInt("eval.episodes", 5),
+					options.getInt("eval.threads", 1), playernum, seed, evaluationOptions);
+			evaluationInterval = options.getInt("eval.interval", 10);
+			freeze = false;
+			snapshotEvaluator.submit(weights);
+		}
 	}
 
 	/**
@@ -126,13 +355,36 @@ public class RLAgent extends Agent {
 	 */
 	@Override
 	public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+		startEpisode(sepiaView.set(stateView, historyView));
+		if (recorder != null) {
+			recorder.startEpisode(numEpisodesPlayed, stateView);
+		}
+		return middleStep(stateView, historyView);
+	}
 
-		// Find all of your units
-		myFootmen = new LinkedList<>();
-		for (Integer unitId : stateView.getUnitIds(playernum)) {
-			Unit.UnitView unit = stateView.getUnit(unitId);
+	/**
+	 * initialStep for a battle that isn't played in SEPIA, e.g. in CombatSimulator.
+	 */
+	Map<Integer, Action> initialStep(BattleView view) {
+		startEpisode(view);
+		return middleStep(view);
+	}
+
+	/**
+	 * Sets up the rosters and clears what is kept per episode.
+	 */
+	private void startEpisode(BattleView view) {
+
+		episodeStart = System.nanoTime();
+		episodeDecisions = 0;
+
+		//clear this stuff every round, each footman starts with no reward and no target
+		myFootmen.clear();
+		enemyFootmen.clear();
 
-			String unitName = unit.getTemplateView().getName().toLowerCase();
+		// Find all of your units
+		for (Integer unitId : view.getUnitIds(playernum)) {
+			String unitName = view.getUnitName(unitId).toLowerCase();
 			if (unitName.equals("footman")) {
 				myFootmen.add(unitId);
 			} else {
@@ -140,23 +392,15 @@ public class RLAgent extends Agent {
 			}
 		}
 
-		//clear this stuff every round
-		rewardMap = new HashMap<>();
-		enemyBlackList = new LinkedList<>();
-		currentActionMap = null;
-		previousActionMap = null;
-
-		//initialize each footman's reward to 0
-		for (Integer id : myFootmen) {
-			rewardMap.put(id, 0.0);
+		featureTensor.invalidate();
+		turnEvents.invalidate();
+		if (targetAssignment != null) {
+			targetAssignment.reset();
 		}
 
 		// Find all of the enemy units
-		enemyFootmen = new LinkedList<>();
-		for (Integer unitId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
-			Unit.UnitView unit = stateView.getUnit(unitId);
-
-			String unitName = unit.getTemplateView().getName().toLowerCase();
+		for (Integer unitId : view.getUnitIds(ENEMY_PLAYERNUM)) {
+			String unitName = view.getUnitName(unitId).toLowerCase();
 			if (unitName.equals("footman")) {
 				enemyFootmen.add(unitId);
 			} else {
@@ -164,7 +408,34 @@ public class RLAgent extends Agent {
 			}
 		}
 
-		return middleStep(stateView, historyView);
+		if (replanned.length < myFootmen.numSlots()) {
+			replanned = new int[myFootmen.numSlots()];
+			choiceOffsets = new int[myFootmen.numSlots()];
+			choiceSteps = new double[myFootmen.numSlots()];
+		}
+		scoredTurn = -1;
+		numChoices = 0;
+		if (batchedUpdate != null) {
+			batchedUpdate.reset(myFootmen.numSlots());
+		}
+		if (scheduler != null) {
+			scheduler.reset(myFootmen.numSlots());
+		}
+
+		//the replay buffer lives across episodes, it is created on the first one
+		int replayCapacity = options.getInt("replay.capacity", 0);
+		if (replayCapacity > 0 && replay == null && qFunction == null) {
+			replay = new ExperienceReplay(replayCapacity, features.size(), enemyFootmen.size(),
+					options.getBoolean("replay.prioritized", false));
+		}
+		if (replay != null) {
+			if (hasPending.length < myFootmen.numSlots()) {
+				pendingFeatures = new double[myFootmen.numSlots() * features.size()];
+				rewardAtChoice = new double[myFootmen.numSlots()];
+				hasPending = new boolean[myFootmen.numSlots()];
+			}
+			Arrays.fill(hasPending, false);
+		}
 	}
 
 	/**
@@ -205,33 +476,135 @@ public class RLAgent extends Agent {
 	 */
 	@Override
 	public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+		if (recorder != null) {
+			recorder.record(stateView, historyView);
+		}
+		return middleStep(sepiaView.set(stateView, historyView));
+	}
+
+	/**
+	 * middleStep for a battle that isn't played in SEPIA, e.g. in CombatSimulator.
+	 */
+	Map<Integer, Action> middleStep(BattleView view) {
+		long middleStepStart = metrics != null || scheduler != null ? System.nanoTime() : 0;
 
 		//for each footman, calculate it's reward at this step and add it to it's total reward
-		updateFootmenRewards(stateView, historyView);		
-		cleanupDeadUnits(stateView, historyView);
+		updateFootmenRewards(view);		
+		cleanupDeadUnits(view);
 
 		Map<Integer, Action> actionMap = new HashMap<>();
 
-		if (eventHasOccurred(stateView, historyView)) {
+		//the footmen to give new targets, all of them when an event has occurred
+		long eventCheckStart = metrics != null ? System.nanoTime() : 0;
+		boolean eventOccurred;
+		int numReplanned;
+		if (scheduler != null) {
+			numReplanned = scheduleReplans(view);
+			eventOccurred = numReplanned > 0;
+		} else if (incrementalReplanning) {
+			numReplanned = footmenToReplan(view);
+			eventOccurred = numReplanned > 0;
+		} else {
+			eventOccurred = eventHasOccurred(view);
+			numReplanned = eventOccurred ? replanAll() : 0;
+		}
+		if (metrics != null) {
+			metrics.record(AgentMetrics.EVENT_CHECK, eventCheckStart);
+		}
+
+		if (eventOccurred) {
 
-			for (Integer id : myFootmen) {
+			//with joint assignment every footman's target is chosen here at once, selectAction looks it up
+			if (targetAssignment != null) {
+				targetAssignment.solve(currentFeatureTensor(view), weights, view.getTurnNumber());
+			}
+
+			for (int i = 0; i < numReplanned; i++) {
+				//the footmen the budget doesn't reach stay queued and keep their commands
+				if (scheduler != null && !scheduler.hasBudget(i, middleStepStart)) {
+					break;
+				}
+				int slot = replanned[i];
+				int id = myFootmen.id(slot);
 				//reassign attack actions
-				int enemyID = selectAction(stateView, historyView, id);
+				long selectStart = metrics != null ? System.nanoTime() : 0;
+				int enemyID = selectAction(view, id);
+				if (metrics != null) {
+					metrics.record(AgentMetrics.SELECT_ACTION, selectStart);
+					metrics.decision();
+				}
+				episodeDecisions++;
 
 				//only update weights freeze == false
-				if (!freeze) {
+				if (!freeze && replay != null) {
+					rememberTransition(view, slot, enemyID);
+				}
+				else if (!freeze && batchedUpdate != null) {
+					long updateStart = metrics != null ? System.nanoTime() : 0;
+					addToBatch(view, slot, enemyID);
+					if (metrics != null) {
+						metrics.record(AgentMetrics.UPDATE_WEIGHTS, updateStart);
+					}
+				}
+				else if (!freeze && qFunction != null) {
+					addChoice(view, slot, enemyID);
+				}
+				else if (!freeze) {
+					double[] features = calculateFeatureVector(view, id, enemyID);
+					long updateStart = metrics != null ? System.nanoTime() : 0;
 					weights = updateWeights(weights,
-							calculateFeatureVector(stateView, historyView, id, enemyID), 
-							rewardMap.get(id),
-							stateView,
-							historyView,
+							features, 
+							myFootmen.reward(slot),
+							view,
 							id);
+					if (metrics != null) {
+						metrics.record(AgentMetrics.UPDATE_WEIGHTS, updateStart);
+					}
 				}
 
-				actionMap.put(id, Action.createCompoundAttack(id, enemyID));
+				if (!incrementalReplanning || needsNewCommand(view, slot, enemyID)) {
+					actionMap.put(id, Action.createCompoundAttack(id, enemyID));
+				}
+				if (scheduler != null) {
+					scheduler.decided(slot);
+				}
+			}
+
+			//the choices of this event are trained on together, after all of them were scored
+			if (!freeze && qFunction != null && numChoices > 0) {
+				long updateStart = metrics != null ? System.nanoTime() : 0;
+				qFunction.updateAll(currentFeatureTensor(view).data(), choiceOffsets, choiceSteps, numChoices);
+				numChoices = 0;
+				scoredTurn = -1;
+				if (metrics != null) {
+					metrics.record(AgentMetrics.UPDATE_WEIGHTS, updateStart);
+				}
+			}
+
+			//a fixed number of minibatches per event, see replay
+			if (!freeze && replay != null && replay.size() >= replayBatchSize) {
+				for (int i = 0; i < replayUpdatesPerEvent; i++) {
+					replay.train(weights, replayBatchSize, gamma, learningRate, random);
+				}
+			}
+			//the footmen that weren't sent a command keep their targets
+			if (!incrementalReplanning || !actionMap.isEmpty()) {
+				myFootmen.rememberTargets();
+				for (Action action : actionMap.values()) {
+					TargetedAction attack = (TargetedAction) action;
+					myFootmen.setTarget(myFootmen.slotOf(attack.getUnitId()), attack.getTargetId());
+				}
 			}
-			previousActionMap = currentActionMap;
-			currentActionMap = actionMap;
+		}
+		//the choices of this event and of the footmen that died on the last turn are applied together
+		if (!freeze && batchedUpdate != null) {
+			batchedUpdate.apply(weights);
+		}
+
+		if (metrics != null) {
+			metrics.record(AgentMetrics.MIDDLE_STEP, middleStepStart);
+			metrics.turn(eventOccurred);
+			metrics.maybeFlush(numEpisodesPlayed);
 		}
 		return actionMap;
 	}
@@ -241,33 +614,112 @@ public class RLAgent extends Agent {
 	 * 
 	 * TODO implement this more intelligently
 	 */
-	private boolean eventHasOccurred(StateView stateView, HistoryView historyView) {
+	private boolean eventHasOccurred(BattleView view) {
 
-		if (stateView.getTurnNumber() == 0) {
+		if (view.getTurnNumber() == 0) {
 			//true on first turn
 			//System.out.println("event has occurred: first turn");			
 			return true;
 		}
 		//a death indicates a significant change
-		if (historyView.getDeathLogs(stateView.getTurnNumber() - 1).size() > 0) {
+		TurnLog lastTurn = view.getLastTurn();
+		if (lastTurn.numDeaths() > 0) {
 			//System.out.println("event has occurred: somebody died");			
 			return true;
 		}
 
 		//return true if any units are not in the middle of executing an action
-		Map<Integer, ActionResult> actionResults =
-				historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1);
-		for (ActionResult result : actionResults.values()) {
+		for (int i = 0; i < lastTurn.numFeedback(); i++) {
 
-			if(!result.getFeedback().toString().equals("INCOMPLETE")) {
+			if (lastTurn.feedbackPlayer(i) == playernum && lastTurn.feedbackEnded(i)) {
 				//				System.out.println("event has occurred: Somebody's action was: " +
-				//						result.getFeedback().toString());			
+				//						lastTurn.feedback(i).toString());			
 				return true;
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * Finds the footmen that need a new target: those without a command, those whose action completed or
+	 * failed on the last turn, those whose target died and those that were hit by an enemy that hadn't hit
+	 * them before. Everybody else keeps attacking.
+	 *
+	 * @return The number of footmen to replan, whose slots are put in replanned in roster order
+	 */
+	private int footmenToReplan(BattleView view) {
+		if (view.getTurnNumber() == 0) {
+			return replanAll();
+		}
+		TurnEventIndex events = currentTurnEvents(view);
+		int numReplanned = 0;
+		for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+			int target = myFootmen.target(slot);
+			if (target == UnitRoster.NO_TARGET || events.actionEnded(slot) || events.newAttacker(slot) ||
+					events.enemyDied(enemyFootmen.slotOf(target))) {
+				replanned[numReplanned++] = slot;
+			}
+		}
+		return numReplanned;
+	}
+
+	/**
+	 * Queues the footmen that need a new target with the scheduler, by why they need one: the same footmen
+	 * as footmenToReplan with replan.incremental, and otherwise everybody when an event has occurred.
+	 *
+	 * @return The number of queued footmen, whose slots are put in replanned in the order they should decide in
+	 */
+	private int scheduleReplans(BattleView view) {
+		int turn = view.getTurnNumber();
+		//there are no events before the first turn, everybody needs a first target
+		if (turn == 0) {
+			for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+				scheduler.request(slot, DecisionScheduler.IDLE, turn);
+			}
+			return scheduler.schedule(myFootmen, replanned);
+		}
+		boolean everybody = !incrementalReplanning && eventHasOccurred(view);
+		TurnEventIndex events = currentTurnEvents(view);
+		for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+			int target = myFootmen.target(slot);
+			if (target == UnitRoster.NO_TARGET || events.actionEnded(slot)) {
+				scheduler.request(slot, DecisionScheduler.IDLE, turn);
+			} else if (events.enemyDied(enemyFootmen.slotOf(target))) {
+				scheduler.request(slot, DecisionScheduler.TARGET_DIED, turn);
+			} else if (events.newAttacker(slot)) {
+				scheduler.request(slot, DecisionScheduler.UNDER_ATTACK, turn);
+			} else if (everybody) {
+				scheduler.request(slot, DecisionScheduler.EVENT, turn);
+			}
+		}
+		return scheduler.schedule(myFootmen, replanned);
+	}
+
+	/**
+	 * Puts the slots of all live footmen in replanned, in roster order.
+	 *
+	 * @return The number of live footmen
+	 */
+	private int replanAll() {
+		int numReplanned = 0;
+		for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+			replanned[numReplanned++] = slot;
+		}
+		return numReplanned;
+	}
+
+	/**
+	 * @return true unless the footman in the given slot is still in the middle of attacking the given enemy
+	 */
+	private boolean needsNewCommand(BattleView view, int slot, int enemyId) {
+		if (view.getTurnNumber() == 0) {
+			return true;
+		}
+		int target = myFootmen.target(slot);
+		return target == UnitRoster.NO_TARGET || target != enemyId ||
+				currentTurnEvents(view).actionEnded(slot);
+	}
+
 	/**
 	 * Here you will calculate the cumulative average rewards for your testing episodes. If you have just
 	 * finished a set of test episodes you will call out testEpisode.
@@ -276,46 +728,87 @@ public class RLAgent extends Agent {
 	 */
 	@Override
 	public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+		if (recorder != null) {
+			recorder.record(stateView, historyView);
+			recorder.close();
+		}
+		terminalStep(sepiaView.set(stateView, historyView));
+	}
+
+	/**
+	 * terminalStep for a battle that isn't played in SEPIA, e.g. in CombatSimulator.
+	 */
+	void terminalStep(BattleView view) {
 
 		//add the rewards for the last move
-		updateFootmenRewards(stateView, historyView);		
+		updateFootmenRewards(view);		
 		//remove the dead people so we can see who won and by how much
-		cleanupDeadUnits(stateView, historyView);
+		cleanupDeadUnits(view);
+
+		//the survivors' choices won't be followed by any others
+		if (!freeze && replay != null) {
+			for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+				finishTransition(slot);
+			}
+		}
+		if (!freeze && batchedUpdate != null) {
+			for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+				batchedUpdate.finish(slot, weights, myFootmen.reward(slot), learningRate);
+			}
+			batchedUpdate.apply(weights);
+		}
 
 		//say who wins
 		if (myFootmen.size() == 0) {
-			System.out.println("You Lose. Enemy has " + enemyFootmen.size() + " footmen remaining");
+			report("You Lose. Enemy has " + enemyFootmen.size() + " footmen remaining");
 		}
 		else if (enemyFootmen.size() == 0) {
-			System.out.println("You Win. You have " + myFootmen.size() + " footmen remaining");
+			report("You Win. You have " + myFootmen.size() + " footmen remaining");
 		}
 		else {
 			System.err.println("ERROR: Winner unknown");
 		}
 
 		numEpisodesPlayed++;
-		System.out.println(numEpisodesPlayed + " episodes have been played\n");
+		report(numEpisodesPlayed + " episodes have been played\n");
+
+		double episodeReward = myFootmen.totalReward();
+		boolean evaluationEpisode = freeze;
+
+		//an agent of a SnapshotEvaluator only plays evaluation episodes
+		if (evaluationOnly) {
+			evaluationReward += episodeReward;
+			return;
+		}
+
+		if (results != null) {
+			recordResults(view, evaluationEpisode);
+		}
+
+		//with concurrent evaluation every episode learns and the snapshots are scored on the side
+		if (snapshotEvaluator != null) {
+			if (numEpisodesPlayed % evaluationInterval == 0) {
+				snapshotEvaluator.submit(weights);
+			}
+			mergeEvaluations(snapshotEvaluator.completed());
+		}
 
 		//count the total reward if we're in evaluation mode (freeze == true)
 		if (freeze) {
-			Double sum = 0.0;
-			for (Double reward : rewardMap.values()) {
-				sum += reward;
-			}
-			evaluationRewards[evalRoundCounter] = sum;
+			evaluationRewards[evalRoundCounter] = episodeReward;
 			evalRoundCounter++;
 		}
 
 		//Q function starts frozen for the first 5 rounds, so freeze needs to be set to true every 15 rounds
 		//so freezing will occur at round 0, 15, 30, etc
-		if (numEpisodesPlayed % 15 == 0) {
-			System.out.println("Entering evaluation mode, freezing Q function");
+		if (snapshotEvaluator == null && numEpisodesPlayed % 15 == 0) {
+			report("Entering evaluation mode, freezing Q function");
 			freeze = true;
 			evaluationRewards = new Double[5];
 			evalRoundCounter = 0;
 		}
 		//similarly unfreezing will occur at round 5, 20, 35, etc
-		else if ((numEpisodesPlayed - 5) % 15 == 0) {
+		else if (snapshotEvaluator == null && (numEpisodesPlayed - 5) % 15 == 0) {
 			freeze = false;
 
 			//TODO cumulative rewards should be UNDISCOUNTED
@@ -326,38 +819,226 @@ public class RLAgent extends Agent {
 
 			Double avg = sum/evaluationRewards.length;
 			avgRewards.add(avg);	
-			printTestData(avgRewards);
-			System.out.println("Entering learning mode, unfreezing Q function");
+			if (!headless) {
+				printTestData(avgRewards);
+			}
+			report("Entering learning mode, unfreezing Q function");
+		}
+
+		if (metrics != null) {
+			metrics.endEpisode(view.getTurnNumber());
+			if (numEpisodesPlayed >= numEpisodes) {
+				metrics.close(numEpisodesPlayed);
+				metrics = null;
+			} else {
+				metrics.maybeFlush(numEpisodesPlayed);
+			}
+		}
+
+		//hand in what we learned this episode and continue from the shared weights
+		if (weightSync != null) {
+			syncedWeights = weightSync.exchange(syncedWeights, weights);
+			weights = syncedWeights.clone();
+			return;
+		}
+
+		//a headless agent leaves saving and ending the session to the tool playing it
+		if (headless) {
+			if (numEpisodesPlayed >= numEpisodes && snapshotEvaluator != null) {
+				mergeEvaluations(snapshotEvaluator.finish());
+			}
+			return;
+		}
+
+		if (qFunction != null) {
+			saveQFunction();
+		} else {
+			recordWeights(evaluationEpisode, episodeReward);
 		}
 
 		//quit if we've just played the last episode
 		if (numEpisodesPlayed >= numEpisodes) {
+			if (snapshotEvaluator != null) {
+				mergeEvaluations(snapshotEvaluator.finish());
+			}
+			//the text file is kept as an export of the final weights so loadWeights can pick them up
+			if (qFunction == null) {
+				saveWeights(boxWeights(weights));
+			}
+			closeWeightHistory();
 			System.out.println("Session complete");			
 			System.exit(0);
 		}
+	}
+
+	/**
+	 * Appends the results of the episode that just ended to the results file, and closes it after the last
+	 * episode.
+	 *
+	 * @param view The last turn of the episode
+	 * @param evaluationEpisode Whether the episode was played with the Q function frozen
+	 */
+	private void recordResults(BattleView view, boolean evaluationEpisode) {
+		byte outcome = myFootmen.size() == 0 ? ResultsFile.LOSS :
+				enemyFootmen.size() == 0 ? ResultsFile.WIN : ResultsFile.UNDECIDED;
+		if (footmanRewards.length < myFootmen.numSlots()) {
+			footmanRewards = new double[myFootmen.numSlots()];
+		}
+		for (int slot = 0; slot < myFootmen.numSlots(); slot++) {
+			footmanRewards[slot] = myFootmen.reward(slot);
+		}
+		//the weights of an evaluation episode were learned before the first evaluation episode of its round
+		int weightVersion = numEpisodesPlayed - 1 - (evaluationEpisode ? evalRoundCounter : 0);
+		try {
+			results.append(numEpisodesPlayed, evaluationEpisode ? ResultsFile.EVALUATION : ResultsFile.LEARNING,
+					outcome, myFootmen.size(), enemyFootmen.size(), view.getTurnNumber(), weightVersion,
+					episodeDecisions, System.nanoTime() - episodeStart, footmanRewards, myFootmen.numSlots());
+			if (numEpisodesPlayed >= numEpisodes) {
+				results.close();
+				results = null;
+			}
+		} catch (IOException ex) {
+			System.err.println("Failed to write results. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Adds the average rewards of evaluated snapshots to avgRewards and prints the learning curve so far.
+	 *
+	 * @param rewards The average rewards, in the order the snapshots were taken
+	 */
+	private void mergeEvaluations(List<Double> rewards) {
+		if (!rewards.isEmpty()) {
+			avgRewards.addAll(rewards);
+			if (!headless) {
+				printTestData(avgRewards);
+			}
+		}
+	}
+
+	/**
+	 * Appends the weights after this episode to the weight history. The write happens in the background.
+	 *
+	 * @param evaluationEpisode Whether the episode was played with the Q function frozen
+	 * @param episodeReward The total reward of all footmen this episode
+	 */
+	private void recordWeights(boolean evaluationEpisode, double episodeReward) {
+		if (weightHistory == null && !weightHistoryFailed) {
+			try {
+				weightHistory = WeightHistory.open(new File(WeightHistory.DEFAULT_PATH), weights.length);
+			} catch (IOException ex) {
+				System.err.println("Failed to open weight history. Reason: " + ex.getMessage());
+				weightHistoryFailed = true;
+			}
+		}
+
+		if (weightHistory != null) {
+			weightHistory.append(numEpisodesPlayed, evaluationEpisode ? WeightHistory.EVALUATION : 0,
+					episodeReward, weights);
+		} else {
+			saveWeights(boxWeights(weights));
+		}
+	}
+
+	/**
+	 * Waits for the pending weight history writes and closes it.
+	 */
+	private void closeWeightHistory() {
+		if (weightHistory != null) {
+			try {
+				weightHistory.close();
+			} catch (IOException ex) {
+				System.err.println("Failed to close weight history. Reason: " + ex.getMessage());
+			}
+			weightHistory = null;
+		}
+	}
+
+	/**
+	 * Makes this agent play evaluation episodes only, for a SnapshotEvaluator. The Q function stays frozen
+	 * with the given weights and the rewards of the episodes are summed up in getEvaluationReward.
+	 *
+	 * @param snapshot The weights to evaluate
+	 */
+	void evaluateOnly(double[] snapshot) {
+		weights = snapshot.clone();
+		freeze = true;
+		evaluationOnly = true;
+	}
+
+	/**
+	 * @return The total reward of the episodes played since evaluateOnly
+	 */
+	double getEvaluationReward() {
+		return evaluationReward;
+	}
+
+	/**
+	 * @return The number of features the agent reads, which is the number of weights it needs
+	 */
+	int numFeatures() {
+		return features.size();
+	}
+
+	/**
+	 * @return The Q function the agent learns, or null when it learns the linear weights
+	 */
+	QFunction getQFunction() {
+		return qFunction;
+	}
 
-		saveWeights(weights);
+	/**
+	 * Prints a message about the session on System.out, unless the agent is headless.
+	 */
+	private void report(String message) {
+		if (!headless) {
+			System.out.println(message);
+		}
+	}
+
+	/**
+	 * Makes this agent an actor of a parallel training run. It starts from the shared weights and exchanges
+	 * weights with the given WeightSync at the end of every episode instead of saving them.
+	 *
+	 * @param weightSync The learner that owns the shared weights
+	 */
+	void setWeightSync(WeightSync weightSync) {
+		if (qFunction != null) {
+			throw new IllegalStateException("Only the weights of the linear Q-function can be exchanged");
+		}
+		this.weightSync = weightSync;
+		syncedWeights = weightSync.latest();
+		weights = syncedWeights.clone();
 	}
 
 	/**
 	 * removes the units that were killed on the last turn from myFootmen and enemyFootmen
 	 * 
-	 * @param stateView
-	 * @param historyView
+	 * @param view
 	 */
-	private void cleanupDeadUnits(State.StateView stateView, History.HistoryView historyView) {
-		if (stateView.getTurnNumber() > 0) {
+	private void cleanupDeadUnits(BattleView view) {
+		if (view.getTurnNumber() > 0) {
 			//"bring out your dead, bring out your dead"
-			for(DeathLog deathLog : historyView.getDeathLogs(stateView.getTurnNumber() - 1)) {
-				Integer deadUnitID = deathLog.getDeadUnitID();
-				//System.out.println("Player: " + deathLog.getController() + " unit: " + deadUnitID);
-
-				//remove the dead unit from whichever list its in
-				if (myFootmen.contains(deadUnitID)) {
-					myFootmen.remove(deadUnitID);
+			TurnLog lastTurn = view.getLastTurn();
+			for (int i = 0; i < lastTurn.numDeaths(); i++) {
+				int deadUnitID = lastTurn.deadUnit(i);
+				//System.out.println("Player: " + lastTurn.deadController(i) + " unit: " + deadUnitID);
+
+				//remove the dead unit from whichever roster its in
+				featureTensor.invalidate();
+				int mySlot = myFootmen.slotOf(deadUnitID);
+				int enemySlot = enemyFootmen.slotOf(deadUnitID);
+				if (mySlot >= 0 && myFootmen.isAlive(mySlot)) {
+					myFootmen.kill(mySlot);
+					if (!freeze && replay != null) {
+						finishTransition(mySlot);
+					}
+					if (!freeze && batchedUpdate != null) {
+						batchedUpdate.finish(mySlot, weights, myFootmen.reward(mySlot), learningRate);
+					}
 				}
-				else if (enemyFootmen.contains(deadUnitID)) {
-					enemyFootmen.remove(deadUnitID);
+				else if (enemySlot >= 0 && enemyFootmen.isAlive(enemySlot)) {
+					enemyFootmen.kill(enemySlot);
 				}
 				else {
 					System.err.println("ERROR: dead unit not identified");
@@ -369,70 +1050,67 @@ public class RLAgent extends Agent {
 	/**
 	 * Add the rewards from the last turn to each unit's totals
 	 * 
-	 * @param stateView
-	 * @param historyView
+	 * @param view
 	 */
-	private void updateFootmenRewards(State.StateView stateView, History.HistoryView historyView) {
-		for (Integer id : myFootmen) {
-			double currentReward = calculateReward(stateView, historyView, id);
-			double cumulativeReward = rewardMap.get(id);
-			rewardMap.put(id, cumulativeReward + currentReward);
+	private void updateFootmenRewards(BattleView view) {
+		TurnEventIndex events = currentTurnEvents(view);
+		for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+			long rewardStart = metrics != null ? System.nanoTime() : 0;
+			//the same as calculateReward, without looking up the slot of every footman
+			double currentReward = reward(events, slot);
+			if (metrics != null) {
+				metrics.record(AgentMetrics.CALCULATE_REWARD, rewardStart);
+			}
+			myFootmen.addReward(slot, currentReward);
 		}
 	}
 
 	/**
-	 * Calculate the updated weights for this agent. 
+	 * Calculate the updated weights for this agent. The weights are updated in place.
 	 * @param oldWeights Weights prior to update
 	 * @param oldFeatures Features from (s,a)
 	 * @param totalReward Cumulative discounted reward for this footman.
 	 * @param stateView Current state of the game.
 	 * @param historyView History of the game up until this point
 	 * @param footmanId The footman we are updating the weights for
-	 * @return The updated weight vector.
+	 * @return The updated weight vector, which is oldWeights.
 	 */
-	public Double[] updateWeights(Double[] oldWeights, double[] oldFeatures, double totalReward,
+	public double[] updateWeights(double[] oldWeights, double[] oldFeatures, double totalReward,
 			State.StateView stateView, History.HistoryView historyView, int footmanId) {
+		return updateWeights(oldWeights, oldFeatures, totalReward, sepiaView.set(stateView, historyView),
+				footmanId);
+	}
+
+	/**
+	 * updateWeights for a battle that isn't played in SEPIA, e.g. in CombatSimulator.
+	 */
+	double[] updateWeights(double[] oldWeights, double[] oldFeatures, double totalReward, BattleView view,
+			int footmanId) {
 
 		//TODO not sure if this is doing exactly what we're supposed to
 		//see lec 18 slide 58, and book 846
 
-		Double[] newWeights = new Double[oldWeights.length];
-		for (int i = 0; i < oldWeights.length; i++) {
+		double currentQVal = qFunction != null ? qFunction.score(oldFeatures, 0) :
+				LinearQKernel.score(oldWeights, oldFeatures, 0);
 
-			//compute the dot product to get the final qVal
-			double dotProduct = 0;
-			for (int j = 0; j < oldFeatures.length; j++) {
-				dotProduct += oldFeatures[j] * oldWeights[j];
-			}
-			double currentQVal = dotProduct;
-
-			double maxQVal = Double.NEGATIVE_INFINITY;
-			for (Integer enemy : enemyFootmen) {
-				double qVal = calcQValue(stateView, historyView, footmanId, enemy);
-				if (qVal > maxQVal) {
-					maxQVal = qVal;
-				}
-			}
-
-			double targetQVal = totalReward + gamma * maxQVal;
-			double dldw = -1 * (targetQVal - currentQVal) * oldFeatures[i];
-			newWeights[i] = oldWeights[i] - learningRate * (dldw);
+		//the target doesn't depend on which weight is being updated, so only find the max Q once
+		FeatureTensor tensor = currentFeatureTensor(view);
+		double maxQVal = maxQValue(view, tensor, attackerIndex(tensor, footmanId));
+		double targetQVal = totalReward + gamma * maxQVal;
 
-			//TODO ask george if his diffs are fucking enormous
-			//System.out.println("diff " + i + " is: " + (targetQVal - currentQVal));
+		if (qFunction != null) {
+			qFunction.update(oldFeatures, 0, learningRate * (targetQVal - currentQVal));
+			scoredTurn = -1;
+			return oldWeights;
 		}
 
-		//		System.out.println("\nOld weights: ");
-		//		for (int i = 0; i < oldWeights.length; i++) {
-		//			System.out.print(oldWeights[i] + ", ");
-		//		}
-		//		System.out.println();
-		//		System.out.println("New weights: ");
-		//		for (int i = 0; i < newWeights.length; i++) {
-		//			System.out.print(newWeights[i] + ", ");
-		//		}
+		//dL/dw = -(target - current) * f, so stepping against the gradient adds the features
+		LinearQKernel.update(oldWeights, oldFeatures, 0, learningRate * (targetQVal - currentQVal));
+
+		//TODO ask george if his diffs are fucking enormous
+		//System.out.println("diff is: " + (targetQVal - currentQVal));
 
-		return newWeights;
+		return oldWeights;
 	}
 
 	/**
@@ -445,6 +1123,13 @@ public class RLAgent extends Agent {
 	 * @return The enemy footman ID this unit should attack
 	 */
 	public int selectAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+		return selectAction(sepiaView.set(stateView, historyView), attackerId);
+	}
+
+	/**
+	 * selectAction for a battle that isn't played in SEPIA, e.g. in CombatSimulator.
+	 */
+	int selectAction(BattleView view, int attackerId) {
 
 		if (enemyFootmen.size() > 0) {
 			//if not frozen and the rand number less than epsilon choose random action
@@ -453,21 +1138,19 @@ public class RLAgent extends Agent {
 				//choose a random index of enemyFootmen
 				int index = (int) random.nextDouble() * enemyFootmen.size();
 				//return the id
-				return enemyFootmen.get(index);
+				return enemyFootmen.id(enemyFootmen.nthAlive(index));
 			}
 			//otherwise choose action that maxmizes Q value
 			else {
-				int bestEnemyToAttack = enemyFootmen.get(0);
-				double bestQVal = calcQValue(stateView, historyView, attackerId, bestEnemyToAttack);
-				for (int i = 1; i < enemyFootmen.size(); i++) {
-					int enemyID = enemyFootmen.get(i);
-					double qVal = calcQValue(stateView, historyView, attackerId, enemyID);
-					if (qVal > bestQVal) {
-						bestQVal = qVal;
-						bestEnemyToAttack = enemyID;
+				//with joint assignment the target was already chosen together with the other footmen
+				if (targetAssignment != null && targetAssignment.isCurrent(view.getTurnNumber())) {
+					int target = targetAssignment.targetOf(attackerId);
+					if (target >= 0) {
+						return target;
 					}
 				}
-				return bestEnemyToAttack;
+				FeatureTensor tensor = currentFeatureTensor(view);
+				return tensor.defenderId(bestDefender(view, tensor, attackerIndex(tensor, attackerId)));
 			}
 		}
 		//No enemies left to attack
@@ -512,101 +1195,64 @@ public class RLAgent extends Agent {
 	 */
 	//discounting is not necessary because we update the reward at every step, 
 	public double calculateReward(State.StateView stateView, History.HistoryView historyView, int footmanId) {
+		return calculateReward(sepiaView.set(stateView, historyView), footmanId);
+	}
+
+	/**
+	 * calculateReward for a battle that isn't played in SEPIA, e.g. in CombatSimulator.
+	 */
+	double calculateReward(BattleView view, int footmanId) {
 
 
 		//TODO figure out how to implement discounting of rewards based on timestep, see lec 17 slide 16
 
 
-		//no reward on the first turn because nothing has happened yet
-		if (stateView.getTurnNumber() == 0) {
+		//no reward on the first turn because nothing has happened yet, and none for a unit that isn't ours
+		int slot = myFootmen.slotOf(footmanId);
+		if (view.getTurnNumber() == 0 || slot < 0) {
 			return 0;
 		}
 
+		return reward(currentTurnEvents(view), slot);
+	}
+
+	/**
+	 * The reward of a footman for what happened to it on the last turn, also used by OfflineTrainer to
+	 * reward the footmen of recorded battles.
+	 */
+	static double reward(TurnEventIndex events, int slot) {
 		double reward = 0;
 
 		//Here we only add -.1 to the reward if a new action is given to this footman
 		//So if a new command is issued, but the target is the same, don't add -.1 because its not
 		//really a new move
-		Map<Integer, Action> commandsIssued =
-				historyView.getCommandsIssued(playernum, stateView.getTurnNumber() - 1);
-		for (Map.Entry<Integer, Action> commandEntry : commandsIssued.entrySet()) {
-
-			if (commandEntry.getKey() == footmanId) {
-
-				if (previousActionMap != null) {
-					//TODO cast works because no other actions can exist, right?
-					TargetedAction oldAction = (TargetedAction) previousActionMap.get(footmanId);
-					TargetedAction newAction = (TargetedAction) commandEntry.getValue();
-
-					//new action started if the targets are different
-					if (oldAction.getTargetId() != newAction.getTargetId()) {
-						reward -= 0.1;
-					}
-				}
-				//no previous action -> new action started
-				else {
-					reward -= 0.1;
-				}
-
-			}
+		if (events.targetChanged(slot)) {
+			reward -= 0.1;
 		}
 
-		for(DamageLog damageLog : historyView.getDamageLogs(stateView.getTurnNumber() - 1)) {
-
-			int damageAmount = damageLog.getDamage();	
-			Integer defenderID = damageLog.getDefenderID();
-			Integer attackerID = damageLog.getAttackerID();
-
-			if (defenderID == footmanId) {
-				reward -= damageAmount;
-			}
+		reward -= events.damageTaken(slot);
+		reward += events.damageDealt(slot);
 
-			if (attackerID == footmanId) {
-				reward += damageAmount;
-			}
+		//the +100 for a kill can only be claimed by one footman, see TurnEventIndex.build
+		reward += 100 * events.killsCredited(slot);
+		if (events.died(slot)) {
+			reward -= 100;
 		}
 
-		for(DeathLog deathLog : historyView.getDeathLogs(stateView.getTurnNumber() - 1)) {
-
-			int playerID = deathLog.getController();
-			Integer deadUnitID = deathLog.getDeadUnitID();
-
-			//check if it was an enemy that died
-			if (ENEMY_PLAYERNUM == playerID) {
-
-				Map<Integer, ActionResult> actionResults =
-						historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1);
-				for (ActionResult result : actionResults.values()) {
+		return reward;
+	}
 
-					//TODO cast works because no other actions can exist, right?
-					TargetedAction compoundAttack = (TargetedAction) result.getAction();
-					//claim the reward if no one else has claimed it, and this footman was the killer
-					if (!enemyBlackList.contains(deadUnitID) &&
-							compoundAttack.getUnitId() == footmanId &&
-							compoundAttack.getTargetId() == deadUnitID) {
-						enemyBlackList.add(deadUnitID);
-						reward += 100;
-						//System.out.println("kill reward claimed");
-						break;
-					}
-				}
-			}
-			else if (deadUnitID == footmanId) {
-				reward -= 100;
-			}
+	/**
+	 * Returns the event index for the last turn, building it first if it is out of date.
+	 *
+	 * @param view The current turn of the battle
+	 * @return The events of every unit on the last turn
+	 */
+	private TurnEventIndex currentTurnEvents(BattleView view) {
+		if (!turnEvents.isCurrent(view.getTurnNumber())) {
+			turnEvents.build(view, playernum, myFootmen, enemyFootmen);
 		}
-
-		//TODO delete
-//		if (stateView.getUnit(footmanId) != null) {
-//			System.out.println("footman at " + stateView.getUnit(footmanId).getXPosition() + ", " + 
-//					stateView.getUnit(footmanId).getYPosition() + " just got reward: " + reward);
-//		}
-//		else {
-//			System.out.println("footman " + footmanId + " just got reward: " + reward);
-//		}
-
-		
-		return reward;
+		return turnEvents;
 	}
 
 	/**
@@ -627,21 +1273,27 @@ public class RLAgent extends Agent {
 			History.HistoryView historyView,
 			int attackerId,
 			int defenderId) {
+		return calcQValue(sepiaView.set(stateView, historyView), attackerId, defenderId);
+	}
 
-		double[] features = calculateFeatureVector(stateView, historyView, attackerId, defenderId);
+	/**
+	 * calcQValue for a battle that isn't played in SEPIA, e.g. in CombatSimulator.
+	 */
+	double calcQValue(BattleView view, int attackerId, int defenderId) {
 
-		if (weights.length != features.length) {
-			System.err.println("ERROR: weights and features not same length");
+		if (weights.length != features.size()) {
+			System.err.println("ERROR: weights and features not same length, the features are " +
+					features.names());
 			System.exit(0);
 		}
 
-		//compute the dot product to get the final qVal
-		double dotProduct = 0;
-		for (int i = 0; i < features.length; i++) {
-			dotProduct += features[i] * weights[i];
+		FeatureTensor tensor = currentFeatureTensor(view);
+		int a = attackerIndex(tensor, attackerId);
+		int d = defenderIndex(tensor, defenderId);
+		if (qFunction != null) {
+			return currentTurnScores(view, tensor)[a * tensor.numDefenders() + d];
 		}
-
-		return dotProduct;
+		return tensor.score(a, d, weights);
 	}
 
 	/**
@@ -666,100 +1318,177 @@ public class RLAgent extends Agent {
 			History.HistoryView historyView,
 			int attackerId,
 			int defenderId) {
+		return calculateFeatureVector(sepiaView.set(stateView, historyView), attackerId, defenderId);
+	}
 
-		//our friendly unit
-		UnitView attacker = stateView.getUnit(attackerId);
-		//enemy unit that we're attacking
-		UnitView defender = stateView.getUnit(defenderId);
-
-		double[] featuresArray = new double[NUM_FEATURES];
-
-		//f0 is a constant
-		featuresArray[0] = 1;
+	/**
+	 * calculateFeatureVector for a battle that isn't played in SEPIA, e.g. in CombatSimulator.
+	 */
+	double[] calculateFeatureVector(BattleView view, int attackerId, int defenderId) {
 
-		int targetDistance = DistanceMetrics.chebyshevDistance(attacker.getXPosition(),
-				attacker.getYPosition(), defender.getXPosition(), defender.getYPosition());
+		//the features of every pair are computed together once per turn, see FeatureTensor.build for
+		//what they are and why we chose them
+		FeatureTensor tensor = currentFeatureTensor(view);
+		return tensor.features(attackerIndex(tensor, attackerId), defenderIndex(tensor, defenderId));
+	}
 
-		//indicates how close this footman is 
-		int closenessRank = 0;
-		for (int enemyID : enemyFootmen) {
-			UnitView enemy = stateView.getUnit(enemyID);
-			int distance = DistanceMetrics.chebyshevDistance(attacker.getXPosition(),
-					attacker.getYPosition(), enemy.getXPosition(), enemy.getYPosition());
-			if (distance < targetDistance) {
-				closenessRank++;
-			}
+	/**
+	 * Keeps a footman's choice of an enemy until it is followed by the state it led to. The footman's
+	 * previous choice is stored in the replay buffer now, with the reward the footman got since and this
+	 * turn's options as the next state.
+	 *
+	 * @param view The current turn of the battle
+	 * @param slot The footman's roster slot
+	 * @param defenderId The enemy it chose
+	 */
+	private void rememberTransition(BattleView view, int slot, int defenderId) {
+		FeatureTensor tensor = currentFeatureTensor(view);
+		int attacker = attackerIndex(tensor, myFootmen.id(slot));
+		int numFeatures = features.size();
+		if (hasPending[slot]) {
+			replay.add(pendingFeatures, slot * numFeatures, myFootmen.reward(slot) - rewardAtChoice[slot],
+					tensor.data(), tensor.rowOffset(attacker), tensor.numDefenders());
 		}
-		//f1 is the number of enemies left minus the rank of how close this enemy is to the footman
-		//compared to the others in terms of chebyshev distance.
-		//Chose to use the feature because it causes the footmen to favor attacking closer enemies
-		featuresArray[1] = enemyFootmen.size() - closenessRank;
-
-
-		//f2 is the health ratio of the friendly footman to its target
-		//This features causes the footmen to favor attacking enemies weaker that themselves
-		featuresArray[2] = attacker.getHP()/defender.getHP();
-		//		featuresArray[2] = attacker.getHP() - defender.getHP();
-		//		featuresArray[2] = defender.getHP() - attacker.getHP();
-
-
-		//the number of friendly units also attacking your target
-		int numFriendliesAlsoAttacking = 0;
-
-		if (stateView.getTurnNumber() != 0) {
+		System.arraycopy(tensor.data(), tensor.pairOffset(attacker, defenderIndex(tensor, defenderId)),
+				pendingFeatures, slot * numFeatures, numFeatures);
+		rewardAtChoice[slot] = myFootmen.reward(slot);
+		hasPending[slot] = true;
+	}
 
-			Map<Integer, Action> commandsIssued =
-					historyView.getCommandsIssued(playernum, stateView.getTurnNumber() - 1);
-			for (Map.Entry<Integer, Action> commandEntry : commandsIssued.entrySet()) {
-				if (commandEntry.getKey() != attackerId) {
-					TargetedAction action = (TargetedAction) commandEntry.getValue();
-					if (action != null && action.getTargetId() == defenderId) {
-						numFriendliesAlsoAttacking++;
-					}
-				}
-			}
+	/**
+	 * Stores a footman's last choice in the replay buffer as a terminal transition, because it died or the
+	 * episode ended.
+	 *
+	 * @param slot The footman's roster slot
+	 */
+	private void finishTransition(int slot) {
+		if (hasPending[slot]) {
+			replay.add(pendingFeatures, slot * features.size(), myFootmen.reward(slot) - rewardAtChoice[slot],
+					pendingFeatures, 0, 0);
+			hasPending[slot] = false;
 		}
+	}
 
-		//f3 is the number of of friendly units also attacking the target divided by the total number of
-		//friendlies 
-		featuresArray[3] = numFriendliesAlsoAttacking/myFootmen.size();
-
+	/**
+	 * Adds a footman's choice to the batched update of this event, with the max Q-value of its row.
+	 *
+	 * @param view The current turn of the battle
+	 * @param slot The footman's roster slot
+	 * @param defenderId The enemy it chose
+	 */
+	private void addToBatch(BattleView view, int slot, int defenderId) {
+		FeatureTensor tensor = currentFeatureTensor(view);
+		int attacker = attackerIndex(tensor, myFootmen.id(slot));
+		double maxQVal = maxQValue(view, tensor, attacker);
+		batchedUpdate.choose(slot, weights, tensor.data(),
+				tensor.pairOffset(attacker, defenderIndex(tensor, defenderId)), myFootmen.reward(slot), maxQVal,
+				learningRate);
+	}
 
-		//determines if target was attacking you on the last turn
-		double enemyIsAttackingFriendly = -1;
-		if (stateView.getTurnNumber() != 0) {
+	/**
+	 * Adds a footman's choice to the batched update of qFunction on this event, with the same target as
+	 * updateWeights.
+	 *
+	 * @param view The current turn of the battle
+	 * @param slot The footman's roster slot
+	 * @param defenderId The enemy it chose
+	 */
+	private void addChoice(BattleView view, int slot, int defenderId) {
+		FeatureTensor tensor = currentFeatureTensor(view);
+		int attacker = attackerIndex(tensor, myFootmen.id(slot));
+		int defender = defenderIndex(tensor, defenderId);
+		double[] scores = currentTurnScores(view, tensor);
+		int row = attacker * tensor.numDefenders();
+		double targetQVal = myFootmen.reward(slot) + gamma * LinearQKernel.max(scores, row, tensor.numDefenders());
+		choiceOffsets[numChoices] = tensor.offset(attacker, defender);
+		choiceSteps[numChoices] = learningRate * (targetQVal - scores[row + defender]);
+		numChoices++;
+	}
 
-			Map<Integer, Action> commandsIssued =
-					historyView.getCommandsIssued(ENEMY_PLAYERNUM, stateView.getTurnNumber() - 1);
-			for (Map.Entry<Integer, Action> commandEntry : commandsIssued.entrySet()) {
+	/**
+	 * Forgets the features and events computed for the current turn, so they are rebuilt on next use. Only
+	 * needed when the same turn is replayed, e.g. by the benchmarks.
+	 */
+	void invalidateTurnCaches() {
+		featureTensor.invalidate();
+		turnEvents.invalidate();
+		scoredTurn = -1;
+	}
 
-				if (commandEntry.getKey() == defenderId) {
+	/**
+	 * Returns the feature tensor for the current turn, building it first if it is out of date.
+	 *
+	 * @param view The current turn of the battle
+	 * @return The features of every live (footman, enemy) pair
+	 */
+	private FeatureTensor currentFeatureTensor(BattleView view) {
+		if (!featureTensor.isCurrent(view.getTurnNumber())) {
+			myFootmen.refresh(view);
+			enemyFootmen.refresh(view);
+			featureTensor.build(view, playernum, myFootmen, enemyFootmen);
+		}
+		return featureTensor;
+	}
 
-					TargetedAction action = (TargetedAction) commandEntry.getValue();
-					if (action != null && action.getTargetId() == attackerId) {
-						//System.out.println("atttttaAACKCKCAKAKKK");
-						enemyIsAttackingFriendly = 1;
-					}
-				}
+	/**
+	 * Returns the Q-values of every pair of the current turn under qFunction, scoring all pairs in one batch
+	 * the first time they are needed on the turn and again after the parameters changed.
+	 *
+	 * @param view The current turn of the battle
+	 * @param tensor The feature tensor of the current turn
+	 * @return The Q-value of pair (a, d) is at index a * numDefenders + d
+	 */
+	private double[] currentTurnScores(BattleView view, FeatureTensor tensor) {
+		if (scoredTurn != view.getTurnNumber()) {
+			int numPairs = tensor.numAttackers() * tensor.numDefenders();
+			if (turnScores.length < numPairs) {
+				turnScores = new double[numPairs];
 			}
+			qFunction.scoreAll(tensor.data(), 0, numPairs, turnScores);
+			scoredTurn = view.getTurnNumber();
 		}
+		return turnScores;
+	}
 
-		//Chose to use the feature because it encourages footmen to defend themselves
-		featuresArray[4] = enemyIsAttackingFriendly;
-
-		//consider avoiding those with higher health than you
-		//consider attacking closest
-		//consider attacking the those with lowest relative health
-		//consider attacking one that is attacking you
-		//consider attacking one that others are already attacking
-		//consider attacking those attacking your homies
-		//consider continuing to attack the one you attacked last time
-
-
+	/**
+	 * @return The column of the enemy with the highest Q-value for one footman, the first if several tie, -1
+	 * if there are no enemies
+	 */
+	private int bestDefender(BattleView view, FeatureTensor tensor, int attacker) {
+		if (qFunction != null) {
+			return LinearQKernel.argmax(currentTurnScores(view, tensor), attacker * tensor.numDefenders(),
+					tensor.numDefenders());
+		}
+		return tensor.argmax(attacker, weights);
+	}
 
+	/**
+	 * @return The highest Q-value of any enemy for one footman with the current weights, negative infinity
+	 * if there are no enemies
+	 */
+	private double maxQValue(BattleView view, FeatureTensor tensor, int attacker) {
+		if (qFunction != null) {
+			return LinearQKernel.max(currentTurnScores(view, tensor), attacker * tensor.numDefenders(),
+					tensor.numDefenders());
+		}
+		int best = tensor.argmax(attacker, weights);
+		return best < 0 ? Double.NEGATIVE_INFINITY : tensor.score(attacker, best, weights);
+	}
 
+	private static int attackerIndex(FeatureTensor tensor, int attackerId) {
+		int a = tensor.attackerIndex(attackerId);
+		if (a < 0) {
+			throw new IllegalArgumentException("Unit " + attackerId + " is not one of our live footmen");
+		}
+		return a;
+	}
 
-		return featuresArray;
+	private static int defenderIndex(FeatureTensor tensor, int defenderId) {
+		int d = tensor.defenderIndex(defenderId);
+		if (d < 0) {
+			throw new IllegalArgumentException("Unit " + defenderId + " is not a live enemy footman");
+		}
+		return d;
 	}
 
 	/**
@@ -850,8 +1579,114 @@ public class RLAgent extends Agent {
 		return null;
 	}
 
+	/**
+	 * Converts weights to the format used by saveWeights.
+	 */
+	static Double[] boxWeights(double[] weights) {
+		Double[] boxed = new Double[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			boxed[i] = weights[i];
+		}
+		return boxed;
+	}
+
+	/**
+	 * Converts weights returned by loadWeights, which may be null if loading failed.
+	 */
+	static double[] unboxWeights(Double[] weights) {
+		if (weights == null) {
+			return null;
+		}
+		double[] unboxed = new double[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			unboxed[i] = weights[i];
+		}
+		return unboxed;
+	}
+
+	/**
+	 * Saves the parameters of qFunction to QFunctions.DEFAULT_PATH.
+	 */
+	private void saveQFunction() {
+		try {
+			QFunctions.save(qFunction, new File(QFunctions.DEFAULT_PATH));
+		} catch (IOException ex) {
+			System.err.println("Failed to save Q-function. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Replaces qFunction with the one saved at QFunctions.DEFAULT_PATH, unless it can't be loaded or has
+	 * another shape.
+	 */
+	private void loadQFunction() {
+		QFunction loaded;
+		try {
+			loaded = QFunctions.load(new File(QFunctions.DEFAULT_PATH));
+		} catch (IOException ex) {
+			System.err.println("Failed to load Q-function. Reason: " + ex.getMessage());
+			return;
+		}
+		if (!QFunctions.sameShape(loaded, qFunction)) {
+			System.err.println("Failed to load Q-function. Reason: it is " + loaded.describe() + ", not " +
+					qFunction.describe());
+			return;
+		}
+		qFunction = loaded;
+		scoredTurn = -1;
+	}
+
+	/**
+	 * Writes everything the agent carries from one episode to the next, the weights (or the parameters of
+	 * qFunction), the episode count, the evaluation schedule and rewards and the state of the random number
+	 * generator, see AgentSnapshot.
+	 *
+	 * SEPIA calls this between episodes when the runner's experiment.SaveAgents parameter is true, every
+	 * experiment.episodesperagentsave episodes, into experiment.save.agentdirectory. A saved agent is resumed
+	 * with the resume option, e.g. resume=saves/test1/agent0, or by SEPIA calling loadPlayerData.
+	 */
 	@Override
-	public void savePlayerData(OutputStream outputStream) {}
+	public void savePlayerData(OutputStream outputStream) {
+		AgentSnapshot snapshot = new AgentSnapshot(features.names(), weights, numEpisodesPlayed, freeze,
+				evalRoundCounter, evaluationRewards, avgRewards, resumableRandom.getState(), qFunction);
+		try {
+			snapshot.write(outputStream);
+		} catch (IOException ex) {
+			System.err.println("Failed to save agent state. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Continues from the state written by savePlayerData. The agent is left as it was if the state can't be
+	 * read or was saved by an agent with other features or another kind of Q-function.
+	 */
 	@Override
-	public void loadPlayerData(InputStream inputStream) {}
+	public void loadPlayerData(InputStream inputStream) {
+		AgentSnapshot snapshot;
+		try {
+			snapshot = AgentSnapshot.read(inputStream);
+		} catch (IOException ex) {
+			System.err.println("Failed to load agent state. Reason: " + ex.getMessage());
+			return;
+		}
+		if (!snapshot.features.equals(features.names()) || snapshot.weights.length != features.size()) {
+			System.err.println("Failed to load agent state. Reason: it was saved with the features " +
+					snapshot.features + ", not " + features.names());
+			return;
+		}
+		if (!QFunctions.sameShape(snapshot.qFunction, qFunction)) {
+			System.err.println("Failed to load agent state. Reason: it was saved with the Q-function " +
+					QFunctions.describe(snapshot.qFunction) + ", not " + QFunctions.describe(qFunction));
+			return;
+		}
+		weights = snapshot.weights;
+		qFunction = snapshot.qFunction;
+		scoredTurn = -1;
+		numEpisodesPlayed = snapshot.numEpisodesPlayed;
+		freeze = snapshot.freeze;
+		evalRoundCounter = snapshot.evalRoundCounter;
+		evaluationRewards = snapshot.evaluationRewards;
+		avgRewards = new LinkedList<>(snapshot.avgRewards);
+		resumableRandom.setState(snapshot.randomState);
+	}
 }
@@ -0,0 +1,201 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.ActionFeedback;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A BattleView over a frame of a replay, with the last turn pieced together from the frame before it.
+ *
+ * Replays only record where every unit is, its HP and the target it was last commanded to attack, so the
+ * turn log is reconstructed from the differences between the two frames. A unit whose target changed, or
+ * that has a target on the first frame, was given a command. The HP a unit lost was dealt by the units
+ * targeting it, split evenly between them in unit order, and isn't logged if nobody was targeting it. A
+ * unit missing from the frame died. An attack on a unit that died completed, any other is still in progress.
+ */
+final class ReplayBattleView implements BattleView {
+
+	private ReplayHeader header;
+	private int turn;
+	private final Map<Integer, ReplayUnit> units = new LinkedHashMap<>();
+	private final Map<Integer, ReplayUnit> previousUnits = new LinkedHashMap<>();
+	private final TurnLog lastTurn = new TurnLog();
+
+	//the units targeting each unit on the current frame
+	private final Map<Integer, List<Integer>> attackers = new HashMap<>();
+
+	/**
+	 * Starts a new battle, or continues one after a gap in the frames, with no last turn.
+	 *
+	 * @return This view
+	 */
+	ReplayBattleView start(ReplayHeader header, int turn, Collection<ReplayUnit> frame) {
+		this.header = header;
+		units.clear();
+		previousUnits.clear();
+		copy(frame, units);
+		this.turn = turn;
+		lastTurn.clear();
+		return this;
+	}
+
+	/**
+	 * Advances to the next frame, which should be of the turn after the current one.
+	 *
+	 * @return This view
+	 */
+	ReplayBattleView advance(int turn, Collection<ReplayUnit> frame) {
+		previousUnits.clear();
+		previousUnits.putAll(units);
+		units.clear();
+		copy(frame, units);
+		this.turn = turn;
+		rebuildLastTurn();
+		return this;
+	}
+
+	@Override
+	public int getTurnNumber() {
+		return turn;
+	}
+
+	@Override
+	public int getXExtent() {
+		return header.xExtent;
+	}
+
+	@Override
+	public int getYExtent() {
+		return header.yExtent;
+	}
+
+	@Override
+	public List<Integer> getUnitIds(int player) {
+		List<Integer> unitIds = new ArrayList<>();
+		for (ReplayUnit unit : units.values()) {
+			if (unit.player == player) {
+				unitIds.add(unit.id);
+			}
+		}
+		return unitIds;
+	}
+
+	@Override
+	public String getUnitName(int unitId) {
+		ReplayUnit unit = units.get(unitId);
+		if (unit == null) {
+			return null;
+		}
+		ReplayHeader.Player player = header.getPlayer(unit.player);
+		String[] template = player == null ? null : player.getTemplate(unit.templateId);
+		return template == null ? null : ReplayHeader.get(template, "name");
+	}
+
+	@Override
+	public boolean hasUnit(int unitId) {
+		return units.containsKey(unitId);
+	}
+
+	@Override
+	public int getHP(int unitId) {
+		return units.get(unitId).hp;
+	}
+
+	@Override
+	public int getXPosition(int unitId) {
+		return units.get(unitId).x;
+	}
+
+	@Override
+	public int getYPosition(int unitId) {
+		return units.get(unitId).y;
+	}
+
+	@Override
+	public TurnLog getLastTurn() {
+		return lastTurn;
+	}
+
+	/**
+	 * @return The target the unit was last commanded to attack on the current frame, ReplayUnit.NO_TARGET if
+	 * none or if the unit isn't alive
+	 */
+	int getTarget(int unitId) {
+		ReplayUnit unit = units.get(unitId);
+		return unit == null ? ReplayUnit.NO_TARGET : unit.target;
+	}
+
+	private void rebuildLastTurn() {
+		lastTurn.clear();
+
+		attackers.clear();
+		for (ReplayUnit unit : units.values()) {
+			ReplayUnit before = previousUnits.get(unit.id);
+			if (unit.target != ReplayUnit.NO_TARGET && (before == null || before.target != unit.target)) {
+				lastTurn.addCommand(unit.player, unit.id, unit.target);
+			}
+			addAttacker(unit);
+		}
+		//units killed on the last turn still struck on it
+		for (ReplayUnit before : previousUnits.values()) {
+			if (!units.containsKey(before.id)) {
+				addAttacker(before);
+			}
+		}
+
+		for (ReplayUnit before : previousUnits.values()) {
+			ReplayUnit after = units.get(before.id);
+			//a unit that died lost the rest of its HP
+			int damage = before.hp - (after == null ? 0 : after.hp);
+			List<Integer> unitAttackers = attackers.get(before.id);
+			if (damage > 0 && unitAttackers != null) {
+				int share = damage / unitAttackers.size();
+				int remainder = damage % unitAttackers.size();
+				for (int i = 0; i < unitAttackers.size(); i++) {
+					int amount = share + (i < remainder ? 1 : 0);
+					if (amount > 0) {
+						lastTurn.addDamage(unitAttackers.get(i), before.id, amount);
+					}
+				}
+			}
+			if (after == null) {
+				lastTurn.addDeath(before.id, before.player);
+			}
+		}
+
+		for (ReplayUnit unit : previousUnits.values()) {
+			ReplayUnit current = units.get(unit.id);
+			int target = current == null ? unit.target : current.target;
+			if (target != ReplayUnit.NO_TARGET) {
+				lastTurn.addFeedback(unit.player, unit.id, target,
+						units.containsKey(target) ? ActionFeedback.INCOMPLETE : ActionFeedback.COMPLETED);
+			}
+		}
+	}
+
+	private void addAttacker(ReplayUnit unit) {
+		if (unit.target == ReplayUnit.NO_TARGET) {
+			return;
+		}
+		List<Integer> unitAttackers = attackers.get(unit.target);
+		if (unitAttackers == null) {
+			unitAttackers = new ArrayList<>();
+			attackers.put(unit.target, unitAttackers);
+		}
+		unitAttackers.add(unit.id);
+	}
+
+	//units at 0 HP are dead, like SEPIA removes them
+	private static void copy(Collection<ReplayUnit> frame, Map<Integer, ReplayUnit> into) {
+		for (ReplayUnit unit : frame) {
+			if (unit.hp > 0) {
+				into.put(unit.id, unit);
+			}
+		}
+	}
+}
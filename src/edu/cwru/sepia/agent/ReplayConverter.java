@@ -0,0 +1,199 @@
+package edu.cwru.sepia.agent;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static edu.cwru.sepia.agent.XmlElements.children;
+import static edu.cwru.sepia.agent.XmlElements.text;
+
+/**
+ * Converts SEPIA's XML state saves (saves/stateN.SRTSsav) to a single binary replay.
+ *
+ * The saves are written in order as frames, the map and templates of the first save become the header.
+ * Saves don't record commands, so every unit's target is ReplayUnit.NO_TARGET. Saves are snapshots of
+ * unrelated moments, usually the ends of different episodes, and don't record their turn either, so each one
+ * is written as a battle of its own (see ReplayWriter.startBattle) at turn 0. Readers such as OfflineTrainer
+ * and SimulatorValidation then start over on every save instead of taking the differences for a turn of
+ * combat.
+ *
+ * Usage: ReplayConverter output.rpl (save file | directory of saves)...
+ *
+ * Saves in a directory are ordered by the number in their name. Prints the size and load time of the
+ * XML saves and of the replay.
+ */
+public class ReplayConverter {
+
+	private static final Pattern SAVE_NUMBER = Pattern.compile("(\\d+)\\.SRTSsav$");
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: ReplayConverter output.rpl (save file | directory of saves)...");
+			System.exit(1);
+		}
+		List<File> saves = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			saves.addAll(findSaves(new File(args[i])));
+		}
+		if (saves.isEmpty()) {
+			System.err.println("No saves found");
+			System.exit(1);
+		}
+
+		File output = new File(args[0]);
+		long xmlBytes = 0;
+		long start = System.nanoTime();
+		ReplayWriter writer = null;
+		try {
+			for (int i = 0; i < saves.size(); i++) {
+				Element state = parse(saves.get(i));
+				xmlBytes += saves.get(i).length();
+				if (writer == null) {
+					writer = ReplayWriter.open(output, readHeader(state));
+				} else {
+					writer.startBattle();
+				}
+				writer.writeFrame(0, readUnits(state));
+			}
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+		double convertSeconds = (System.nanoTime() - start) / 1e9;
+
+		//time how long it takes to load everything back
+		start = System.nanoTime();
+		int numFrames = 0;
+		try (ReplayReader reader = ReplayReader.open(output)) {
+			while (reader.next()) {
+				numFrames++;
+			}
+		}
+		double replaySeconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format("%d saves, %d bytes of XML, loaded and converted in %.3f s",
+				saves.size(), xmlBytes, convertSeconds));
+		System.out.println(String.format("%d frames, %d bytes of replay (%.1fx smaller), loaded in %.3f s",
+				numFrames, output.length(), (double) xmlBytes / output.length(), replaySeconds));
+	}
+
+	/**
+	 * @return The save itself, or the saves in a directory ordered by their number
+	 */
+	static List<File> findSaves(File path) {
+		if (!path.isDirectory()) {
+			return Collections.singletonList(path);
+		}
+		List<File> saves = new ArrayList<>();
+		File[] files = path.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (SAVE_NUMBER.matcher(file.getName()).find()) {
+					saves.add(file);
+				}
+			}
+		}
+		Collections.sort(saves, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(saveNumber(a), saveNumber(b));
+			}
+		});
+		return saves;
+	}
+
+	private static long saveNumber(File save) {
+		Matcher matcher = SAVE_NUMBER.matcher(save.getName());
+		return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+	}
+
+	/**
+	 * @return The state element of an XML save
+	 */
+	static Element parse(File save) throws IOException {
+		try {
+			DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			Document document = builder.parse(save);
+			return document.getDocumentElement();
+		} catch (ParserConfigurationException | SAXException ex) {
+			throw new IOException("Failed to parse " + save + ". Reason: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * @return The map and templates of an XML state
+	 */
+	static ReplayHeader readHeader(Element state) {
+		List<String> attributes = new ArrayList<>();
+		NamedNodeMap stateAttributes = state.getAttributes();
+		for (int i = 0; i < stateAttributes.getLength(); i++) {
+			Node attribute = stateAttributes.item(i);
+			if (!attribute.getNodeName().equals("xExtent") && !attribute.getNodeName().equals("yExtent")) {
+				attributes.add(attribute.getNodeName());
+				attributes.add(attribute.getNodeValue());
+			}
+		}
+
+		List<ReplayHeader.Player> players = new ArrayList<>();
+		for (Element player : children(state, "player")) {
+			List<String> properties = new ArrayList<>();
+			List<String[]> templates = new ArrayList<>();
+			for (Element child : children(player, null)) {
+				String tag = child.getTagName();
+				if (tag.equals("template")) {
+					List<String> template = new ArrayList<>();
+					template.add("type");
+					template.add(child.getAttribute("xsi:type"));
+					for (Element field : children(child, null)) {
+						template.add(field.getTagName());
+						template.add(field.getTextContent().trim());
+					}
+					templates.add(template.toArray(new String[template.size()]));
+				} else if (tag.equals("resourceAmount")) {
+					properties.add("resource." + text(child, "type"));
+					properties.add(text(child, "quantity"));
+				} else if (!tag.equals("ID") && !tag.equals("unit")) {
+					properties.add(tag);
+					properties.add(child.getTextContent().trim());
+				}
+			}
+			players.add(new ReplayHeader.Player(Integer.parseInt(text(player, "ID")),
+					properties.toArray(new String[properties.size()]), templates));
+		}
+
+		return new ReplayHeader(Integer.parseInt(state.getAttribute("xExtent")),
+				Integer.parseInt(state.getAttribute("yExtent")),
+				attributes.toArray(new String[attributes.size()]), players);
+	}
+
+	/**
+	 * @return Every unit of an XML state
+	 */
+	static List<ReplayUnit> readUnits(Element state) {
+		List<ReplayUnit> units = new ArrayList<>();
+		for (Element player : children(state, "player")) {
+			int playerId = Integer.parseInt(text(player, "ID"));
+			for (Element unit : children(player, "unit")) {
+				units.add(new ReplayUnit(Integer.parseInt(text(unit, "ID")), playerId,
+						Integer.parseInt(text(unit, "templateID")),
+						Integer.parseInt(text(unit, "currentHealth")),
+						Integer.parseInt(text(unit, "xPosition")),
+						Integer.parseInt(text(unit, "yPosition")),
+						ReplayUnit.NO_TARGET));
+			}
+		}
+		return units;
+	}
+}
@@ -0,0 +1,96 @@
+package edu.cwru.sepia.agent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Constants and integer encoding shared by ReplayWriter and ReplayReader.
+ *
+ * A replay file is
+ *
+ * magic, version, header (map extents, state attributes, and each player's properties and templates)
+ * followed by frames, and ends with END.
+ *
+ * The frames are one or more battles. The first frame starts the first battle, and BATTLE before a frame
+ * starts another one: the frame is then written in full, as if it were the first, rather than as the changes
+ * since the frame before it, which belongs to an unrelated battle. Version 1 replays have no BATTLE marks.
+ *
+ * A frame is FRAME, the turn (zigzag varint, relative to the previous frame of the battle), the number of
+ * unit changes (varint) and the changes themselves:
+ *
+ * ADD id player template hp x y target
+ * REMOVE id
+ * UPDATE id mask [x] [y] [hp] [target]
+ *
+ * where mask says which fields follow, and x, y and hp are stored as the difference to their previous value.
+ * Units that didn't change aren't written at all. Integers are LEB128 varints, signed values are zigzag
+ * encoded first, so most changes take a byte per field.
+ */
+final class ReplayFormat {
+
+	static final int MAGIC = 0x5352504c; // "SRPL"
+	static final int VERSION = 2;
+	//the oldest version that can still be read
+	static final int FIRST_VERSION = 1;
+
+	static final int END = 0;
+	static final int FRAME = 1;
+	static final int BATTLE = 2;
+
+	static final int ADD = 1;
+	static final int REMOVE = 2;
+	static final int UPDATE = 3;
+
+	static final int CHANGED_X = 1;
+	static final int CHANGED_Y = 2;
+	static final int CHANGED_HP = 4;
+	static final int CHANGED_TARGET = 8;
+
+	private ReplayFormat() {
+	}
+
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+		writeVarInt(out, (value << 1) ^ (value >> 31));
+	}
+
+	static int readSignedVarInt(DataInput in) throws IOException {
+		int value = readVarInt(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static void writeStrings(DataOutput out, String[] strings) throws IOException {
+		writeVarInt(out, strings.length);
+		for (String string : strings) {
+			out.writeUTF(string);
+		}
+	}
+
+	static String[] readStrings(DataInput in) throws IOException {
+		String[] strings = new String[readVarInt(in)];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = in.readUTF();
+		}
+		return strings;
+	}
+}
@@ -0,0 +1,80 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The part of a replay that doesn't change between frames: the map and every player's unit templates.
+ *
+ * Templates and properties are kept as flattened name/value pairs ({name0, value0, name1, value1, ...})
+ * in the order of the XML state, so templates of any kind survive the round trip.
+ */
+final class ReplayHeader {
+
+	/**
+	 * One player of the replay.
+	 */
+	static final class Player {
+		final int id;
+		//e.g. supply and resource amounts
+		final String[] properties;
+		final List<String[]> templates;
+
+		Player(int id, String[] properties, List<String[]> templates) {
+			this.id = id;
+			this.properties = properties;
+			this.templates = Collections.unmodifiableList(new ArrayList<>(templates));
+		}
+
+		/**
+		 * @return The name/value pairs of the template with the given ID, or null if there is none
+		 */
+		String[] getTemplate(int templateId) {
+			String id = Integer.toString(templateId);
+			for (String[] template : templates) {
+				if (id.equals(get(template, "ID"))) {
+					return template;
+				}
+			}
+			return null;
+		}
+	}
+
+	final int xExtent;
+	final int yExtent;
+	//attributes of the state element other than the extents
+	final String[] attributes;
+	final List<Player> players;
+
+	ReplayHeader(int xExtent, int yExtent, String[] attributes, List<Player> players) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.attributes = attributes;
+		this.players = Collections.unmodifiableList(new ArrayList<>(players));
+	}
+
+	/**
+	 * @return The player with the given ID, or null if there is none
+	 */
+	Player getPlayer(int id) {
+		for (Player player : players) {
+			if (player.id == id) {
+				return player;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The first value with the given name in flattened name/value pairs, or null if there is none
+	 */
+	static String get(String[] pairs, String name) {
+		for (int i = 0; i + 1 < pairs.length; i += 2) {
+			if (pairs[i].equals(name)) {
+				return pairs[i + 1];
+			}
+		}
+		return null;
+	}
+}
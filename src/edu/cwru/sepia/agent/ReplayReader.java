@@ -0,0 +1,177 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Streams a replay written by ReplayWriter, one frame at a time.
+ *
+ * The reader keeps the full state of the current frame, rebuilt from the changes in each frame, so only
+ * one frame is ever held in memory.
+ */
+final class ReplayReader implements Closeable {
+
+	private final DataInputStream in;
+	private final ReplayHeader header;
+	private final Map<Integer, ReplayUnit> units = new LinkedHashMap<>();
+	private final Collection<ReplayUnit> unitsView = Collections.unmodifiableCollection(units.values());
+	private int turn;
+	private int frameNumber = -1;
+	private boolean battleStart;
+	private boolean ended;
+
+	/**
+	 * Reads the header of a replay.
+	 *
+	 * @param in The replay, closed when the reader is closed
+	 * @throws IOException If the stream isn't a replay or can't be read
+	 */
+	ReplayReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		if (this.in.readInt() != ReplayFormat.MAGIC) {
+			throw new IOException("Not a replay file");
+		}
+		int version = this.in.readInt();
+		if (version < ReplayFormat.FIRST_VERSION || version > ReplayFormat.VERSION) {
+			throw new IOException("Unsupported replay version " + version);
+		}
+
+		int xExtent = ReplayFormat.readVarInt(this.in);
+		int yExtent = ReplayFormat.readVarInt(this.in);
+		String[] attributes = ReplayFormat.readStrings(this.in);
+		int numPlayers = ReplayFormat.readVarInt(this.in);
+		List<ReplayHeader.Player> players = new ArrayList<>(numPlayers);
+		for (int p = 0; p < numPlayers; p++) {
+			int id = ReplayFormat.readVarInt(this.in);
+			String[] properties = ReplayFormat.readStrings(this.in);
+			int numTemplates = ReplayFormat.readVarInt(this.in);
+			List<String[]> templates = new ArrayList<>(numTemplates);
+			for (int t = 0; t < numTemplates; t++) {
+				templates.add(ReplayFormat.readStrings(this.in));
+			}
+			players.add(new ReplayHeader.Player(id, properties, templates));
+		}
+		header = new ReplayHeader(xExtent, yExtent, attributes, players);
+	}
+
+	static ReplayReader open(File file) throws IOException {
+		return new ReplayReader(new FileInputStream(file));
+	}
+
+	ReplayHeader getHeader() {
+		return header;
+	}
+
+	/**
+	 * Advances to the next frame.
+	 *
+	 * @return false if the replay has no more frames
+	 * @throws IOException If the frame can't be read
+	 */
+	boolean next() throws IOException {
+		if (ended) {
+			return false;
+		}
+		int tag = in.readUnsignedByte();
+		battleStart = frameNumber < 0;
+		if (tag == ReplayFormat.BATTLE) {
+			//the next frame is written in full
+			units.clear();
+			turn = 0;
+			battleStart = true;
+			tag = in.readUnsignedByte();
+		}
+		if (tag == ReplayFormat.END) {
+			ended = true;
+			return false;
+		}
+		if (tag != ReplayFormat.FRAME) {
+			throw new IOException("Malformed replay, expected a frame but got " + tag);
+		}
+
+		turn += ReplayFormat.readSignedVarInt(in);
+		frameNumber++;
+		int numChanges = ReplayFormat.readVarInt(in);
+		for (int c = 0; c < numChanges; c++) {
+			int change = in.readUnsignedByte();
+			int id = ReplayFormat.readVarInt(in);
+			if (change == ReplayFormat.ADD) {
+				int player = ReplayFormat.readVarInt(in);
+				int templateId = ReplayFormat.readVarInt(in);
+				int hp = ReplayFormat.readSignedVarInt(in);
+				int x = ReplayFormat.readSignedVarInt(in);
+				int y = ReplayFormat.readSignedVarInt(in);
+				int target = ReplayFormat.readSignedVarInt(in);
+				units.put(id, new ReplayUnit(id, player, templateId, hp, x, y, target));
+			} else if (change == ReplayFormat.REMOVE) {
+				units.remove(id);
+			} else if (change == ReplayFormat.UPDATE) {
+				ReplayUnit old = units.get(id);
+				if (old == null) {
+					throw new IOException("Malformed replay, update of unknown unit " + id);
+				}
+				int mask = in.readUnsignedByte();
+				int x = old.x;
+				int y = old.y;
+				int hp = old.hp;
+				int target = old.target;
+				if ((mask & ReplayFormat.CHANGED_X) != 0) {
+					x += ReplayFormat.readSignedVarInt(in);
+				}
+				if ((mask & ReplayFormat.CHANGED_Y) != 0) {
+					y += ReplayFormat.readSignedVarInt(in);
+				}
+				if ((mask & ReplayFormat.CHANGED_HP) != 0) {
+					hp += ReplayFormat.readSignedVarInt(in);
+				}
+				if ((mask & ReplayFormat.CHANGED_TARGET) != 0) {
+					target = ReplayFormat.readSignedVarInt(in);
+				}
+				units.put(id, new ReplayUnit(id, old.player, old.templateId, hp, x, y, target));
+			} else {
+				throw new IOException("Malformed replay, unknown change " + change);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The turn of the current frame
+	 */
+	int getTurn() {
+		return turn;
+	}
+
+	/**
+	 * @return true if the current frame starts a battle, so it doesn't follow on from the frame before it
+	 */
+	boolean isBattleStart() {
+		return battleStart;
+	}
+
+	/**
+	 * @return The index of the current frame, starting at 0
+	 */
+	int getFrameNumber() {
+		return frameNumber;
+	}
+
+	/**
+	 * @return Every unit alive in the current frame, a live view that changes with next
+	 */
+	Collection<ReplayUnit> getUnits() {
+		return unitsView;
+	}
+
+	/**
+	 * @return The unit with the given ID in the current frame, or null if it isn't alive
+	 */
+	ReplayUnit getUnit(int id) {
+		return units.get(id);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,135 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Records the episodes the agent plays as binary replays, one frame per turn.
+ *
+ * Unlike SEPIA's XML saves, which only hold the state at the end of an episode, a recorded replay has
+ * every turn along with each unit's attack target, at a fraction of the size.
+ */
+final class ReplayRecorder {
+
+	private final File directory;
+	private final int episodesPerSave;
+	private final int[] players;
+
+	private ReplayWriter writer;
+	//the last target each unit was commanded to attack
+	private final Map<Integer, Integer> targets = new HashMap<>();
+	private final List<ReplayUnit> units = new ArrayList<>();
+
+	/**
+	 * @param directory Where to write the replays, as episodeN.rpl
+	 * @param episodesPerSave Record every episodesPerSave-th episode
+	 * @param players The players whose units are recorded
+	 */
+	ReplayRecorder(File directory, int episodesPerSave, int... players) {
+		this.directory = directory;
+		this.episodesPerSave = Math.max(episodesPerSave, 1);
+		this.players = players.clone();
+	}
+
+	/**
+	 * Starts recording if this episode is one to record.
+	 *
+	 * @param episode The number of episodes played before this one
+	 * @param stateView The state at the start of the episode
+	 */
+	void startEpisode(int episode, State.StateView stateView) {
+		close();
+		if (episode % episodesPerSave != 0) {
+			return;
+		}
+		targets.clear();
+		try {
+			writer = ReplayWriter.open(new File(directory, "episode" + episode + ".rpl"), createHeader(stateView));
+		} catch (IOException ex) {
+			System.err.println("Failed to start recording replay. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Records the current turn, if this episode is being recorded.
+	 */
+	void record(State.StateView stateView, History.HistoryView historyView) {
+		if (writer == null) {
+			return;
+		}
+		int turn = stateView.getTurnNumber();
+		units.clear();
+		for (int player : players) {
+			if (turn > 0) {
+				for (Map.Entry<Integer, Action> command : historyView.getCommandsIssued(player, turn - 1).entrySet()) {
+					if (command.getValue() instanceof TargetedAction) {
+						targets.put(command.getKey(), ((TargetedAction) command.getValue()).getTargetId());
+					}
+				}
+			}
+			for (Integer unitId : stateView.getUnitIds(player)) {
+				Unit.UnitView unit = stateView.getUnit(unitId);
+				Integer target = targets.get(unitId);
+				units.add(new ReplayUnit(unitId, player, unit.getTemplateView().getID(), unit.getHP(),
+						unit.getXPosition(), unit.getYPosition(), target == null ? ReplayUnit.NO_TARGET : target));
+			}
+		}
+		try {
+			writer.writeFrame(turn, units);
+		} catch (IOException ex) {
+			System.err.println("Failed to record replay. Reason: " + ex.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Finishes the replay being recorded, if any.
+	 */
+	void close() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException ex) {
+				System.err.println("Failed to finish replay. Reason: " + ex.getMessage());
+			}
+			writer = null;
+		}
+	}
+
+	//the map extents and the templates of the units on the map
+	private ReplayHeader createHeader(State.StateView stateView) {
+		List<ReplayHeader.Player> headerPlayers = new ArrayList<>();
+		for (int player : players) {
+			Map<Integer, String[]> templates = new LinkedHashMap<>();
+			for (Integer unitId : stateView.getUnitIds(player)) {
+				UnitTemplate.UnitTemplateView template = stateView.getUnit(unitId).getTemplateView();
+				if (!templates.containsKey(template.getID())) {
+					templates.put(template.getID(), new String[] {
+						"type", "UnitTemplate",
+						"ID", Integer.toString(template.getID()),
+						"name", template.getName(),
+						"baseHealth", Integer.toString(template.getBaseHealth()),
+						"baseAttack", Integer.toString(template.getBasicAttack()),
+						"piercingAttack", Integer.toString(template.getPiercingAttack()),
+						"range", Integer.toString(template.getRange()),
+						"armor", Integer.toString(template.getArmor()),
+						"sightRange", Integer.toString(template.getSightRange()),
+						"durationMove", Integer.toString(template.getDurationMove()),
+						"durationAttack", Integer.toString(template.getDurationAttack())
+					});
+				}
+			}
+			headerPlayers.add(new ReplayHeader.Player(player, new String[0],
+					new ArrayList<>(templates.values())));
+		}
+		return new ReplayHeader(stateView.getXExtent(), stateView.getYExtent(), new String[0], headerPlayers);
+	}
+}
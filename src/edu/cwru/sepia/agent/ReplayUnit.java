@@ -0,0 +1,34 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * The state of one unit in a replay frame.
+ */
+final class ReplayUnit {
+
+	//target of a unit that hasn't been given an attack
+	static final int NO_TARGET = -1;
+
+	final int id;
+	final int player;
+	final int templateId;
+	final int hp;
+	final int x;
+	final int y;
+	//the unit this unit was last commanded to attack, NO_TARGET if unknown
+	final int target;
+
+	ReplayUnit(int id, int player, int templateId, int hp, int x, int y, int target) {
+		this.id = id;
+		this.player = player;
+		this.templateId = templateId;
+		this.hp = hp;
+		this.x = x;
+		this.y = y;
+		this.target = target;
+	}
+
+	@Override
+	public String toString() {
+		return "unit " + id + " (player " + player + ") at " + x + ", " + y + " with " + hp + " hp";
+	}
+}
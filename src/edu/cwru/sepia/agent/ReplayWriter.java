@@ -0,0 +1,146 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Streams a replay to disk, see ReplayFormat for the layout.
+ *
+ * The header is written once when the writer is created. Each frame only stores what changed since the
+ * previous frame, so frames cost a few bytes per unit that moved, took damage or got a new target.
+ */
+final class ReplayWriter implements Closeable {
+
+	private final DataOutputStream out;
+	//the units as of the last frame
+	private final Map<Integer, ReplayUnit> previous = new LinkedHashMap<>();
+	private final Set<Integer> seen = new HashSet<>();
+	//the changes of the frame being written, so they can be counted before they are written
+	private final ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+	private final DataOutputStream frame = new DataOutputStream(frameBytes);
+	private int previousTurn;
+
+	/**
+	 * @param out Where to write the replay, closed when the writer is closed
+	 * @param header The map and templates
+	 * @throws IOException If the header can't be written
+	 */
+	ReplayWriter(OutputStream out, ReplayHeader header) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.writeInt(ReplayFormat.MAGIC);
+		this.out.writeInt(ReplayFormat.VERSION);
+		ReplayFormat.writeVarInt(this.out, header.xExtent);
+		ReplayFormat.writeVarInt(this.out, header.yExtent);
+		ReplayFormat.writeStrings(this.out, header.attributes);
+		ReplayFormat.writeVarInt(this.out, header.players.size());
+		for (ReplayHeader.Player player : header.players) {
+			ReplayFormat.writeVarInt(this.out, player.id);
+			ReplayFormat.writeStrings(this.out, player.properties);
+			ReplayFormat.writeVarInt(this.out, player.templates.size());
+			for (String[] template : player.templates) {
+				ReplayFormat.writeStrings(this.out, template);
+			}
+		}
+	}
+
+	static ReplayWriter open(File file, ReplayHeader header) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		return new ReplayWriter(new FileOutputStream(file), header);
+	}
+
+	/**
+	 * Starts a new battle with the next frame, which is then written in full with its turn counted from 0.
+	 * The first frame of a replay starts a battle without this.
+	 *
+	 * @throws IOException If the mark can't be written
+	 */
+	void startBattle() throws IOException {
+		out.writeByte(ReplayFormat.BATTLE);
+		previous.clear();
+		previousTurn = 0;
+	}
+
+	/**
+	 * Writes the changes between the last frame and the given units.
+	 *
+	 * @param turn The turn of the frame
+	 * @param units Every unit alive in the frame
+	 * @throws IOException If the frame can't be written
+	 */
+	void writeFrame(int turn, Collection<ReplayUnit> units) throws IOException {
+		frameBytes.reset();
+		int numChanges = 0;
+
+		seen.clear();
+		for (ReplayUnit unit : units) {
+			seen.add(unit.id);
+			ReplayUnit old = previous.get(unit.id);
+			if (old == null || old.player != unit.player || old.templateId != unit.templateId) {
+				frame.writeByte(ReplayFormat.ADD);
+				ReplayFormat.writeVarInt(frame, unit.id);
+				ReplayFormat.writeVarInt(frame, unit.player);
+				ReplayFormat.writeVarInt(frame, unit.templateId);
+				ReplayFormat.writeSignedVarInt(frame, unit.hp);
+				ReplayFormat.writeSignedVarInt(frame, unit.x);
+				ReplayFormat.writeSignedVarInt(frame, unit.y);
+				ReplayFormat.writeSignedVarInt(frame, unit.target);
+				numChanges++;
+				continue;
+			}
+
+			int mask = 0;
+			mask |= old.x != unit.x ? ReplayFormat.CHANGED_X : 0;
+			mask |= old.y != unit.y ? ReplayFormat.CHANGED_Y : 0;
+			mask |= old.hp != unit.hp ? ReplayFormat.CHANGED_HP : 0;
+			mask |= old.target != unit.target ? ReplayFormat.CHANGED_TARGET : 0;
+			if (mask != 0) {
+				frame.writeByte(ReplayFormat.UPDATE);
+				ReplayFormat.writeVarInt(frame, unit.id);
+				frame.writeByte(mask);
+				if ((mask & ReplayFormat.CHANGED_X) != 0) {
+					ReplayFormat.writeSignedVarInt(frame, unit.x - old.x);
+				}
+				if ((mask & ReplayFormat.CHANGED_Y) != 0) {
+					ReplayFormat.writeSignedVarInt(frame, unit.y - old.y);
+				}
+				if ((mask & ReplayFormat.CHANGED_HP) != 0) {
+					ReplayFormat.writeSignedVarInt(frame, unit.hp - old.hp);
+				}
+				if ((mask & ReplayFormat.CHANGED_TARGET) != 0) {
+					ReplayFormat.writeSignedVarInt(frame, unit.target);
+				}
+				numChanges++;
+			}
+		}
+
+		Iterator<Integer> ids = previous.keySet().iterator();
+		while (ids.hasNext()) {
+			Integer id = ids.next();
+			if (!seen.contains(id)) {
+				frame.writeByte(ReplayFormat.REMOVE);
+				ReplayFormat.writeVarInt(frame, id);
+				ids.remove();
+				numChanges++;
+			}
+		}
+		for (ReplayUnit unit : units) {
+			previous.put(unit.id, unit);
+		}
+
+		out.writeByte(ReplayFormat.FRAME);
+		ReplayFormat.writeSignedVarInt(out, turn - previousTurn);
+		ReplayFormat.writeVarInt(out, numChanges);
+		frame.flush();
+		frameBytes.writeTo(out);
+		previousTurn = turn;
+	}
+
+	/**
+	 * Ends the replay and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		out.writeByte(ReplayFormat.END);
+		out.close();
+	}
+}
@@ -0,0 +1,399 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only columnar file of the results of every episode of a training run, see ResultsQuery.
+ *
+ * The file starts with a header (magic, version) followed by blocks of rows. A block is written whenever
+ * blockRows rows have been appended and when the file is flushed or closed. It starts with the number of rows,
+ * the number of footman rewards and the CRC32 of the rest of the block, which holds the columns one after the
+ * other, each with one value per row:
+ *
+ * episode (int), mode (byte), outcome (byte), our survivors (int), enemy survivors (int), turns (int), weight
+ * version (int), decisions (int), wall time in nanoseconds (long), total reward (double), footmen (int) and
+ * then the cumulative reward of every footman of every row (double each), the rows' footmen back to back.
+ *
+ * Queries read whole blocks and loop over the columns they need. When a file is opened for appending, or
+ * read while it is written, trailing blocks that are incomplete or fail their checksum are dropped.
+ *
+ * A file that is still open when the process ends, e.g. because the SEPIA runner finished its episodes before
+ * the agent counted its last one, is flushed and closed by a shutdown hook, so the pending rows aren't lost.
+ */
+final class ResultsFile implements Closeable {
+
+	static final byte LEARNING = 0;
+	static final byte EVALUATION = 1;
+
+	static final byte LOSS = 0;
+	static final byte WIN = 1;
+	//neither side was wiped out, e.g. the turn limit was reached
+	static final byte UNDECIDED = 2;
+
+	private static final int MAGIC = 0x52534c54; // "RSLT"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int BLOCK_HEADER_SIZE = 12;
+	//the bytes of all fixed size columns of one row
+	private static final int ROW_SIZE = 4 + 1 + 1 + 4 + 4 + 4 + 4 + 4 + 8 + 8 + 4;
+
+	/**
+	 * The columns of a block of rows. The footmen of row i have their rewards in footmanRewards from
+	 * footmanOffsets[i] to footmanOffsets[i + 1].
+	 */
+	static final class Block {
+		int numRows;
+		int[] episode = new int[0];
+		byte[] mode = new byte[0];
+		byte[] outcome = new byte[0];
+		int[] mySurvivors = new int[0];
+		int[] enemySurvivors = new int[0];
+		int[] turns = new int[0];
+		int[] weightVersion = new int[0];
+		int[] decisions = new int[0];
+		long[] wallNanos = new long[0];
+		double[] reward = new double[0];
+		int[] numFootmen = new int[0];
+		int[] footmanOffsets = new int[1];
+		double[] footmanRewards = new double[0];
+
+		int numFootmanRewards() {
+			return footmanOffsets[numRows];
+		}
+
+		private void ensureRows(int rows) {
+			if (episode.length < rows) {
+				episode = Arrays.copyOf(episode, rows);
+				mode = Arrays.copyOf(mode, rows);
+				outcome = Arrays.copyOf(outcome, rows);
+				mySurvivors = Arrays.copyOf(mySurvivors, rows);
+				enemySurvivors = Arrays.copyOf(enemySurvivors, rows);
+				turns = Arrays.copyOf(turns, rows);
+				weightVersion = Arrays.copyOf(weightVersion, rows);
+				decisions = Arrays.copyOf(decisions, rows);
+				wallNanos = Arrays.copyOf(wallNanos, rows);
+				reward = Arrays.copyOf(reward, rows);
+				numFootmen = Arrays.copyOf(numFootmen, rows);
+				footmanOffsets = Arrays.copyOf(footmanOffsets, rows + 1);
+			}
+		}
+
+		private void ensureFootmanRewards(int count) {
+			if (footmanRewards.length < count) {
+				footmanRewards = Arrays.copyOf(footmanRewards, Math.max(count, 2 * footmanRewards.length));
+			}
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int blockRows;
+	private final Block pending = new Block();
+	private ByteBuffer buffer = ByteBuffer.allocate(0);
+	private final CRC32 crc = new CRC32();
+	private boolean closed;
+
+	private final Thread shutdownHook = new Thread("results-file") {
+		@Override
+		public void run() {
+			try {
+				close();
+			} catch (IOException ex) {
+				System.err.println("Failed to close results. Reason: " + ex.getMessage());
+			}
+		}
+	};
+
+	private ResultsFile(RandomAccessFile file, int blockRows) {
+		this.file = file;
+		this.channel = file.getChannel();
+		this.blockRows = blockRows;
+		pending.ensureRows(blockRows);
+	}
+
+	/**
+	 * Opens a results file for appending, creating it if it doesn't exist yet.
+	 *
+	 * @param path The results file
+	 * @param blockRows The number of rows to collect before writing them as a block
+	 * @return The opened file
+	 * @throws IOException If the file can't be opened or isn't a results file
+	 */
+	static ResultsFile open(File path, int blockRows) throws IOException {
+		if (blockRows <= 0) {
+			throw new IllegalArgumentException("blockRows must be positive");
+		}
+		path.getAbsoluteFile().getParentFile().mkdirs();
+		ResultsFile results = new ResultsFile(new RandomAccessFile(path, "rw"), blockRows);
+		try {
+			if (results.channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).flip();
+				writeFully(results.channel, header, 0);
+			} else {
+				//drop blocks that were not completely written
+				long end;
+				try (Reader reader = new Reader(results.channel, false)) {
+					Block block = new Block();
+					while (reader.next(block)) {
+					}
+					end = reader.position;
+				}
+				results.file.setLength(end);
+			}
+		} catch (IOException ex) {
+			results.close();
+			throw ex;
+		}
+		Runtime.getRuntime().addShutdownHook(results.shutdownHook);
+		return results;
+	}
+
+	/**
+	 * Adds the results of one episode. They are written with the next full block, or when the file is flushed.
+	 *
+	 * @param episode The number of episodes played, including this one
+	 * @param mode LEARNING or EVALUATION
+	 * @param outcome WIN, LOSS or UNDECIDED
+	 * @param mySurvivors Our footmen alive at the end
+	 * @param enemySurvivors Enemy footmen alive at the end
+	 * @param turns The number of turns played
+	 * @param weightVersion The number of episodes played when the weights the episode was played with were
+	 * learned
+	 * @param decisions The number of targets chosen
+	 * @param wallNanos The wall time of the episode
+	 * @param footmanRewards The cumulative reward of each of our footmen, dead or alive
+	 * @param numFootmen The number of footmen in footmanRewards
+	 * @throws IOException If a full block can't be written
+	 */
+	synchronized void append(int episode, byte mode, byte outcome, int mySurvivors, int enemySurvivors, int turns,
+			int weightVersion, int decisions, long wallNanos, double[] footmanRewards, int numFootmen)
+			throws IOException {
+		Block b = pending;
+		int row = b.numRows;
+		b.episode[row] = episode;
+		b.mode[row] = mode;
+		b.outcome[row] = outcome;
+		b.mySurvivors[row] = mySurvivors;
+		b.enemySurvivors[row] = enemySurvivors;
+		b.turns[row] = turns;
+		b.weightVersion[row] = weightVersion;
+		b.decisions[row] = decisions;
+		b.wallNanos[row] = wallNanos;
+		b.numFootmen[row] = numFootmen;
+		int first = b.footmanOffsets[row];
+		b.ensureFootmanRewards(first + numFootmen);
+		double total = 0;
+		for (int i = 0; i < numFootmen; i++) {
+			b.footmanRewards[first + i] = footmanRewards[i];
+			total += footmanRewards[i];
+		}
+		b.reward[row] = total;
+		b.footmanOffsets[row + 1] = first + numFootmen;
+		b.numRows++;
+
+		if (b.numRows == blockRows) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the rows appended since the last block as a block.
+	 *
+	 * @throws IOException If the block can't be written
+	 */
+	synchronized void flush() throws IOException {
+		Block b = pending;
+		if (b.numRows == 0) {
+			return;
+		}
+		int n = b.numRows;
+		int numRewards = b.numFootmanRewards();
+		int size = BLOCK_HEADER_SIZE + n * ROW_SIZE + 8 * numRewards;
+		if (buffer.capacity() < size) {
+			buffer = ByteBuffer.allocate(size);
+		}
+		buffer.clear();
+		buffer.putInt(n).putInt(numRewards).putInt(0);
+		buffer.asIntBuffer().put(b.episode, 0, n);
+		buffer.position(buffer.position() + 4 * n);
+		buffer.put(b.mode, 0, n).put(b.outcome, 0, n);
+		putInts(b.mySurvivors, n);
+		putInts(b.enemySurvivors, n);
+		putInts(b.turns, n);
+		putInts(b.weightVersion, n);
+		putInts(b.decisions, n);
+		buffer.asLongBuffer().put(b.wallNanos, 0, n);
+		buffer.position(buffer.position() + 8 * n);
+		buffer.asDoubleBuffer().put(b.reward, 0, n);
+		buffer.position(buffer.position() + 8 * n);
+		putInts(b.numFootmen, n);
+		buffer.asDoubleBuffer().put(b.footmanRewards, 0, numRewards);
+		buffer.position(buffer.position() + 8 * numRewards);
+
+		crc.reset();
+		crc.update(buffer.array(), BLOCK_HEADER_SIZE, size - BLOCK_HEADER_SIZE);
+		buffer.putInt(8, (int) crc.getValue());
+		buffer.flip();
+		writeFully(channel, buffer, channel.size());
+		b.numRows = 0;
+	}
+
+	private void putInts(int[] values, int n) {
+		buffer.asIntBuffer().put(values, 0, n);
+		buffer.position(buffer.position() + 4 * n);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Writes the pending rows and closes the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException ex) {
+			//the process is ending and this is the hook closing the file
+		}
+		try {
+			flush();
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the blocks of a results file one after the other.
+	 */
+	static final class Reader implements Closeable {
+
+		private final FileChannel channel;
+		private final boolean ownsChannel;
+		private ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		private final CRC32 crc = new CRC32();
+		//the end of the last block read
+		private long position = HEADER_SIZE;
+
+		private Reader(FileChannel channel, boolean ownsChannel) throws IOException {
+			this.channel = channel;
+			this.ownsChannel = ownsChannel;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (!readFully(header, 0) || header.getInt(0) != MAGIC) {
+				throw new IOException("Not a results file");
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new IOException("Unsupported results file version " + header.getInt(4));
+			}
+		}
+
+		/**
+		 * @param path The results file
+		 * @return A reader positioned before the first block
+		 * @throws IOException If the file can't be opened or isn't a results file
+		 */
+		static Reader open(File path) throws IOException {
+			FileChannel channel = new FileInputStream(path).getChannel();
+			try {
+				return new Reader(channel, true);
+			} catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+		}
+
+		/**
+		 * Reads the next block.
+		 *
+		 * @param block Receives the columns of the block
+		 * @return false at the end of the file, or at a block that is incomplete or fails its checksum
+		 * @throws IOException If the file can't be read
+		 */
+		boolean next(Block block) throws IOException {
+			buffer.clear().limit(BLOCK_HEADER_SIZE);
+			if (!readFully(buffer, position)) {
+				return false;
+			}
+			int n = buffer.getInt(0);
+			int numRewards = buffer.getInt(4);
+			int checksum = buffer.getInt(8);
+			long size = BLOCK_HEADER_SIZE + (long) n * ROW_SIZE + 8L * numRewards;
+			if (n <= 0 || numRewards < 0 || position + size > channel.size()) {
+				return false;
+			}
+			if (buffer.capacity() < size) {
+				buffer = ByteBuffer.allocate((int) size);
+			}
+			buffer.clear().limit((int) size);
+			if (!readFully(buffer, position)) {
+				return false;
+			}
+			crc.reset();
+			crc.update(buffer.array(), BLOCK_HEADER_SIZE, (int) size - BLOCK_HEADER_SIZE);
+			if ((int) crc.getValue() != checksum) {
+				return false;
+			}
+
+			block.ensureRows(n);
+			block.numRows = n;
+			buffer.position(BLOCK_HEADER_SIZE);
+			getInts(block.episode, n);
+			buffer.get(block.mode, 0, n).get(block.outcome, 0, n);
+			getInts(block.mySurvivors, n);
+			getInts(block.enemySurvivors, n);
+			getInts(block.turns, n);
+			getInts(block.weightVersion, n);
+			getInts(block.decisions, n);
+			buffer.asLongBuffer().get(block.wallNanos, 0, n);
+			buffer.position(buffer.position() + 8 * n);
+			buffer.asDoubleBuffer().get(block.reward, 0, n);
+			buffer.position(buffer.position() + 8 * n);
+			getInts(block.numFootmen, n);
+			block.ensureFootmanRewards(numRewards);
+			buffer.asDoubleBuffer().get(block.footmanRewards, 0, numRewards);
+			block.footmanOffsets[0] = 0;
+			for (int i = 0; i < n; i++) {
+				block.footmanOffsets[i + 1] = block.footmanOffsets[i] + block.numFootmen[i];
+			}
+			position += size;
+			return true;
+		}
+
+		private void getInts(int[] values, int n) {
+			buffer.asIntBuffer().get(values, 0, n);
+			buffer.position(buffer.position() + 4 * n);
+		}
+
+		//reads until the buffer is full, false if the file ends first
+		private boolean readFully(ByteBuffer into, long at) throws IOException {
+			while (into.hasRemaining()) {
+				int read = channel.read(into, at);
+				if (read < 0) {
+					return false;
+				}
+				at += read;
+			}
+			into.flip();
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (ownsChannel) {
+				channel.close();
+			}
+		}
+	}
+}
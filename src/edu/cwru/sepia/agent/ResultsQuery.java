@@ -0,0 +1,208 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Aggregates the results files of training runs, see ResultsFile and the results.file agent option.
+ *
+ * Usage: ResultsQuery summary results.bin...
+ *        ResultsQuery moving window [learn | eval] results.bin...
+ *        ResultsQuery winrate [learn | eval] results.bin...
+ *
+ * e.g. ResultsQuery moving 1000 eval runs/*.bin
+ *
+ * summary prints one line per file: the number of episodes, how many of them were learning and evaluation
+ * episodes, the win rate and average total reward of each, the average turns and survivors, the average
+ * reward of the best and the worst footman of an episode, the wall time and the decisions per second.
+ *
+ * moving prints, for every file, the moving averages of the total reward, the win rate and the turns over the
+ * last window episodes, once every window episodes. winrate prints the win rate and average reward of the
+ * episodes played with each version of the weights, for runs of consecutive episodes with the same version.
+ * Both look at all episodes unless told to only look at learning or evaluation episodes.
+ *
+ * Files are streamed a block at a time, so memory use doesn't grow with their size.
+ */
+public class ResultsQuery {
+
+	private static final int ALL = -1;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			usage();
+		}
+		String query = args[0];
+		int next = 1;
+		int window = 0;
+		if (query.equals("moving")) {
+			window = Integer.parseInt(args[next++]);
+		} else if (!query.equals("summary") && !query.equals("winrate")) {
+			usage();
+		}
+		int mode = ALL;
+		if (!query.equals("summary") && next < args.length) {
+			if (args[next].equals("learn")) {
+				mode = ResultsFile.LEARNING;
+				next++;
+			} else if (args[next].equals("eval")) {
+				mode = ResultsFile.EVALUATION;
+				next++;
+			}
+		}
+		if (next == args.length || query.equals("moving") && window <= 0) {
+			usage();
+		}
+
+		if (query.equals("summary")) {
+			System.out.println(String.format("%-24s %9s %9s %9s %6s %6s %9s %9s %7s %7s %9s %9s %9s %11s",
+					"file", "episodes", "learn", "eval", "win%", "evwin%", "reward", "evreward", "turns",
+					"alive", "best", "worst", "wall s", "decisions/s"));
+		}
+		for (int i = next; i < args.length; i++) {
+			File file = new File(args[i]);
+			if (query.equals("summary")) {
+				summary(file);
+			} else if (query.equals("moving")) {
+				moving(file, window, mode);
+			} else {
+				winRate(file, mode);
+			}
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: ResultsQuery summary results.bin...");
+		System.err.println("       ResultsQuery moving window [learn | eval] results.bin...");
+		System.err.println("       ResultsQuery winrate [learn | eval] results.bin...");
+		System.exit(1);
+	}
+
+	private static void summary(File file) throws IOException {
+		long[] episodes = new long[2];
+		long[] wins = new long[2];
+		double[] rewards = new double[2];
+		long turns = 0;
+		long survivors = 0;
+		double best = 0;
+		double worst = 0;
+		long wallNanos = 0;
+		long decisions = 0;
+		ResultsFile.Block block = new ResultsFile.Block();
+		try (ResultsFile.Reader reader = ResultsFile.Reader.open(file)) {
+			while (reader.next(block)) {
+				for (int row = 0; row < block.numRows; row++) {
+					int mode = block.mode[row] == ResultsFile.EVALUATION ? 1 : 0;
+					episodes[mode]++;
+					if (block.outcome[row] == ResultsFile.WIN) {
+						wins[mode]++;
+					}
+					rewards[mode] += block.reward[row];
+					turns += block.turns[row];
+					survivors += block.mySurvivors[row];
+					wallNanos += block.wallNanos[row];
+					decisions += block.decisions[row];
+
+					int first = block.footmanOffsets[row];
+					int last = block.footmanOffsets[row + 1];
+					if (first < last) {
+						double max = block.footmanRewards[first];
+						double min = max;
+						for (int f = first + 1; f < last; f++) {
+							max = Math.max(max, block.footmanRewards[f]);
+							min = Math.min(min, block.footmanRewards[f]);
+						}
+						best += max;
+						worst += min;
+					}
+				}
+			}
+		}
+		long total = episodes[0] + episodes[1];
+		String format = "%-24s %9d %9d %9d %6.1f %6.1f %9.2f %9.2f %7.1f %7.2f %9.2f %9.2f %9.1f %11.0f";
+		System.out.println(String.format(format, file.getName(), total, episodes[0], episodes[1],
+				100.0 * (wins[0] + wins[1]) / Math.max(total, 1),
+				100.0 * wins[1] / Math.max(episodes[1], 1), rewards[0] / Math.max(episodes[0], 1),
+				rewards[1] / Math.max(episodes[1], 1), (double) turns / Math.max(total, 1),
+				(double) survivors / Math.max(total, 1), best / Math.max(total, 1), worst / Math.max(total, 1),
+				wallNanos / 1e9, decisions / Math.max(wallNanos / 1e9, 1e-9)));
+	}
+
+	private static void moving(File file, int window, int mode) throws IOException {
+		System.out.println(file.getName());
+		System.out.println(String.format("%10s %12s %8s %8s", "episode", "reward", "win%", "turns"));
+		//the last window episodes as a ring, and their sums
+		double[] rewards = new double[window];
+		boolean[] won = new boolean[window];
+		int[] turns = new int[window];
+		double rewardSum = 0;
+		int winSum = 0;
+		long turnSum = 0;
+		long count = 0;
+		ResultsFile.Block block = new ResultsFile.Block();
+		try (ResultsFile.Reader reader = ResultsFile.Reader.open(file)) {
+			while (reader.next(block)) {
+				for (int row = 0; row < block.numRows; row++) {
+					if (mode != ALL && block.mode[row] != mode) {
+						continue;
+					}
+					int slot = (int) (count % window);
+					if (count >= window) {
+						rewardSum -= rewards[slot];
+						winSum -= won[slot] ? 1 : 0;
+						turnSum -= turns[slot];
+					}
+					rewards[slot] = block.reward[row];
+					won[slot] = block.outcome[row] == ResultsFile.WIN;
+					turns[slot] = block.turns[row];
+					rewardSum += rewards[slot];
+					winSum += won[slot] ? 1 : 0;
+					turnSum += turns[slot];
+					count++;
+					if (count % window == 0) {
+						System.out.println(String.format("%10d %12.2f %8.1f %8.1f", block.episode[row],
+								rewardSum / window, 100.0 * winSum / window, (double) turnSum / window));
+					}
+				}
+			}
+		}
+	}
+
+	private static void winRate(File file, int mode) throws IOException {
+		System.out.println(file.getName());
+		System.out.println(String.format("%10s %9s %8s %12s", "weights", "episodes", "win%", "reward"));
+		int version = -1;
+		long episodes = 0;
+		long wins = 0;
+		double rewards = 0;
+		ResultsFile.Block block = new ResultsFile.Block();
+		try (ResultsFile.Reader reader = ResultsFile.Reader.open(file)) {
+			while (reader.next(block)) {
+				for (int row = 0; row < block.numRows; row++) {
+					if (mode != ALL && block.mode[row] != mode) {
+						continue;
+					}
+					if (block.weightVersion[row] != version) {
+						printWinRate(version, episodes, wins, rewards);
+						version = block.weightVersion[row];
+						episodes = 0;
+						wins = 0;
+						rewards = 0;
+					}
+					episodes++;
+					if (block.outcome[row] == ResultsFile.WIN) {
+						wins++;
+					}
+					rewards += block.reward[row];
+				}
+			}
+		}
+		printWinRate(version, episodes, wins, rewards);
+	}
+
+	private static void printWinRate(int version, long episodes, long wins, double rewards) {
+		if (episodes > 0) {
+			System.out.println(String.format("%10d %9d %8.1f %12.2f", version, episodes, 100.0 * wins / episodes,
+					rewards / episodes));
+		}
+	}
+}
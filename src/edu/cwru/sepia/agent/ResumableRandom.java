@@ -0,0 +1,51 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Random;
+
+/**
+ * A Random whose state can be read and restored, so an agent that is saved and loaded again continues with
+ * the same random numbers it would have drawn without the break.
+ *
+ * It generates exactly the same numbers as java.util.Random with the same seed, it just keeps the 48 bit
+ * state where we can get at it. Only the state of next is kept, a Gaussian that nextGaussian generated but
+ * didn't return yet is lost, which doesn't matter as the agent doesn't draw Gaussians.
+ */
+final class ResumableRandom extends Random {
+
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+
+	//set by setSeed, which Random's constructor calls, so it mustn't have an initializer
+	private long state;
+
+	ResumableRandom(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public synchronized void setSeed(long seed) {
+		super.setSeed(seed);
+		state = (seed ^ MULTIPLIER) & MASK;
+	}
+
+	@Override
+	protected int next(int bits) {
+		state = (state * MULTIPLIER + ADDEND) & MASK;
+		return (int) (state >>> (48 - bits));
+	}
+
+	/**
+	 * @return The current state, for setState
+	 */
+	long getState() {
+		return state;
+	}
+
+	/**
+	 * Continues from a state returned by getState.
+	 */
+	void setState(long state) {
+		this.state = state & MASK;
+	}
+}
@@ -0,0 +1,173 @@
+package edu.cwru.sepia.agent;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.cwru.sepia.agent.XmlElements.child;
+import static edu.cwru.sepia.agent.XmlElements.children;
+
+/**
+ * Writes maps and configurations for footman battles of any size, based on one of ours.
+ *
+ * The base configuration's map is copied with each player's units replaced by copies of its first unit,
+ * packed into a block on the player's side of the map, and the configuration is copied to point at the new
+ * map. Everything else, the templates, agents and runner parameters, stays as it is.
+ *
+ * Usage: ScenarioGenerator baseConfig outputDirectory footmenPerSide[,footmenPerSide...] [xExtent yExtent]
+ *
+ * e.g. ScenarioGenerator data/10fv10fConfig.xml data/generated 50,200,1000 writes
+ * data/generated/rl_50fv50f.xml and data/generated/50fv50fConfig.xml and so on. Without extents the map is
+ * grown as much as the armies need.
+ */
+public class ScenarioGenerator {
+
+	//columns left between the armies when the map is sized to fit them, so the first turns are spent closing in
+	private static final int GAP = 10;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3 && args.length != 5) {
+			System.err.println("Usage: ScenarioGenerator baseConfig outputDirectory " +
+					"footmenPerSide[,footmenPerSide...] [xExtent yExtent]");
+			System.exit(1);
+		}
+		File baseConfig = new File(args[0]);
+		File outputDirectory = new File(args[1]);
+		int xExtent = args.length == 5 ? Integer.parseInt(args[3]) : 0;
+		int yExtent = args.length == 5 ? Integer.parseInt(args[4]) : 0;
+		for (String size : args[2].split(",")) {
+			try {
+				File config = generate(baseConfig, outputDirectory, Integer.parseInt(size.trim()), xExtent, yExtent);
+				System.out.println("Wrote " + config);
+			} catch (IllegalArgumentException ex) {
+				System.err.println(ex.getMessage());
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Writes the map and configuration of one battle.
+	 *
+	 * @param baseConfig The configuration to copy, e.g. data/10fv10fConfig.xml
+	 * @param outputDirectory Where to write the files, created if it doesn't exist
+	 * @param footmenPerSide The number of footmen of each player
+	 * @param xExtent The width of the map, 0 to fit the armies
+	 * @param yExtent The height of the map, 0 to fit the armies
+	 * @return The new configuration
+	 * @throws IOException If a file can't be read or written
+	 * @throws IllegalArgumentException If the armies don't fit on a map of the given extents
+	 */
+	static File generate(File baseConfig, File outputDirectory, int footmenPerSide, int xExtent, int yExtent)
+			throws IOException {
+		Document config = parse(baseConfig);
+		Element map = child(config.getDocumentElement(), "Map");
+		if (map == null) {
+			throw new IOException(baseConfig + " does not specify a map");
+		}
+		Document state = parse(new File(map.getTextContent().trim()));
+		resizeArmies(state, footmenPerSide, xExtent, yExtent);
+
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("Failed to create " + outputDirectory);
+		}
+		String name = footmenPerSide + "fv" + footmenPerSide + "f";
+		File mapFile = new File(outputDirectory, "rl_" + name + ".xml");
+		File configFile = new File(outputDirectory, name + "Config.xml");
+		write(state, mapFile);
+		map.setTextContent(mapFile.getPath().replace(File.separatorChar, '/'));
+		write(config, configFile);
+		return configFile;
+	}
+
+	/**
+	 * Replaces each player's units with footmenPerSide copies of its first unit, in a block on its side of
+	 * the map. The block is as square as the map allows.
+	 *
+	 * @param map A parsed map or state save, changed in place
+	 * @param footmenPerSide The number of footmen of each player
+	 * @param xExtent The width of the map, 0 to keep the map's width unless the armies need more
+	 * @param yExtent The height of the map, 0 to keep the map's height unless the armies need more
+	 * @throws IllegalArgumentException If the armies don't fit on a map of the given extents
+	 */
+	static void resizeArmies(Document map, int footmenPerSide, int xExtent, int yExtent) {
+		if (footmenPerSide < 1) {
+			throw new IllegalArgumentException("footmenPerSide must be positive");
+		}
+		Element state = map.getDocumentElement();
+		int side = (int) Math.ceil(Math.sqrt(footmenPerSide));
+		if (yExtent <= 0) {
+			yExtent = Math.max(Integer.parseInt(state.getAttribute("yExtent")), side + 2);
+		}
+		int rows = Math.min(side, yExtent - 2);
+		if (rows < 1) {
+			throw new IllegalArgumentException("A map " + yExtent + " tiles high has no room for units");
+		}
+		int columns = (footmenPerSide + rows - 1) / rows;
+		if (xExtent <= 0) {
+			xExtent = Math.max(Integer.parseInt(state.getAttribute("xExtent")), 2 * columns + GAP + 2);
+		}
+		if (2 * columns + 2 > xExtent) {
+			throw new IllegalArgumentException(footmenPerSide + " footmen per side don't fit on a " + xExtent +
+					"x" + yExtent + " map");
+		}
+		state.setAttribute("xExtent", Integer.toString(xExtent));
+		state.setAttribute("yExtent", Integer.toString(yExtent));
+
+		int nextId = 0;
+		List<Element> players = children(state, "player");
+		for (int p = 0; p < players.size(); p++) {
+			Element player = players.get(p);
+			List<Element> units = children(player, "unit");
+			if (units.isEmpty()) {
+				continue;
+			}
+			Element prototype = units.get(0);
+			for (int i = 0; i < footmenPerSide; i++) {
+				int column = i / rows;
+				int x = p == 0 ? 1 + column : xExtent - 2 - column;
+				Element unit = (Element) prototype.cloneNode(true);
+				setText(unit, "ID", nextId++);
+				setText(unit, "xPosition", x);
+				setText(unit, "yPosition", 1 + i % rows);
+				player.insertBefore(unit, prototype);
+			}
+			for (Element unit : new ArrayList<>(units)) {
+				player.removeChild(unit);
+			}
+		}
+		state.setAttribute("nextTargetID", Integer.toString(nextId));
+	}
+
+	static Document parse(File file) throws IOException {
+		try {
+			return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+		} catch (ParserConfigurationException | SAXException ex) {
+			throw new IOException("Failed to parse " + file + ". Reason: " + ex.getMessage(), ex);
+		}
+	}
+
+	private static void setText(Element parent, String tagName, int value) {
+		child(parent, tagName).setTextContent(Integer.toString(value));
+	}
+
+	private static void write(Document document, File file) throws IOException {
+		try {
+			TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document),
+					new StreamResult(file));
+		} catch (TransformerException ex) {
+			throw new IOException("Failed to write " + file + ". Reason: " + ex.getMessage(), ex);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.util.DistanceMetrics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-in for the scripted combatAgent enemy, for battles played outside SEPIA.
+ *
+ * Every footman without a live target, or whose attack failed, is sent after the closest footman of the
+ * other player, by Chebyshev distance, and keeps attacking it until it dies.
+ */
+final class ScriptedOpponent {
+
+	private final int playernum;
+	private final int enemyPlayernum;
+	//the footman each of our footmen was last sent after
+	private final Map<Integer, Integer> targets = new HashMap<>();
+
+	ScriptedOpponent(int playernum, int enemyPlayernum) {
+		this.playernum = playernum;
+		this.enemyPlayernum = enemyPlayernum;
+	}
+
+	int getPlayerNumber() {
+		return playernum;
+	}
+
+	/**
+	 * Forgets the targets, for a new episode.
+	 */
+	void reset() {
+		targets.clear();
+	}
+
+	/**
+	 * @return The attacks of the footmen that need a new target this turn
+	 */
+	Map<Integer, Action> commands(BattleView view) {
+		TurnLog lastTurn = view.getLastTurn();
+		for (int i = 0; i < lastTurn.numFeedback(); i++) {
+			if (lastTurn.feedbackPlayer(i) == playernum && lastTurn.feedbackEnded(i)) {
+				targets.remove(lastTurn.feedbackUnit(i));
+			}
+		}
+
+		Map<Integer, Action> actions = new HashMap<>();
+		List<Integer> enemies = view.getUnitIds(enemyPlayernum);
+		for (Integer unitId : view.getUnitIds(playernum)) {
+			Integer target = targets.get(unitId);
+			if (target != null && view.hasUnit(target)) {
+				continue;
+			}
+			int x = view.getXPosition(unitId);
+			int y = view.getYPosition(unitId);
+			int closest = -1;
+			int closestDistance = Integer.MAX_VALUE;
+			for (Integer enemyId : enemies) {
+				int distance = DistanceMetrics.chebyshevDistance(x, y, view.getXPosition(enemyId),
+						view.getYPosition(enemyId));
+				if (distance < closestDistance) {
+					closest = enemyId;
+					closestDistance = distance;
+				}
+			}
+			if (closest >= 0) {
+				targets.put(unitId, closest);
+				actions.put(unitId, Action.createCompoundAttack(unitId, closest));
+			}
+		}
+		return actions;
+	}
+}
@@ -0,0 +1,152 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A BattleView over SEPIA's StateView and HistoryView.
+ *
+ * One instance is pointed at the views of every call the agent gets. The last turn's logs are copied out
+ * of the HistoryView the first time they are asked for on a turn.
+ */
+final class SepiaBattleView implements BattleView {
+
+	private final int[] players;
+
+	private State.StateView stateView;
+	private History.HistoryView historyView;
+
+	private final TurnLog lastTurn = new TurnLog();
+	//the turn lastTurn was filled for, -1 when it needs to be filled
+	private int loggedTurn = -1;
+
+	//the last unit looked up, SEPIA's lookup isn't free and the agent reads several values of a unit in a row
+	private int cachedUnitId = -1;
+	private Unit.UnitView cachedUnit;
+
+	/**
+	 * @param players The players whose commands and action feedback are copied into the turn log
+	 */
+	SepiaBattleView(int... players) {
+		this.players = players.clone();
+	}
+
+	/**
+	 * Points the view at the state and history of the current call.
+	 *
+	 * @return This view
+	 */
+	SepiaBattleView set(State.StateView stateView, History.HistoryView historyView) {
+		if (stateView != this.stateView || historyView != this.historyView ||
+				stateView.getTurnNumber() != loggedTurn) {
+			loggedTurn = -1;
+		}
+		this.stateView = stateView;
+		this.historyView = historyView;
+		cachedUnitId = -1;
+		cachedUnit = null;
+		return this;
+	}
+
+	@Override
+	public int getTurnNumber() {
+		return stateView.getTurnNumber();
+	}
+
+	@Override
+	public int getXExtent() {
+		return stateView.getXExtent();
+	}
+
+	@Override
+	public int getYExtent() {
+		return stateView.getYExtent();
+	}
+
+	@Override
+	public List<Integer> getUnitIds(int player) {
+		return stateView.getUnitIds(player);
+	}
+
+	@Override
+	public String getUnitName(int unitId) {
+		Unit.UnitView unit = unit(unitId);
+		return unit == null ? null : unit.getTemplateView().getName();
+	}
+
+	@Override
+	public boolean hasUnit(int unitId) {
+		return unit(unitId) != null;
+	}
+
+	@Override
+	public int getHP(int unitId) {
+		return unit(unitId).getHP();
+	}
+
+	@Override
+	public int getXPosition(int unitId) {
+		return unit(unitId).getXPosition();
+	}
+
+	@Override
+	public int getYPosition(int unitId) {
+		return unit(unitId).getYPosition();
+	}
+
+	@Override
+	public TurnLog getLastTurn() {
+		int turn = stateView.getTurnNumber();
+		if (loggedTurn != turn) {
+			fillLastTurn(turn);
+			loggedTurn = turn;
+		}
+		return lastTurn;
+	}
+
+	private Unit.UnitView unit(int unitId) {
+		if (unitId != cachedUnitId) {
+			cachedUnit = stateView.getUnit(unitId);
+			cachedUnitId = unitId;
+		}
+		return cachedUnit;
+	}
+
+	private void fillLastTurn(int turn) {
+		lastTurn.clear();
+		//nothing has happened yet on the first turn
+		if (turn == 0) {
+			return;
+		}
+		int lastTurnNumber = turn - 1;
+
+		for (int player : players) {
+			Map<Integer, Action> commands = historyView.getCommandsIssued(player, lastTurnNumber);
+			for (Map.Entry<Integer, Action> command : commands.entrySet()) {
+				TargetedAction action = (TargetedAction) command.getValue();
+				if (action != null) {
+					lastTurn.addCommand(player, command.getKey(), action.getTargetId());
+				}
+			}
+			for (ActionResult result : historyView.getCommandFeedback(player, lastTurnNumber).values()) {
+				TargetedAction action = (TargetedAction) result.getAction();
+				lastTurn.addFeedback(player, action.getUnitId(), action.getTargetId(), result.getFeedback());
+			}
+		}
+		for (DamageLog damageLog : historyView.getDamageLogs(lastTurnNumber)) {
+			lastTurn.addDamage(damageLog.getAttackerID(), damageLog.getDefenderID(), damageLog.getDamage());
+		}
+		for (DeathLog deathLog : historyView.getDeathLogs(lastTurnNumber)) {
+			lastTurn.addDeath(deathLog.getDeadUnitID(), deathLog.getController());
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.SimpleModelEpisodicRunner;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+
+import static edu.cwru.sepia.agent.XmlElements.child;
+import static edu.cwru.sepia.agent.XmlElements.children;
+
+/**
+ * A SEPIA experiment read from one of the configuration files in data/ (e.g. data/5fv5fConfig.xml).
+ *
+ * This lets us run episodes from inside our own JVM, with agents we construct ourselves, instead of going
+ * through SEPIA's main class. Every call to run builds a fresh environment, so several experiments can
+ * run side by side on different threads.
+ */
+final class SepiaExperiment {
+
+	private final String mapFile;
+	//runner parameters and model parameters (prefixed with "model.") passed to the SEPIA runner
+	private final Map<String, String> parameters = new LinkedHashMap<>();
+	//the first agent class and arguments listed for each player
+	private final Map<Integer, String> agentClasses = new HashMap<>();
+	private final Map<Integer, String[]> agentArguments = new HashMap<>();
+
+	private SepiaExperiment(String mapFile) {
+		this.mapFile = mapFile;
+	}
+
+	/**
+	 * Reads a SEPIA configuration file.
+	 *
+	 * @param configFile Path to the configuration, e.g. data/5fv5fConfig.xml
+	 * @return The experiment described by the file
+	 * @throws IOException If the file can't be read or isn't a valid configuration
+	 */
+	static SepiaExperiment load(String configFile) throws IOException {
+		Document document;
+		try {
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(configFile));
+		} catch (ParserConfigurationException | SAXException ex) {
+			throw new IOException("Failed to parse " + configFile + ". Reason: " + ex.getMessage(), ex);
+		}
+		Element root = document.getDocumentElement();
+
+		Element map = child(root, "Map");
+		if (map == null) {
+			throw new IOException(configFile + " does not specify a map");
+		}
+		SepiaExperiment experiment = new SepiaExperiment(map.getTextContent().trim());
+
+		for (Element player : children(root, "Player")) {
+			int playerId = Integer.parseInt(player.getAttribute("Id"));
+			Element agentClass = child(player, "AgentClass");
+			//a player can be listed twice (e.g. the visual agent), only the first one is used
+			if (agentClass == null || experiment.agentClasses.containsKey(playerId)) {
+				continue;
+			}
+			List<String> arguments = new ArrayList<>();
+			for (Element argument : children(agentClass, "Argument")) {
+				arguments.add(argument.getTextContent().trim());
+			}
+			experiment.agentClasses.put(playerId, child(agentClass, "ClassName").getTextContent().trim());
+			experiment.agentArguments.put(playerId, arguments.toArray(new String[arguments.size()]));
+		}
+
+		Element modelParameters = child(root, "ModelParameters");
+		if (modelParameters != null) {
+			for (Element parameter : children(modelParameters, null)) {
+				experiment.parameters.put("model." + parameter.getTagName(), parameter.getTextContent().trim());
+			}
+		}
+
+		Element runner = child(root, "Runner");
+		if (runner != null) {
+			for (Element parameter : children(runner, "Parameter")) {
+				experiment.parameters.put(parameter.getAttribute("Name"), parameter.getAttribute("Value"));
+			}
+		}
+		return experiment;
+	}
+
+	String getMapFile() {
+		return mapFile;
+	}
+
+	String getParameter(String name) {
+		return parameters.get(name);
+	}
+
+	/**
+	 * Overrides a runner or model parameter, e.g. experiment.NumEpisodes.
+	 */
+	void setParameter(String name, String value) {
+		parameters.put(name, value);
+	}
+
+	/**
+	 * @return The arguments the configuration passes to the given player's agent
+	 */
+	String[] getAgentArguments(int playerId) {
+		String[] arguments = agentArguments.get(playerId);
+		return arguments == null ? new String[0] : arguments.clone();
+	}
+
+	/**
+	 * Instantiates the agent the configuration lists for a player, with the arguments it lists.
+	 *
+	 * @param playerId The player to create the agent for
+	 * @return A new agent
+	 * @throws IOException If the agent class can't be found or instantiated
+	 */
+	Agent createAgent(int playerId) throws IOException {
+		String className = agentClasses.get(playerId);
+		if (className == null) {
+			throw new IOException("No agent is configured for player " + playerId);
+		}
+		try {
+			return (Agent) Class.forName(className).getConstructor(int.class, String[].class)
+					.newInstance(playerId, getAgentArguments(playerId));
+		} catch (ClassNotFoundException | NoSuchMethodException | InstantiationException |
+				IllegalAccessException | InvocationTargetException ex) {
+			throw new IOException("Failed to create agent " + className + ". Reason: " + ex, ex);
+		}
+	}
+
+	/**
+	 * Runs experiment.NumEpisodes episodes on a fresh environment with the given agents. Blocks until the
+	 * runner is done.
+	 *
+	 * @param agents One agent per player
+	 * @throws IOException If the map can't be loaded
+	 */
+	void run(Agent[] agents) throws IOException {
+		new SimpleModelEpisodicRunner(createConfiguration(), createStateCreator(), agents).run();
+	}
+
+	/**
+	 * @return The runner and model parameters as a SEPIA configuration
+	 */
+	Configuration createConfiguration() {
+		Configuration configuration = new Configuration();
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			configuration.put(parameter.getKey(), parse(parameter.getValue()));
+		}
+		return configuration;
+	}
+
+	private StateCreator createStateCreator() throws IOException {
+		try {
+			JAXBContext context = JAXBContext.newInstance(XmlState.class);
+			XmlState state = (XmlState) context.createUnmarshaller().unmarshal(new File(mapFile));
+			return new XmlStateCreator(state);
+		} catch (JAXBException ex) {
+			throw new IOException("Failed to load map " + mapFile + ". Reason: " + ex, ex);
+		}
+	}
+
+	//the runner expects booleans and numbers rather than strings
+	private static Object parse(String value) {
+		if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+			return Boolean.parseBoolean(value);
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains one set of weights on battles played in CombatSimulator instead of SEPIA, for bulk training
+ * before fine-tuning in SEPIA.
+ *
+ * Works like ParallelTrainer: every actor plays its own simulated battles on its own thread, against a
+ * ScriptedOpponent, and exchanges what it learned with the central Learner after every episode. The final
+ * weights are written to agent_weights/weights.txt, where loadWeights picks them up for a SEPIA run.
+ *
+ * Usage: SimulatedTrainer mapFile numActors episodesPerActor [publishInterval] [seed] [loadWeights]
+ *        [name=value...]
+ *
+ * e.g. SimulatedTrainer data/rl_10fv10f.xml 4 100000 4 12345 false features=constant,closeness
+ *
+ * name=value arguments are passed to the agents as options, the way ParallelTrainer passes the configured
+ * ones (see ParallelTrainer.agentArguments and actorArguments).
+ */
+public class SimulatedTrainer {
+
+	public static void main(String[] arguments) throws Exception {
+		List<String> options = new ArrayList<>();
+		List<String> positional = new ArrayList<>();
+		for (String arg : arguments) {
+			(arg.indexOf('=') > 0 ? options : positional).add(arg);
+		}
+		String[] args = positional.toArray(new String[positional.size()]);
+		String[] agentOptions = options.toArray(new String[options.size()]);
+		if (args.length < 3) {
+			System.err.println("Usage: SimulatedTrainer mapFile numActors episodesPerActor " +
+					"[publishInterval] [seed] [loadWeights] [name=value...]");
+			System.exit(1);
+		}
+		File mapFile = new File(args[0]);
+		int numActors = Integer.parseInt(args[1]);
+		int episodesPerActor = Integer.parseInt(args[2]);
+		int publishInterval = args.length >= 4 ? Integer.parseInt(args[3]) : numActors;
+		long seed = args.length >= 5 ? Long.parseLong(args[4]) : 12345;
+		String loadWeights = args.length >= 6 ? args[5] : "false";
+
+		RLAgent initialAgent = new RLAgent(0, ParallelTrainer.agentArguments(agentOptions, episodesPerActor,
+				loadWeights, seed));
+		ParallelTrainer.checkInitialWeights(initialAgent);
+		Learner learner = new Learner(initialAgent.weights, publishInterval);
+		Thread learnerThread = new Thread(learner, "learner");
+		learnerThread.start();
+
+		System.out.println("Simulating " + numActors + " actors, " + episodesPerActor + " episodes each");
+		long start = System.nanoTime();
+
+		ExecutorService executor = Executors.newFixedThreadPool(numActors);
+		List<Future<Long>> actors = new ArrayList<>();
+		for (int i = 0; i < numActors; i++) {
+			actors.add(executor.submit(new Actor(mapFile, ParallelTrainer.actorArguments(agentOptions, i,
+					episodesPerActor, seed + i), episodesPerActor, seed + i, learner)));
+		}
+		long turns = 0;
+		try {
+			for (Future<Long> actor : actors) {
+				turns += actor.get();
+			}
+		} catch (ExecutionException ex) {
+			System.err.println("Actor failed. Reason: " + ex.getCause());
+			throw ex;
+		} finally {
+			executor.shutdownNow();
+			learner.stop();
+			learnerThread.join();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long episodes = (long) numActors * episodesPerActor;
+		System.out.println("Session complete");
+		System.out.println(learner.getNumUpdates() + " updates applied");
+		System.out.println(String.format("%.0f episodes/sec, %.0f episodes/sec per actor, %.1f turns/episode",
+				episodes / seconds, episodes / seconds / numActors, (double) turns / episodes));
+
+		initialAgent.saveWeights(RLAgent.boxWeights(learner.latest()));
+		System.exit(0);
+	}
+
+	/**
+	 * Plays the episodes of one actor.
+	 */
+	private static final class Actor implements Callable<Long> {
+
+		private final File mapFile;
+		private final String[] agentArguments;
+		private final int numEpisodes;
+		private final long seed;
+		private final WeightSync weightSync;
+
+		Actor(File mapFile, String[] agentArguments, int numEpisodes, long seed, WeightSync weightSync) {
+			this.mapFile = mapFile;
+			this.agentArguments = agentArguments;
+			this.numEpisodes = numEpisodes;
+			this.seed = seed;
+			this.weightSync = weightSync;
+		}
+
+		/**
+		 * @return The number of turns played
+		 */
+		@Override
+		public Long call() throws IOException {
+			CombatSimulator simulator = CombatSimulator.load(mapFile, new Random(seed));
+			RLAgent agent = new RLAgent(0, agentArguments);
+			agent.setWeightSync(weightSync);
+			ScriptedOpponent opponent = new ScriptedOpponent(RLAgent.ENEMY_PLAYERNUM, agent.getPlayerNumber());
+
+			long turns = 0;
+			for (int episode = 0; episode < numEpisodes; episode++) {
+				turns += simulator.playEpisode(agent, opponent);
+			}
+			return turns;
+		}
+	}
+}
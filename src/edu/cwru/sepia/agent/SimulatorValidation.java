@@ -0,0 +1,183 @@
+package edu.cwru.sepia.agent;
+
+import org.w3c.dom.Element;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks CombatSimulator against battles played in SEPIA.
+ *
+ * Replays recorded by the agent (record.directory) are replayed one turn at a time: every pair of frames of
+ * consecutive turns of a battle is loaded into the simulator from the first frame, with the targets of the second, and
+ * played out once with the smallest and once with the largest damage rolls. The second frame should then have
+ * the units where the simulator put them, HP between the two outcomes, and the units dead that the simulator
+ * killed with the largest rolls and spared with the smallest.
+ *
+ * State saves, e.g. saves/*.SRTSsav, are snapshots taken many turns apart and don't record the commands
+ * given, so there is no step to compare them with. They are only checked for loading into the simulator:
+ * known templates, units on the map and no two units on a tile.
+ *
+ * Usage: SimulatorValidation (replay.rpl | save file | directory of saves)...
+ */
+public class SimulatorValidation {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: SimulatorValidation (replay.rpl | save file | directory of saves)...");
+			System.exit(1);
+		}
+		Counts counts = new Counts();
+		for (String arg : args) {
+			File file = new File(arg);
+			if (file.getName().endsWith(".rpl")) {
+				validateReplay(file, counts);
+			} else {
+				for (File save : ReplayConverter.findSaves(file)) {
+					validateSave(save, counts);
+				}
+			}
+		}
+
+		System.out.println(counts.saves + " saves, " + counts.invalidSaves + " can't be loaded");
+		System.out.println(counts.steps + " turns stepped, " + counts.skippedFrames + " frames without a " +
+				"following turn or any targets skipped");
+		if (counts.units > 0) {
+			System.out.println(String.format("%d units: %.1f%% positions, %.1f%% HP, %.1f%% deaths match",
+					counts.units, 100.0 * counts.positionsMatched / counts.positions,
+					100.0 * counts.hpMatched / counts.positions, 100.0 * counts.deathsMatched / counts.units));
+		}
+	}
+
+	private static void validateSave(File save, Counts counts) throws IOException {
+		counts.saves++;
+		Element state = ReplayConverter.parse(save);
+		try {
+			new CombatSimulator(ReplayConverter.readHeader(state), ReplayConverter.readUnits(state), new Random(),
+					CombatSimulator.DEFAULT_TURN_LIMIT);
+		} catch (IllegalArgumentException ex) {
+			counts.invalidSaves++;
+			System.out.println(save + ": " + ex.getMessage());
+		}
+	}
+
+	private static void validateReplay(File replay, Counts counts) throws IOException {
+		try (ReplayReader reader = ReplayReader.open(replay)) {
+			List<ReplayUnit> none = new ArrayList<>();
+			CombatSimulator smallest = new CombatSimulator(reader.getHeader(), none, new FixedRoll(false),
+					CombatSimulator.DEFAULT_TURN_LIMIT);
+			CombatSimulator largest = new CombatSimulator(reader.getHeader(), none, new FixedRoll(true),
+					CombatSimulator.DEFAULT_TURN_LIMIT);
+
+			Map<Integer, ReplayUnit> previous = new HashMap<>();
+			int previousTurn = -1;
+			while (reader.next()) {
+				if (!previous.isEmpty() && !reader.isBattleStart() && reader.getTurn() == previousTurn + 1 &&
+						hasTarget(previous, reader)) {
+					List<ReplayUnit> units = withTargets(previous, reader);
+					smallest.load(units, previousTurn);
+					largest.load(units, previousTurn);
+					smallest.step();
+					largest.step();
+					compare(previous, reader, smallest, largest, counts);
+					counts.steps++;
+				} else if (!previous.isEmpty()) {
+					counts.skippedFrames++;
+				}
+				previous.clear();
+				for (ReplayUnit unit : reader.getUnits()) {
+					previous.put(unit.id, unit);
+				}
+				previousTurn = reader.getTurn();
+			}
+		}
+	}
+
+	/**
+	 * @return true if a unit attacks something between the last frame and the current one
+	 */
+	private static boolean hasTarget(Map<Integer, ReplayUnit> previous, ReplayReader reader) {
+		for (ReplayUnit unit : previous.values()) {
+			ReplayUnit next = reader.getUnit(unit.id);
+			if (unit.target != ReplayUnit.NO_TARGET || (next != null && next.target != ReplayUnit.NO_TARGET)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The units of the last frame, attacking what they attack in the current one if they survive it
+	 */
+	private static List<ReplayUnit> withTargets(Map<Integer, ReplayUnit> previous, ReplayReader reader) {
+		List<ReplayUnit> units = new ArrayList<>();
+		for (ReplayUnit unit : previous.values()) {
+			ReplayUnit next = reader.getUnit(unit.id);
+			int target = next != null && next.target != ReplayUnit.NO_TARGET ? next.target : unit.target;
+			units.add(new ReplayUnit(unit.id, unit.player, unit.templateId, unit.hp, unit.x, unit.y, target));
+		}
+		return units;
+	}
+
+	private static void compare(Map<Integer, ReplayUnit> previous, ReplayReader reader, CombatSimulator smallest,
+			CombatSimulator largest, Counts counts) {
+		for (ReplayUnit unit : previous.values()) {
+			counts.units++;
+			ReplayUnit next = reader.getUnit(unit.id);
+			if (next == null) {
+				if (!largest.hasUnit(unit.id)) {
+					counts.deathsMatched++;
+				}
+				continue;
+			}
+			if (!smallest.hasUnit(unit.id)) {
+				continue;
+			}
+			counts.deathsMatched++;
+			counts.positions++;
+			//moves don't depend on the rolls, so both runs put the unit on the same tile
+			if (smallest.getXPosition(unit.id) == next.x && smallest.getYPosition(unit.id) == next.y) {
+				counts.positionsMatched++;
+			}
+			int lowestHP = largest.hasUnit(unit.id) ? largest.getHP(unit.id) : Integer.MIN_VALUE;
+			if (next.hp <= smallest.getHP(unit.id) && next.hp >= lowestHP) {
+				counts.hpMatched++;
+			}
+		}
+	}
+
+	/**
+	 * Always rolls the smallest or the largest damage.
+	 */
+	private static final class FixedRoll extends Random {
+
+		private final boolean largest;
+
+		FixedRoll(boolean largest) {
+			this.largest = largest;
+		}
+
+		@Override
+		public int nextInt(int bound) {
+			//CombatSimulator subtracts the roll from the full damage
+			return largest ? 0 : bound - 1;
+		}
+	}
+
+	private static final class Counts {
+		int saves;
+		int invalidSaves;
+		int steps;
+		int skippedFrames;
+		int units;
+		int deathsMatched;
+		int positions;
+		int positionsMatched;
+		int hpMatched;
+	}
+}
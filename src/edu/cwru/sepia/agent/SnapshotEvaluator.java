@@ -0,0 +1,151 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Evaluates copies of the weights on worker threads while the agent keeps learning.
+ *
+ * Every snapshot is played for a number of episodes with the Q function frozen by its own RLAgent, in a
+ * fresh SEPIA environment built from a configuration file or in CombatSimulator on the configuration's map.
+ * The average rewards come back in the order the snapshots were taken, whatever order they finish in.
+ */
+final class SnapshotEvaluator {
+
+	static final String SEPIA = "sepia";
+	static final String SIMULATOR = "simulator";
+
+	private final String configFile;
+	private final String engine;
+	private final int numEpisodes;
+	private final int playernum;
+	private final long seed;
+	private final String[] agentOptions;
+	private final ExecutorService executor;
+
+	//the evaluations in the order the snapshots were taken, the first numMerged were handed out already
+	private final List<Future<Double>> evaluations = new ArrayList<>();
+	private int numMerged;
+
+	/**
+	 * @param configFile The SEPIA configuration to evaluate on, e.g. data/10fv10fConfig.xml
+	 * @param engine SEPIA or SIMULATOR
+	 * @param numEpisodes How many episodes to play per snapshot
+	 * @param numThreads How many snapshots to evaluate at the same time
+	 * @param playernum The player the evaluated agents control
+	 * @param seed Seed of the evaluation agents, each snapshot gets the next one
+	 * @param agentOptions name=value options of the evaluation agents, e.g. their features
+	 */
+	SnapshotEvaluator(String configFile, String engine, int numEpisodes, int numThreads, int playernum, long seed,
+			String... agentOptions) {
+		if (!engine.equals(SEPIA) && !engine.equals(SIMULATOR)) {
+			throw new IllegalArgumentException("Unknown evaluation engine " + engine);
+		}
+		if (numEpisodes < 1 || numThreads < 1) {
+			throw new IllegalArgumentException("numEpisodes and numThreads must be positive");
+		}
+		this.configFile = configFile;
+		this.engine = engine;
+		this.numEpisodes = numEpisodes;
+		this.playernum = playernum;
+		this.seed = seed;
+		this.agentOptions = agentOptions.clone();
+		//evaluations left running shouldn't keep the process alive when the session ends
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "evaluator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts evaluating a copy of the weights.
+	 */
+	void submit(double[] weights) {
+		final double[] snapshot = weights.clone();
+		final long snapshotSeed = seed + evaluations.size();
+		evaluations.add(executor.submit(new Callable<Double>() {
+			@Override
+			public Double call() throws IOException {
+				return evaluate(snapshot, snapshotSeed);
+			}
+		}));
+	}
+
+	/**
+	 * @return The average rewards of the snapshots that finished since the last call, in the order they were
+	 * taken, stopping at the first one still running
+	 */
+	List<Double> completed() {
+		List<Double> rewards = new ArrayList<>();
+		while (numMerged < evaluations.size() && evaluations.get(numMerged).isDone()) {
+			rewards.add(result(evaluations.get(numMerged++)));
+		}
+		return rewards;
+	}
+
+	/**
+	 * Waits for every snapshot taken so far and stops the workers.
+	 *
+	 * @return The average rewards of the snapshots not returned by completed yet, in the order they were taken
+	 */
+	List<Double> finish() {
+		List<Double> rewards = new ArrayList<>();
+		while (numMerged < evaluations.size()) {
+			rewards.add(result(evaluations.get(numMerged++)));
+		}
+		executor.shutdown();
+		return rewards;
+	}
+
+	/**
+	 * @return The average reward of an evaluation, NaN if it failed
+	 */
+	private static double result(Future<Double> evaluation) {
+		try {
+			return evaluation.get();
+		} catch (ExecutionException ex) {
+			System.err.println("Evaluation failed. Reason: " + ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return Double.NaN;
+	}
+
+	private double evaluate(double[] snapshot, long snapshotSeed) throws IOException {
+		List<String> args = new ArrayList<>(Arrays.asList(Integer.toString(numEpisodes), "false",
+				Long.toString(snapshotSeed)));
+		args.addAll(Arrays.asList(agentOptions));
+		RLAgent agent = new RLAgent(playernum, args.toArray(new String[args.size()]));
+		agent.evaluateOnly(snapshot);
+		SepiaExperiment experiment = SepiaExperiment.load(configFile);
+		if (engine.equals(SIMULATOR)) {
+			CombatSimulator simulator = CombatSimulator.load(new File(experiment.getMapFile()),
+					new Random(snapshotSeed));
+			ScriptedOpponent opponent = new ScriptedOpponent(RLAgent.ENEMY_PLAYERNUM, playernum);
+			for (int episode = 0; episode < numEpisodes; episode++) {
+				simulator.playEpisode(agent, opponent);
+			}
+		} else {
+			experiment.setParameter("experiment.NumEpisodes", Integer.toString(numEpisodes));
+			Agent[] agents = new Agent[Math.max(playernum, RLAgent.ENEMY_PLAYERNUM) + 1];
+			agents[playernum] = agent;
+			agents[RLAgent.ENEMY_PLAYERNUM] = experiment.createAgent(RLAgent.ENEMY_PLAYERNUM);
+			experiment.run(agents);
+		}
+		return agent.getEvaluationReward() / numEpisodes;
+	}
+}
@@ -0,0 +1,329 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Grid of square buckets over the map that answers Chebyshev distance queries about a set of units
+ * (e.g. the live enemy footmen) without scanning all of them.
+ *
+ * Units are added, moved and removed one at a time, so keeping the index up to date costs only as much
+ * as the number of units that changed. A rank query counts whole buckets by their size and only looks at
+ * individual units in the buckets on the edge of the query square, and a nearest query searches outwards
+ * ring by ring, so both cost depends on how crowded the area around the query is rather than on the total
+ * number of units.
+ */
+final class SpatialIndex {
+
+	static final int DEFAULT_CELL_SIZE = 4;
+
+	private final int cellSize;
+	private int columns;
+	private int rows;
+
+	//the units in each bucket, cells[c][0 .. cellCounts[c]) hold slots
+	private int[][] cells = new int[0][];
+	private int[] cellCounts = new int[0];
+
+	//per unit storage, units are identified by slot internally
+	private final Map<Integer, Integer> slots = new HashMap<>();
+	private int[] slotIds = new int[0];
+	private int[] slotX = new int[0];
+	private int[] slotY = new int[0];
+	private int[] slotCell = new int[0];
+	//where the slot is in its bucket, so it can be removed without a search
+	private int[] slotPosition = new int[0];
+	//slots freed by removed units, reused before new ones are allocated
+	private int[] freeSlots = new int[0];
+	private int numFree;
+	private int numSlots;
+
+	//scratch space for nearest
+	private int[] candidateIds = new int[0];
+	private int[] candidateDistances = new int[0];
+
+	SpatialIndex() {
+		this(DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * @param cellSize The width and height of a bucket in tiles
+	 */
+	SpatialIndex(int cellSize) {
+		if (cellSize < 1) {
+			throw new IllegalArgumentException("cellSize must be positive");
+		}
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Removes every unit and sizes the grid for a map, e.g. at the start of an episode.
+	 *
+	 * @param xExtent Width of the map
+	 * @param yExtent Height of the map
+	 */
+	void reset(int xExtent, int yExtent) {
+		columns = Math.max((xExtent + cellSize - 1) / cellSize, 1);
+		rows = Math.max((yExtent + cellSize - 1) / cellSize, 1);
+		if (cells.length < columns * rows) {
+			cells = new int[columns * rows][];
+			cellCounts = new int[columns * rows];
+			for (int c = 0; c < cells.length; c++) {
+				cells[c] = new int[4];
+			}
+		}
+		Arrays.fill(cellCounts, 0);
+		slots.clear();
+		numSlots = 0;
+		numFree = 0;
+	}
+
+	/**
+	 * @return true if the grid was sized for a map of this extent by the last reset
+	 */
+	boolean covers(int xExtent, int yExtent) {
+		return columns == Math.max((xExtent + cellSize - 1) / cellSize, 1) &&
+				rows == Math.max((yExtent + cellSize - 1) / cellSize, 1);
+	}
+
+	int size() {
+		return slots.size();
+	}
+
+	boolean contains(int unitId) {
+		return slots.containsKey(unitId);
+	}
+
+	/**
+	 * Adds a unit, or moves it if it is already in the index.
+	 */
+	void put(int unitId, int x, int y) {
+		Integer slot = slots.get(unitId);
+		if (slot == null) {
+			slot = allocateSlot();
+			slots.put(unitId, slot);
+			slotIds[slot] = unitId;
+		} else if (slotX[slot] == x && slotY[slot] == y) {
+			return;
+		} else {
+			removeFromCell(slot);
+		}
+		slotX[slot] = x;
+		slotY[slot] = y;
+		addToCell(slot, cellOf(x, y));
+	}
+
+	/**
+	 * Removes a unit, e.g. when it dies. Does nothing if it is not in the index.
+	 */
+	void remove(int unitId) {
+		Integer slot = slots.remove(unitId);
+		if (slot == null) {
+			return;
+		}
+		removeFromCell(slot);
+		if (numFree == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, Math.max(2 * numFree, 4));
+		}
+		freeSlots[numFree++] = slot;
+	}
+
+	/**
+	 * Counts the units strictly closer to (x, y) than the given distance, i.e. the rank of a unit at that
+	 * distance when the units are sorted by Chebyshev distance from (x, y).
+	 *
+	 * @param x Column of the query point
+	 * @param y Row of the query point
+	 * @param distance The Chebyshev distance to rank
+	 * @return The number of units at a Chebyshev distance less than distance
+	 */
+	int countCloser(int x, int y, int distance) {
+		if (distance <= 0) {
+			return 0;
+		}
+		//the units closer than distance are the ones in this square
+		int minX = x - distance + 1;
+		int maxX = x + distance - 1;
+		int minY = y - distance + 1;
+		int maxY = y + distance - 1;
+
+		int firstColumn = Math.max(floorDiv(minX), 0);
+		int lastColumn = Math.min(floorDiv(maxX), columns - 1);
+		int firstRow = Math.max(floorDiv(minY), 0);
+		int lastRow = Math.min(floorDiv(maxY), rows - 1);
+
+		int count = 0;
+		for (int row = firstRow; row <= lastRow; row++) {
+			boolean rowInside = row * cellSize >= minY && (row + 1) * cellSize - 1 <= maxY;
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				int cell = row * columns + column;
+				if (rowInside && column * cellSize >= minX && (column + 1) * cellSize - 1 <= maxX) {
+					count += cellCounts[cell];
+					continue;
+				}
+				//a bucket on the edge of the square, check its units one by one
+				int[] members = cells[cell];
+				for (int i = 0; i < cellCounts[cell]; i++) {
+					int slot = members[i];
+					if (slotX[slot] >= minX && slotX[slot] <= maxX && slotY[slot] >= minY && slotY[slot] <= maxY) {
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the k units closest to (x, y) by Chebyshev distance, closest first. Ties are broken by id.
+	 *
+	 * @param x Column of the query point
+	 * @param y Row of the query point
+	 * @param k Number of units to find
+	 * @param ids Receives the ids of the units found, must hold at least k values
+	 * @return The number of units found, less than k if the index holds fewer units
+	 */
+	int nearest(int x, int y, int k, int[] ids) {
+		k = Math.min(k, slots.size());
+		if (k <= 0) {
+			return 0;
+		}
+		int centerColumn = Math.min(Math.max(floorDiv(x), 0), columns - 1);
+		int centerRow = Math.min(Math.max(floorDiv(y), 0), rows - 1);
+		int maxRing = Math.max(Math.max(centerColumn, columns - 1 - centerColumn),
+				Math.max(centerRow, rows - 1 - centerRow));
+
+		int numCandidates = 0;
+		for (int ring = 0; ring <= maxRing; ring++) {
+			for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+				if (row < 0 || row >= rows) {
+					continue;
+				}
+				//only the first and last column of the ring in the rows between its top and bottom
+				int step = row == centerRow - ring || row == centerRow + ring ? 1 : Math.max(2 * ring, 1);
+				for (int column = centerColumn - ring; column <= centerColumn + ring; column += step) {
+					if (column < 0 || column >= columns) {
+						continue;
+					}
+					int cell = row * columns + column;
+					for (int i = 0; i < cellCounts[cell]; i++) {
+						int slot = cells[cell][i];
+						numCandidates = addCandidate(numCandidates, slotIds[slot],
+								Math.max(Math.abs(slotX[slot] - x), Math.abs(slotY[slot] - y)));
+					}
+				}
+			}
+			if (numCandidates >= k && kthSmallestDistance(numCandidates, k) < distanceOutside(x, y, centerColumn,
+					centerRow, ring)) {
+				break;
+			}
+		}
+
+		sortCandidates(numCandidates);
+		System.arraycopy(candidateIds, 0, ids, 0, k);
+		return k;
+	}
+
+	/**
+	 * The least Chebyshev distance from (x, y) to a unit in a bucket outside the square of buckets searched so
+	 * far. Measured from the query itself to the tiles just beyond each side of the square that has buckets
+	 * beyond it, since a query off the map is searched from the nearest edge bucket. Units off the map are
+	 * kept in the edge buckets, so they are only ever further out than the tiles of their bucket.
+	 *
+	 * @return The distance, Integer.MAX_VALUE if the square covers the whole grid
+	 */
+	private int distanceOutside(int x, int y, int centerColumn, int centerRow, int ring) {
+		int distance = Integer.MAX_VALUE;
+		if (centerColumn - ring > 0) {
+			distance = Math.min(distance, x - (centerColumn - ring) * cellSize + 1);
+		}
+		if (centerColumn + ring < columns - 1) {
+			distance = Math.min(distance, (centerColumn + ring + 1) * cellSize - x);
+		}
+		if (centerRow - ring > 0) {
+			distance = Math.min(distance, y - (centerRow - ring) * cellSize + 1);
+		}
+		if (centerRow + ring < rows - 1) {
+			distance = Math.min(distance, (centerRow + ring + 1) * cellSize - y);
+		}
+		return distance;
+	}
+
+	private int addCandidate(int numCandidates, int id, int distance) {
+		if (numCandidates == candidateIds.length) {
+			int capacity = Math.max(2 * numCandidates, 16);
+			candidateIds = Arrays.copyOf(candidateIds, capacity);
+			candidateDistances = Arrays.copyOf(candidateDistances, capacity);
+		}
+		candidateIds[numCandidates] = id;
+		candidateDistances[numCandidates] = distance;
+		return numCandidates + 1;
+	}
+
+	//the k-th smallest candidate distance, sorts the candidates
+	private int kthSmallestDistance(int numCandidates, int k) {
+		sortCandidates(numCandidates);
+		return candidateDistances[k - 1];
+	}
+
+	//insertion sort by distance then id, the candidates are mostly sorted after the first ring
+	private void sortCandidates(int numCandidates) {
+		for (int i = 1; i < numCandidates; i++) {
+			int id = candidateIds[i];
+			int distance = candidateDistances[i];
+			int j = i - 1;
+			while (j >= 0 && (candidateDistances[j] > distance ||
+					(candidateDistances[j] == distance && candidateIds[j] > id))) {
+				candidateIds[j + 1] = candidateIds[j];
+				candidateDistances[j + 1] = candidateDistances[j];
+				j--;
+			}
+			candidateIds[j + 1] = id;
+			candidateDistances[j + 1] = distance;
+		}
+	}
+
+	//units outside the map are kept in the nearest edge bucket
+	private int cellOf(int x, int y) {
+		int column = Math.min(Math.max(floorDiv(x), 0), columns - 1);
+		int row = Math.min(Math.max(floorDiv(y), 0), rows - 1);
+		return row * columns + column;
+	}
+
+	private int floorDiv(int coordinate) {
+		return coordinate >= 0 ? coordinate / cellSize : -((-coordinate + cellSize - 1) / cellSize);
+	}
+
+	private int allocateSlot() {
+		if (numFree > 0) {
+			return freeSlots[--numFree];
+		}
+		if (numSlots == slotIds.length) {
+			int capacity = Math.max(2 * numSlots, 16);
+			slotIds = Arrays.copyOf(slotIds, capacity);
+			slotX = Arrays.copyOf(slotX, capacity);
+			slotY = Arrays.copyOf(slotY, capacity);
+			slotCell = Arrays.copyOf(slotCell, capacity);
+			slotPosition = Arrays.copyOf(slotPosition, capacity);
+		}
+		return numSlots++;
+	}
+
+	private void addToCell(int slot, int cell) {
+		if (cellCounts[cell] == cells[cell].length) {
+			cells[cell] = Arrays.copyOf(cells[cell], 2 * cells[cell].length);
+		}
+		slotCell[slot] = cell;
+		slotPosition[slot] = cellCounts[cell];
+		cells[cell][cellCounts[cell]++] = slot;
+	}
+
+	//moves the bucket's last unit into the hole
+	private void removeFromCell(int slot) {
+		int cell = slotCell[slot];
+		int last = cells[cell][--cellCounts[cell]];
+		cells[cell][slotPosition[slot]] = last;
+		slotPosition[last] = slotPosition[slot];
+	}
+}
@@ -0,0 +1,295 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Assigns our footmen to enemies jointly, maximizing the total Q-value with at most capacity footmen per
+ * enemy, using an auction.
+ *
+ * Every enemy offers capacity slots, each with a price. A footman without a target bids for the slot with
+ * the best Q-value minus price, raising its price by how much better it is than the footman's second
+ * choice (plus epsilon), and takes it from whoever held it. When every footman holds a slot no footman can
+ * gain more than epsilon by switching, so the total Q-value is within epsilon per footman of the optimum.
+ *
+ * Prices and assignments are kept between solves within an episode. Each solve frees the slots of dead
+ * units, keeps the assignments that are still within epsilon of the best choice under the new Q-values and
+ * only runs the auction for the footmen that lost their target, so a death or a small change in the
+ * Q-values only costs a few bids instead of a new assignment.
+ */
+final class TargetAssignment {
+
+	//epsilon as a fraction of the spread of the Q-values
+	private static final double EPSILON_FRACTION = 1e-3;
+
+	private final int capacity;
+	//slots per enemy, the capacity unless there are too few enemies for everybody
+	private int slotsPerEnemy;
+
+	//the turn of the last solve, -1 if there is none for this episode
+	private int turn = -1;
+
+	//enemies in the order they were first seen this episode, slot s of enemy e is e * slotsPerEnemy + s
+	private final Map<Integer, Integer> enemyIndex = new HashMap<>();
+	private int[] enemyIds = new int[0];
+	private int numEnemies;
+	private double[] prices = new double[0];
+	//the footman holding each slot, -1 if free
+	private int[] slotHolder = new int[0];
+
+	//footman id -> the slot it holds
+	private final Map<Integer, Integer> footmanSlot = new HashMap<>();
+
+	//per solve scratch space
+	private double[] values = new double[0];
+	private double[] row = new double[0];
+	//position of each enemy in the current roster, -1 if it is dead
+	private int[] enemyRoster = new int[0];
+	//the enemy at each roster position
+	private int[] defenderEnemy = new int[0];
+	private int[] unassigned = new int[0];
+	private double[] cheapestPrice = new double[0];
+	private int[] cheapestSlot = new int[0];
+
+	/**
+	 * @param capacity Most footmen assigned to the same enemy. Raised when there are too few enemies for
+	 *                 every footman to get one.
+	 */
+	TargetAssignment(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.slotsPerEnemy = capacity;
+	}
+
+	/**
+	 * Forgets the assignment and prices, e.g. when a new episode starts.
+	 */
+	void reset() {
+		turn = -1;
+		slotsPerEnemy = capacity;
+		enemyIndex.clear();
+		footmanSlot.clear();
+		numEnemies = 0;
+	}
+
+	/**
+	 * @return true if the assignment was solved for the given turn
+	 */
+	boolean isCurrent(int turnNumber) {
+		return turn >= 0 && turn == turnNumber;
+	}
+
+	/**
+	 * @return The enemy the footman is assigned to, -1 if it has none
+	 */
+	int targetOf(int footmanId) {
+		Integer slot = footmanSlot.get(footmanId);
+		return slot == null ? -1 : enemyIds[slot / slotsPerEnemy];
+	}
+
+	/**
+	 * Assigns every footman in the tensor to an enemy, repairing the previous assignment.
+	 *
+	 * @param tensor The features of every (footman, enemy) pair on this turn
+	 * @param weights The Q-function weights
+	 * @param turnNumber The current turn
+	 */
+	void solve(FeatureTensor tensor, double[] weights, int turnNumber) {
+		int numAttackers = tensor.numAttackers();
+		int numDefenders = tensor.numDefenders();
+		turn = turnNumber;
+		if (numAttackers == 0 || numDefenders == 0) {
+			footmanSlot.clear();
+			return;
+		}
+
+		//there must be enough slots for everybody
+		if (slotsPerEnemy * numDefenders < numAttackers) {
+			resize((numAttackers + numDefenders - 1) / numDefenders);
+		}
+		ensureCapacity(numAttackers, numDefenders);
+
+		//score every pair once
+		double low = Double.POSITIVE_INFINITY;
+		double high = Double.NEGATIVE_INFINITY;
+		for (int a = 0; a < numAttackers; a++) {
+			tensor.scoreAll(a, weights, row);
+			System.arraycopy(row, 0, values, a * numDefenders, numDefenders);
+			for (int d = 0; d < numDefenders; d++) {
+				low = Math.min(low, row[d]);
+				high = Math.max(high, row[d]);
+			}
+		}
+		double epsilon = Math.max((high - low) * EPSILON_FRACTION, 1e-9);
+
+		//find the enemies in the roster, adding the ones we haven't seen
+		Arrays.fill(enemyRoster, 0, numEnemies, -1);
+		for (int d = 0; d < numDefenders; d++) {
+			int id = tensor.defenderId(d);
+			Integer e = enemyIndex.get(id);
+			if (e == null) {
+				e = addEnemy(id);
+			}
+			enemyRoster[e] = d;
+			defenderEnemy[d] = e;
+		}
+
+		//free the slots of dead enemies and dead footmen
+		for (Iterator<Map.Entry<Integer, Integer>> it = footmanSlot.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Integer, Integer> entry = it.next();
+			int slot = entry.getValue();
+			if (enemyRoster[slot / slotsPerEnemy] < 0 || tensor.attackerIndex(entry.getKey()) < 0) {
+				slotHolder[slot] = -1;
+				it.remove();
+			}
+		}
+		//free slots cost nothing, so an enemy nobody needs is never priced out
+		for (int s = 0; s < numEnemies * slotsPerEnemy; s++) {
+			if (slotHolder[s] < 0) {
+				prices[s] = 0;
+			}
+		}
+		for (int d = 0; d < numDefenders; d++) {
+			updateCheapest(d);
+		}
+
+		//keep the assignments that are still within epsilon of the best choice. Freeing a slot makes it
+		//cheaper, which can make it the best choice of a footman that was already checked, so repeat until
+		//nobody else lets go
+		boolean released = true;
+		while (released) {
+			released = false;
+			for (int a = 0; a < numAttackers; a++) {
+				Integer slot = footmanSlot.get(tensor.attackerId(a));
+				if (slot != null) {
+					int d = enemyRoster[slot / slotsPerEnemy];
+					if (values[a * numDefenders + d] - prices[slot] < bestValue(a, numDefenders) - epsilon) {
+						slotHolder[slot] = -1;
+						prices[slot] = 0;
+						footmanSlot.remove(tensor.attackerId(a));
+						updateCheapest(d);
+						released = true;
+					}
+				}
+			}
+		}
+		int numUnassigned = 0;
+		for (int a = 0; a < numAttackers; a++) {
+			if (!footmanSlot.containsKey(tensor.attackerId(a))) {
+				unassigned[numUnassigned++] = a;
+			}
+		}
+
+		//the auction, for the footmen without a target
+		while (numUnassigned > 0) {
+			int a = unassigned[--numUnassigned];
+			int offset = a * numDefenders;
+
+			//best and second best value over the cheapest slot of every enemy
+			int bestD = 0;
+			double best = Double.NEGATIVE_INFINITY;
+			double second = Double.NEGATIVE_INFINITY;
+			for (int d = 0; d < numDefenders; d++) {
+				double value = values[offset + d] - cheapestPrice[d];
+				if (value > best) {
+					second = best;
+					best = value;
+					bestD = d;
+				} else if (value > second) {
+					second = value;
+				}
+			}
+			//the other slots of the same enemy are alternatives too
+			int slot = cheapestSlot[bestD];
+			int e = slot / slotsPerEnemy;
+			for (int s = e * slotsPerEnemy; s < (e + 1) * slotsPerEnemy; s++) {
+				if (s != slot) {
+					second = Math.max(second, values[offset + bestD] - prices[s]);
+				}
+			}
+			if (second == Double.NEGATIVE_INFINITY) {
+				second = best;
+			}
+
+			prices[slot] += best - second + epsilon;
+			int previous = slotHolder[slot];
+			if (previous >= 0) {
+				footmanSlot.remove(previous);
+				unassigned[numUnassigned++] = tensor.attackerIndex(previous);
+			}
+			slotHolder[slot] = tensor.attackerId(a);
+			footmanSlot.put(slotHolder[slot], slot);
+			updateCheapest(bestD);
+		}
+	}
+
+	//starts over with the given number of slots per enemy
+	private void resize(int slots) {
+		slotsPerEnemy = slots;
+		enemyIndex.clear();
+		footmanSlot.clear();
+		numEnemies = 0;
+		prices = new double[enemyIds.length * slots];
+		slotHolder = new int[prices.length];
+	}
+
+	private void ensureCapacity(int numAttackers, int numDefenders) {
+		if (values.length < numAttackers * numDefenders) {
+			values = new double[numAttackers * numDefenders];
+		}
+		if (row.length < numDefenders) {
+			row = new double[numDefenders];
+			cheapestPrice = new double[numDefenders];
+			cheapestSlot = new int[numDefenders];
+			defenderEnemy = new int[numDefenders];
+		}
+		if (unassigned.length < numAttackers) {
+			unassigned = new int[numAttackers];
+		}
+		//every enemy in the roster may be new
+		int maxEnemies = numEnemies + numDefenders;
+		if (enemyIds.length < maxEnemies) {
+			enemyIds = Arrays.copyOf(enemyIds, maxEnemies);
+			enemyRoster = Arrays.copyOf(enemyRoster, maxEnemies);
+			prices = Arrays.copyOf(prices, maxEnemies * slotsPerEnemy);
+			slotHolder = Arrays.copyOf(slotHolder, maxEnemies * slotsPerEnemy);
+		}
+	}
+
+	private int addEnemy(int id) {
+		int e = numEnemies++;
+		enemyIds[e] = id;
+		enemyIndex.put(id, e);
+		for (int s = e * slotsPerEnemy; s < (e + 1) * slotsPerEnemy; s++) {
+			prices[s] = 0;
+			slotHolder[s] = -1;
+		}
+		return e;
+	}
+
+	private double bestValue(int a, int numDefenders) {
+		double best = Double.NEGATIVE_INFINITY;
+		int offset = a * numDefenders;
+		for (int d = 0; d < numDefenders; d++) {
+			best = Math.max(best, values[offset + d] - cheapestPrice[d]);
+		}
+		return best;
+	}
+
+	//finds the cheapest slot of the enemy at roster position d
+	private void updateCheapest(int d) {
+		int e = defenderEnemy[d];
+		int cheapest = e * slotsPerEnemy;
+		for (int s = cheapest + 1; s < (e + 1) * slotsPerEnemy; s++) {
+			if (prices[s] < prices[cheapest]) {
+				cheapest = s;
+			}
+		}
+		cheapestSlot[d] = cheapest;
+		cheapestPrice[d] = prices[cheapest];
+	}
+}
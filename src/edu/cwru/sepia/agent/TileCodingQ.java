@@ -0,0 +1,172 @@
+package edu.cwru.sepia.agent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A Q-function that is a sum of weights of tiles, looked up by the feature vector in several tilings.
+ *
+ * Each tiling cuts every feature into tiles of the same width, and is shifted against the others by a
+ * different fraction of a tile along each feature (1, 3, 5, ... times tileWidth / numTilings, so the tilings
+ * don't all line up along the diagonal). A feature vector falls into one tile of each tiling. The tiles are
+ * hashed into a table of numTiles weights, so the features don't need known ranges, at the price of
+ * collisions when the table is small.
+ *
+ * Our features only take integer values (the rank, the integer HP and friendly ratios, and +-1), so with tiles
+ * 1 wide every tiling would cut them the same way, one tile per value, and the tilings wouldn't generalize
+ * between values at all. Tiles are DEFAULT_WIDTH = 2 wide by default instead: neighbouring values then share a
+ * tile in half of the tilings, values 2 apart (like the two values of attackingMe) never do. The features'
+ * bounds (PairFeature.min and max) depend on the turn, so they can't be used to scale the features up front.
+ *
+ * Each of the numTilings active weights moves by step / numTilings on an update, so a learning rate means
+ * about the same as for the linear Q-function. The gradient doesn't depend on the weights, so updateAll is
+ * the same as updating the vectors one after the other.
+ */
+final class TileCodingQ implements QFunction {
+
+	static final String KIND = "tiles";
+	static final double DEFAULT_WIDTH = 2;
+
+	private final int numInputs;
+	private final int numTilings;
+	private final int numTiles;
+	private final double tileWidth;
+	private final double[] weights;
+
+	//the shift of each tiling along each input, in tiles, [tiling][input]
+	private final double[] shifts;
+	//the active tile of each tiling for the last vector looked up
+	private final int[] active;
+
+	/**
+	 * Creates a tile coder with all weights 0.
+	 *
+	 * @param numInputs The length of a feature vector
+	 * @param numTilings The number of tilings
+	 * @param numTiles The size of the weight table
+	 * @param tileWidth The width of a tile along every feature
+	 */
+	TileCodingQ(int numInputs, int numTilings, int numTiles, double tileWidth) {
+		if (numInputs <= 0 || numTilings <= 0 || numTiles <= 0 || !(tileWidth > 0)) {
+			throw new IllegalArgumentException("numInputs, numTilings, numTiles and tileWidth must be positive");
+		}
+		this.numInputs = numInputs;
+		this.numTilings = numTilings;
+		this.numTiles = numTiles;
+		this.tileWidth = tileWidth;
+		weights = new double[numTiles];
+		shifts = new double[numTilings * numInputs];
+		for (int t = 0; t < numTilings; t++) {
+			for (int i = 0; i < numInputs; i++) {
+				shifts[t * numInputs + i] = (double) (t * (2 * i + 1) % numTilings) / numTilings;
+			}
+		}
+		active = new int[numTilings];
+	}
+
+	@Override
+	public String kind() {
+		return KIND;
+	}
+
+	@Override
+	public String describe() {
+		return KIND + " " + numInputs + "x" + numTilings + " in " + numTiles + " width " + tileWidth;
+	}
+
+	@Override
+	public int numInputs() {
+		return numInputs;
+	}
+
+	@Override
+	public double score(double[] features, int offset) {
+		findTiles(features, offset);
+		double q = 0;
+		for (int t = 0; t < numTilings; t++) {
+			q += weights[active[t]];
+		}
+		return q;
+	}
+
+	@Override
+	public void scoreAll(double[] features, int offset, int count, double[] scores) {
+		for (int c = 0; c < count; c++, offset += numInputs) {
+			scores[c] = score(features, offset);
+		}
+	}
+
+	@Override
+	public void update(double[] features, int offset, double step) {
+		findTiles(features, offset);
+		double tileStep = step / numTilings;
+		for (int t = 0; t < numTilings; t++) {
+			weights[active[t]] += tileStep;
+		}
+	}
+
+	@Override
+	public void updateAll(double[] features, int[] offsets, double[] steps, int count) {
+		for (int c = 0; c < count; c++) {
+			update(features, offsets[c], steps[c]);
+		}
+	}
+
+	/**
+	 * Puts the table index of the tile the vector falls into in each tiling into active.
+	 */
+	private void findTiles(double[] features, int offset) {
+		double scale = 1 / tileWidth;
+		for (int t = 0, s = 0; t < numTilings; t++) {
+			long hash = t;
+			for (int i = 0; i < numInputs; i++, s++) {
+				//floor, without the call
+				double position = features[offset + i] * scale + shifts[s];
+				long tile = (long) position;
+				if (position < tile) {
+					tile--;
+				}
+				hash = hash * 0x9E3779B97F4A7C15L + tile;
+			}
+			//the finalizer of MurmurHash3, so neighbouring tiles don't end up next to each other
+			hash ^= hash >>> 33;
+			hash *= 0xFF51AFD7ED558CCDL;
+			hash ^= hash >>> 33;
+			active[t] = (int) ((hash >>> 1) % numTiles);
+		}
+	}
+
+	@Override
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(numInputs);
+		out.writeInt(numTilings);
+		out.writeInt(numTiles);
+		out.writeDouble(tileWidth);
+		for (double weight : weights) {
+			out.writeDouble(weight);
+		}
+	}
+
+	/**
+	 * Reads a tile coder written by write.
+	 *
+	 * @throws IOException If the stream can't be read or doesn't hold a valid shape
+	 */
+	static TileCodingQ read(DataInputStream in) throws IOException {
+		int numInputs = in.readInt();
+		int numTilings = in.readInt();
+		int numTiles = in.readInt();
+		double tileWidth = in.readDouble();
+		TileCodingQ q;
+		try {
+			q = new TileCodingQ(numInputs, numTilings, numTiles, tileWidth);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Invalid tile coding shape: " + ex.getMessage());
+		}
+		for (int w = 0; w < numTiles; w++) {
+			q.weights[w] = in.readDouble();
+		}
+		return q;
+	}
+}
@@ -0,0 +1,203 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Everything that happened to each of our footmen on the last turn, indexed by roster slot.
+ *
+ * Built once per turn with a single pass over the turn's commands, damage logs, death logs and command
+ * feedback, so the rewards of all footmen, and which of them need a new target, can be read off without
+ * rescanning the logs for each one. Like UnitRoster, the events are kept in parallel primitive arrays and
+ * BitSets that are reset rather than reallocated between turns.
+ */
+final class TurnEventIndex {
+
+	//the turn the index was built for, -1 when it needs to be rebuilt
+	private int turn = -1;
+
+	//per slot of our footmen
+	private int[] damageDealt = new int[0];
+	private int[] damageTaken = new int[0];
+	private int[] killsCredited = new int[0];
+	private int[] attackTargets = new int[0];
+	private final BitSet died = new BitSet();
+	private final BitSet targetChanged = new BitSet();
+	//its action completed or failed on the last turn, rather than still being in progress
+	private final BitSet actionEnded = new BitSet();
+	//it was hit by an enemy that had not hit it before this episode
+	private final BitSet newAttacker = new BitSet();
+	//the enemy slots that have hit each of our slots so far this episode
+	private BitSet[] attackers = new BitSet[0];
+
+	//per enemy slot
+	private final BitSet deadEnemies = new BitSet();
+
+	/**
+	 * Marks the index as stale and forgets the attackers of the previous episode.
+	 */
+	void invalidate() {
+		turn = -1;
+		for (BitSet slotAttackers : attackers) {
+			slotAttackers.clear();
+		}
+	}
+
+	/**
+	 * @return true if the index was built for the given turn and has not been invalidated since
+	 */
+	boolean isCurrent(int turnNumber) {
+		return turn >= 0 && turn == turnNumber;
+	}
+
+	/**
+	 * Indexes the events of the last turn.
+	 *
+	 * Kill credit goes to the first footman, in roster order, whose attack was targeting the enemy that
+	 * died. Each enemy can only be credited once per episode, which is tracked by its roster.
+	 *
+	 * @param view The current turn of the battle
+	 * @param playernum Our player number
+	 * @param myFootmen Our footmen, including those that died on the last turn, with the targets they had
+	 *                  before the last commands as their previous targets
+	 * @param enemyFootmen The enemy footmen, their kills are marked as credited
+	 */
+	void build(BattleView view, int playernum, UnitRoster myFootmen, UnitRoster enemyFootmen) {
+
+		reset(myFootmen.numSlots());
+
+		turn = view.getTurnNumber();
+		//nothing has happened yet on the first turn
+		if (turn == 0) {
+			return;
+		}
+		TurnLog lastTurn = view.getLastTurn();
+
+		//a new action is only started if the target is different from the one before
+		for (int i = 0; i < lastTurn.numCommands(); i++) {
+			if (lastTurn.commandPlayer(i) != playernum) {
+				continue;
+			}
+			int slot = myFootmen.slotOf(lastTurn.commandUnit(i));
+			//unit IDs are never negative, so a footman without a previous target always changes it
+			if (slot >= 0 && myFootmen.previousTarget(slot) != lastTurn.commandTarget(i)) {
+				targetChanged.set(slot);
+			}
+		}
+
+		for (int i = 0; i < lastTurn.numDamages(); i++) {
+			int defenderSlot = myFootmen.slotOf(lastTurn.damageDefender(i));
+			if (defenderSlot >= 0) {
+				damageTaken[defenderSlot] += lastTurn.damageAmount(i);
+				int attackerSlot = enemyFootmen.slotOf(lastTurn.damageAttacker(i));
+				if (attackerSlot >= 0 && !attackers[defenderSlot].get(attackerSlot)) {
+					attackers[defenderSlot].set(attackerSlot);
+					newAttacker.set(defenderSlot);
+				}
+			}
+			int attackerSlot = myFootmen.slotOf(lastTurn.damageAttacker(i));
+			if (attackerSlot >= 0) {
+				damageDealt[attackerSlot] += lastTurn.damageAmount(i);
+			}
+		}
+
+		for (int i = 0; i < lastTurn.numDeaths(); i++) {
+			if (lastTurn.deadController(i) == RLAgent.ENEMY_PLAYERNUM) {
+				int enemySlot = enemyFootmen.slotOf(lastTurn.deadUnit(i));
+				if (enemySlot >= 0) {
+					deadEnemies.set(enemySlot);
+				}
+			} else {
+				int slot = myFootmen.slotOf(lastTurn.deadUnit(i));
+				if (slot >= 0) {
+					died.set(slot);
+				}
+			}
+		}
+
+		for (int i = 0; i < lastTurn.numFeedback(); i++) {
+			if (lastTurn.feedbackPlayer(i) != playernum) {
+				continue;
+			}
+			int slot = myFootmen.slotOf(lastTurn.feedbackUnit(i));
+			if (slot < 0) {
+				continue;
+			}
+			attackTargets[slot] = lastTurn.feedbackTarget(i);
+			if (lastTurn.feedbackEnded(i)) {
+				actionEnded.set(slot);
+			}
+		}
+
+		if (!deadEnemies.isEmpty()) {
+			for (int slot = myFootmen.nextAlive(0); slot >= 0; slot = myFootmen.nextAlive(slot + 1)) {
+				int enemySlot = enemyFootmen.slotOf(attackTargets[slot]);
+				if (enemySlot >= 0 && deadEnemies.get(enemySlot) && enemyFootmen.creditKill(enemySlot)) {
+					killsCredited[slot]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Clears the events of the previous turn, growing the arrays to the given number of our slots.
+	 */
+	private void reset(int slots) {
+		if (slots > damageDealt.length) {
+			int capacity = Math.max(2 * damageDealt.length, Math.max(slots, 16));
+			damageDealt = new int[capacity];
+			damageTaken = new int[capacity];
+			killsCredited = new int[capacity];
+			attackTargets = new int[capacity];
+			int grown = attackers.length;
+			attackers = Arrays.copyOf(attackers, capacity);
+			for (int slot = grown; slot < capacity; slot++) {
+				attackers[slot] = new BitSet();
+			}
+		}
+		Arrays.fill(damageDealt, 0);
+		Arrays.fill(damageTaken, 0);
+		Arrays.fill(killsCredited, 0);
+		Arrays.fill(attackTargets, UnitRoster.NO_TARGET);
+		died.clear();
+		targetChanged.clear();
+		actionEnded.clear();
+		newAttacker.clear();
+		deadEnemies.clear();
+	}
+
+	int damageDealt(int slot) {
+		return damageDealt[slot];
+	}
+
+	int damageTaken(int slot) {
+		return damageTaken[slot];
+	}
+
+	int killsCredited(int slot) {
+		return killsCredited[slot];
+	}
+
+	boolean died(int slot) {
+		return died.get(slot);
+	}
+
+	boolean targetChanged(int slot) {
+		return targetChanged.get(slot);
+	}
+
+	boolean actionEnded(int slot) {
+		return actionEnded.get(slot);
+	}
+
+	boolean newAttacker(int slot) {
+		return newAttacker.get(slot);
+	}
+
+	/**
+	 * @return true if the enemy in the given slot died on the last turn, false for -1
+	 */
+	boolean enemyDied(int enemySlot) {
+		return enemySlot >= 0 && deadEnemies.get(enemySlot);
+	}
+}
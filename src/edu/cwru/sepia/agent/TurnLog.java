@@ -0,0 +1,174 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.ActionFeedback;
+
+import java.util.Arrays;
+
+/**
+ * What happened on one turn: the commands issued, the damage dealt, the units that died and how every
+ * unit's action went, in flat arrays.
+ *
+ * This is the part of SEPIA's HistoryView the agent reads. It is filled from a HistoryView by
+ * SepiaBattleView and directly by CombatSimulator, and reused between turns.
+ */
+final class TurnLog {
+
+	private int numCommands;
+	private int[] commandPlayers = new int[0];
+	private int[] commandUnits = new int[0];
+	private int[] commandTargets = new int[0];
+
+	private int numDamages;
+	private int[] damageAttackers = new int[0];
+	private int[] damageDefenders = new int[0];
+	private int[] damageAmounts = new int[0];
+
+	private int numDeaths;
+	private int[] deadUnits = new int[0];
+	private int[] deadControllers = new int[0];
+
+	private int numFeedback;
+	private int[] feedbackPlayers = new int[0];
+	private int[] feedbackUnits = new int[0];
+	private int[] feedbackTargets = new int[0];
+	private ActionFeedback[] feedback = new ActionFeedback[0];
+
+	/**
+	 * Empties the log for a new turn.
+	 */
+	void clear() {
+		numCommands = 0;
+		numDamages = 0;
+		numDeaths = 0;
+		numFeedback = 0;
+	}
+
+	/**
+	 * Records a unit being commanded to attack a target.
+	 */
+	void addCommand(int player, int unitId, int targetId) {
+		if (numCommands == commandUnits.length) {
+			int capacity = Math.max(2 * numCommands, 16);
+			commandPlayers = Arrays.copyOf(commandPlayers, capacity);
+			commandUnits = Arrays.copyOf(commandUnits, capacity);
+			commandTargets = Arrays.copyOf(commandTargets, capacity);
+		}
+		commandPlayers[numCommands] = player;
+		commandUnits[numCommands] = unitId;
+		commandTargets[numCommands] = targetId;
+		numCommands++;
+	}
+
+	void addDamage(int attackerId, int defenderId, int damage) {
+		if (numDamages == damageAttackers.length) {
+			int capacity = Math.max(2 * numDamages, 16);
+			damageAttackers = Arrays.copyOf(damageAttackers, capacity);
+			damageDefenders = Arrays.copyOf(damageDefenders, capacity);
+			damageAmounts = Arrays.copyOf(damageAmounts, capacity);
+		}
+		damageAttackers[numDamages] = attackerId;
+		damageDefenders[numDamages] = defenderId;
+		damageAmounts[numDamages] = damage;
+		numDamages++;
+	}
+
+	void addDeath(int unitId, int controller) {
+		if (numDeaths == deadUnits.length) {
+			int capacity = Math.max(2 * numDeaths, 16);
+			deadUnits = Arrays.copyOf(deadUnits, capacity);
+			deadControllers = Arrays.copyOf(deadControllers, capacity);
+		}
+		deadUnits[numDeaths] = unitId;
+		deadControllers[numDeaths] = controller;
+		numDeaths++;
+	}
+
+	/**
+	 * Records how the attack a unit was carrying out went.
+	 */
+	void addFeedback(int player, int unitId, int targetId, ActionFeedback result) {
+		if (numFeedback == feedbackUnits.length) {
+			int capacity = Math.max(2 * numFeedback, 16);
+			feedbackPlayers = Arrays.copyOf(feedbackPlayers, capacity);
+			feedbackUnits = Arrays.copyOf(feedbackUnits, capacity);
+			feedbackTargets = Arrays.copyOf(feedbackTargets, capacity);
+			feedback = Arrays.copyOf(feedback, capacity);
+		}
+		feedbackPlayers[numFeedback] = player;
+		feedbackUnits[numFeedback] = unitId;
+		feedbackTargets[numFeedback] = targetId;
+		feedback[numFeedback] = result;
+		numFeedback++;
+	}
+
+	int numCommands() {
+		return numCommands;
+	}
+
+	int commandPlayer(int i) {
+		return commandPlayers[i];
+	}
+
+	int commandUnit(int i) {
+		return commandUnits[i];
+	}
+
+	int commandTarget(int i) {
+		return commandTargets[i];
+	}
+
+	int numDamages() {
+		return numDamages;
+	}
+
+	int damageAttacker(int i) {
+		return damageAttackers[i];
+	}
+
+	int damageDefender(int i) {
+		return damageDefenders[i];
+	}
+
+	int damageAmount(int i) {
+		return damageAmounts[i];
+	}
+
+	int numDeaths() {
+		return numDeaths;
+	}
+
+	int deadUnit(int i) {
+		return deadUnits[i];
+	}
+
+	int deadController(int i) {
+		return deadControllers[i];
+	}
+
+	int numFeedback() {
+		return numFeedback;
+	}
+
+	int feedbackPlayer(int i) {
+		return feedbackPlayers[i];
+	}
+
+	int feedbackUnit(int i) {
+		return feedbackUnits[i];
+	}
+
+	int feedbackTarget(int i) {
+		return feedbackTargets[i];
+	}
+
+	/**
+	 * @return true unless the unit's action is still in progress
+	 */
+	boolean feedbackEnded(int i) {
+		return feedback[i] != ActionFeedback.INCOMPLETE;
+	}
+
+	ActionFeedback feedback(int i) {
+		return feedback[i];
+	}
+}
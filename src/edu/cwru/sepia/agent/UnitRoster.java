@@ -0,0 +1,204 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The units of one side for an episode, each in a dense slot with its state in parallel primitive arrays.
+ *
+ * Slots are handed out in the order units are added and never reused within an episode, so iterating
+ * over the live slots visits the units in roster order. SEPIA unit IDs are small non-negative integers, so
+ * the slot of a unit is found with a direct lookup in an array indexed by ID. Whether a unit is alive is
+ * a bit in a BitSet, which makes removing a dead unit O(1).
+ */
+final class UnitRoster {
+
+	static final int NO_TARGET = -1;
+
+	//slot + 1 of every unit ID, 0 if the unit is not in the roster
+	private int[] slotOfId = new int[0];
+	private int numSlots;
+	private final BitSet alive = new BitSet();
+	private final BitSet killCredited = new BitSet();
+
+	private int[] ids = new int[0];
+	private double[] rewards = new double[0];
+	private int[] targets = new int[0];
+	private int[] previousTargets = new int[0];
+	private int[] hp = new int[0];
+	private int[] x = new int[0];
+	private int[] y = new int[0];
+
+	/**
+	 * Empties the roster for a new episode.
+	 */
+	void clear() {
+		Arrays.fill(slotOfId, 0);
+		numSlots = 0;
+		alive.clear();
+		killCredited.clear();
+	}
+
+	/**
+	 * Adds a live unit with no reward and no target.
+	 *
+	 * @return The unit's slot
+	 */
+	int add(int unitId) {
+		if (unitId >= slotOfId.length) {
+			slotOfId = Arrays.copyOf(slotOfId, Math.max(2 * slotOfId.length, unitId + 1));
+		}
+		if (numSlots == ids.length) {
+			int capacity = Math.max(2 * numSlots, 16);
+			ids = Arrays.copyOf(ids, capacity);
+			rewards = Arrays.copyOf(rewards, capacity);
+			targets = Arrays.copyOf(targets, capacity);
+			previousTargets = Arrays.copyOf(previousTargets, capacity);
+			hp = Arrays.copyOf(hp, capacity);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+		}
+		int slot = numSlots++;
+		slotOfId[unitId] = slot + 1;
+		ids[slot] = unitId;
+		rewards[slot] = 0;
+		targets[slot] = NO_TARGET;
+		previousTargets[slot] = NO_TARGET;
+		alive.set(slot);
+		return slot;
+	}
+
+	/**
+	 * @return The slot of the unit, -1 if it was never in the roster this episode
+	 */
+	int slotOf(int unitId) {
+		return unitId >= 0 && unitId < slotOfId.length ? slotOfId[unitId] - 1 : -1;
+	}
+
+	/**
+	 * @return The number of slots handed out this episode, live or dead
+	 */
+	int numSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * @return The number of live units
+	 */
+	int size() {
+		return alive.cardinality();
+	}
+
+	boolean isAlive(int slot) {
+		return alive.get(slot);
+	}
+
+	void kill(int slot) {
+		alive.clear(slot);
+	}
+
+	/**
+	 * @return The first live slot at or after the given one, -1 if there is none
+	 */
+	int nextAlive(int slot) {
+		return alive.nextSetBit(slot);
+	}
+
+	/**
+	 * @return The slot of the n-th live unit in roster order, -1 if there are not that many
+	 */
+	int nthAlive(int n) {
+		int slot = alive.nextSetBit(0);
+		for (int i = 0; i < n && slot >= 0; i++) {
+			slot = alive.nextSetBit(slot + 1);
+		}
+		return slot;
+	}
+
+	int id(int slot) {
+		return ids[slot];
+	}
+
+	double reward(int slot) {
+		return rewards[slot];
+	}
+
+	void addReward(int slot, double reward) {
+		rewards[slot] += reward;
+	}
+
+	/**
+	 * @return The sum of the rewards of every unit that was in the roster this episode, dead or alive
+	 */
+	double totalReward() {
+		double total = 0;
+		for (int slot = 0; slot < numSlots; slot++) {
+			total += rewards[slot];
+		}
+		return total;
+	}
+
+	/**
+	 * @return The enemy the unit was last commanded to attack, NO_TARGET if none
+	 */
+	int target(int slot) {
+		return targets[slot];
+	}
+
+	/**
+	 * @return The target the unit had before its last command, NO_TARGET if none
+	 */
+	int previousTarget(int slot) {
+		return previousTargets[slot];
+	}
+
+	/**
+	 * Remembers every unit's current target as its previous one, before a new round of commands.
+	 */
+	void rememberTargets() {
+		System.arraycopy(targets, 0, previousTargets, 0, numSlots);
+	}
+
+	void setTarget(int slot, int target) {
+		targets[slot] = target;
+	}
+
+	/**
+	 * Marks the unit's kill as claimed.
+	 *
+	 * @return false if it was already claimed
+	 */
+	boolean creditKill(int slot) {
+		if (killCredited.get(slot)) {
+			return false;
+		}
+		killCredited.set(slot);
+		return true;
+	}
+
+	int hp(int slot) {
+		return hp[slot];
+	}
+
+	int x(int slot) {
+		return x[slot];
+	}
+
+	int y(int slot) {
+		return y[slot];
+	}
+
+	/**
+	 * Reads the HP and position of every live unit from the battle.
+	 */
+	void refresh(BattleView view) {
+		for (int slot = alive.nextSetBit(0); slot >= 0; slot = alive.nextSetBit(slot + 1)) {
+			//units that died on the last turn are removed after the rewards are counted
+			if (view.hasUnit(ids[slot])) {
+				hp[slot] = view.getHP(ids[slot]);
+				x[slot] = view.getXPosition(ids[slot]);
+				y[slot] = view.getYPosition(ids[slot]);
+			}
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of the weights after every episode, memory mapped for O(1) access to any
+ * past weight vector.
+ *
+ * The file starts with a header holding the number of weights and the number of committed records,
+ * followed by fixed size records:
+ *
+ * episode (long), flags (int), CRC32 of the rest of the record (int), score (double), weights (double each)
+ *
+ * Appends copy the weights and write them on a background thread, so the game thread never waits for the
+ * disk. A record becomes visible by bumping the committed count in the header after the record itself
+ * has been written. When a history is opened, trailing records that fail their checksum (e.g. after a
+ * crash) are dropped. A history that is still open when the process ends is closed by a shutdown hook,
+ * which waits for the queued appends, since the background thread doesn't keep the process alive.
+ *
+ * Usage: WeightHistory file list
+ *        WeightHistory file export index weightsFile
+ *
+ * export writes one of the recorded weight vectors in the text format of RLAgent.saveWeights, so it can
+ * be loaded with RLAgent.loadWeights to roll back to it.
+ */
+final class WeightHistory implements Closeable {
+
+	static final String DEFAULT_PATH = "agent_weights/weights.hist";
+
+	//flag set on records written at the end of an evaluation (frozen) episode
+	static final int EVALUATION = 1;
+
+	private static final int MAGIC = 0x57484953; // "WHIS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int COUNT_OFFSET = 16;
+	//episode, flags, checksum and score
+	private static final int RECORD_HEADER_SIZE = 24;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int numWeights;
+	private final int recordSize;
+	private final ExecutorService writer;
+
+	private final Thread shutdownHook = new Thread("weight-history-close") {
+		@Override
+		public void run() {
+			try {
+				close();
+			} catch (IOException ex) {
+				System.err.println("Failed to close weight history. Reason: " + ex.getMessage());
+			}
+		}
+	};
+	private boolean closed;
+
+	private volatile MappedByteBuffer buffer;
+	private long capacity;
+	//only the writer thread changes the committed count once the history is open
+	private volatile long size;
+
+	private WeightHistory(RandomAccessFile file, int numWeights) {
+		this.file = file;
+		this.channel = file.getChannel();
+		this.numWeights = numWeights;
+		this.recordSize = RECORD_HEADER_SIZE + 8 * numWeights;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "weight-history");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Opens a weight history, creating it if it doesn't exist yet.
+	 *
+	 * @param path The history file
+	 * @param numWeights The length of the weight vectors, must match the file if it exists
+	 * @return The opened history
+	 * @throws IOException If the file can't be opened or was written with a different number of weights
+	 */
+	static WeightHistory open(File path, int numWeights) throws IOException {
+		path.getAbsoluteFile().getParentFile().mkdirs();
+		WeightHistory history = new WeightHistory(new RandomAccessFile(path, "rw"), numWeights);
+		try {
+			history.load();
+		} catch (IOException ex) {
+			history.close();
+			throw ex;
+		}
+		Runtime.getRuntime().addShutdownHook(history.shutdownHook);
+		return history;
+	}
+
+	/**
+	 * Opens an existing weight history with the number of weights it was written with, e.g. to look at a
+	 * history of any feature set.
+	 *
+	 * @param path The history file
+	 * @return The opened history
+	 * @throws IOException If the file doesn't exist, can't be opened or isn't a weight history
+	 */
+	static WeightHistory open(File path) throws IOException {
+		if (!path.isFile()) {
+			throw new FileNotFoundException(path.toString());
+		}
+		int numWeights;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+			if (path.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a weight history file");
+			}
+			numWeights = in.readInt();
+		}
+		return open(path, numWeights);
+	}
+
+	private void load() throws IOException {
+		boolean created = channel.size() == 0;
+		map(Math.max(channel.size(), HEADER_SIZE + (long) INITIAL_CAPACITY * recordSize));
+
+		if (created) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, numWeights);
+			buffer.putLong(COUNT_OFFSET, 0);
+			size = 0;
+			return;
+		}
+
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a weight history file");
+		}
+		if (buffer.getInt(8) != numWeights) {
+			throw new IOException("Weight history holds " + buffer.getInt(8) + " weights, expected " + numWeights);
+		}
+
+		//drop records that were not completely written
+		long count = Math.min(buffer.getLong(COUNT_OFFSET), (capacity - HEADER_SIZE) / recordSize);
+		while (count > 0 && checksum(count - 1) != buffer.getInt(offset(count - 1) + 12)) {
+			count--;
+		}
+		buffer.putLong(COUNT_OFFSET, count);
+		size = count;
+	}
+
+	/**
+	 * Queues a weight vector to be appended. Returns immediately, the weights are copied first.
+	 *
+	 * @param episode The number of episodes played when the weights were recorded
+	 * @param flags EVALUATION if the episode was an evaluation episode, 0 otherwise
+	 * @param score The cumulative reward of the episode
+	 * @param weights The weights after the episode
+	 */
+	void append(final long episode, final int flags, final double score, double[] weights) {
+		if (weights.length != numWeights) {
+			throw new IllegalArgumentException("Expected " + numWeights + " weights, got " + weights.length);
+		}
+		final double[] copy = weights.clone();
+		try {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						write(episode, flags, score, copy);
+					} catch (IOException ex) {
+						System.err.println("Failed to append weights to history. Reason: " + ex.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			//the shutdown hook closed the history while the episode was ending
+		}
+	}
+
+	private void write(long episode, int flags, double score, double[] weights) throws IOException {
+		long index = size;
+		if (offset(index + 1) > capacity) {
+			map(2 * capacity);
+		}
+
+		int offset = offset(index);
+		buffer.putLong(offset, episode);
+		buffer.putInt(offset + 8, flags);
+		buffer.putDouble(offset + 16, score);
+		for (int i = 0; i < numWeights; i++) {
+			buffer.putDouble(offset + RECORD_HEADER_SIZE + 8 * i, weights[i]);
+		}
+		buffer.putInt(offset + 12, checksum(index));
+
+		//publish the record only once it is complete
+		buffer.putLong(COUNT_OFFSET, index + 1);
+		size = index + 1;
+	}
+
+	/**
+	 * @return The number of weight vectors in the history
+	 */
+	long size() {
+		return size;
+	}
+
+	long getEpisode(long index) {
+		return buffer().getLong(checkedOffset(index));
+	}
+
+	int getFlags(long index) {
+		return buffer().getInt(checkedOffset(index) + 8);
+	}
+
+	double getScore(long index) {
+		return buffer().getDouble(checkedOffset(index) + 16);
+	}
+
+	/**
+	 * @return A copy of the weight vector at the given index
+	 */
+	double[] getWeights(long index) {
+		ByteBuffer view = buffer();
+		int offset = checkedOffset(index);
+		double[] weights = new double[numWeights];
+		for (int i = 0; i < numWeights; i++) {
+			weights[i] = view.getDouble(offset + RECORD_HEADER_SIZE + 8 * i);
+		}
+		return weights;
+	}
+
+	/**
+	 * Blocks until every queued append has been written.
+	 */
+	void flush() {
+		try {
+			writer.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (Exception ex) {
+			System.err.println("Failed to flush weight history. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Writes every queued append and forces the history to disk.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException ex) {
+			//the process is ending and this is the hook closing the history
+		}
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (buffer != null) {
+			buffer.force();
+		}
+		file.close();
+	}
+
+	private void map(long newCapacity) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+		capacity = newCapacity;
+	}
+
+	//the writer thread may replace the mapping, so readers take a private view of the current one
+	private ByteBuffer buffer() {
+		return buffer.duplicate();
+	}
+
+	private int offset(long index) {
+		long offset = HEADER_SIZE + index * recordSize;
+		if (offset > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Weight history is full");
+		}
+		return (int) offset;
+	}
+
+	private int checkedOffset(long index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("No record " + index + ", history holds " + size);
+		}
+		return offset(index);
+	}
+
+	//CRC32 of the record without its checksum field
+	private int checksum(long index) {
+		ByteBuffer view = buffer();
+		int offset = offset(index);
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < recordSize; i++) {
+			if (i < 12 || i >= 16) {
+				crc.update(view.get(offset + i));
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: WeightHistory file list | WeightHistory file export index weightsFile");
+			System.exit(1);
+		}
+		WeightHistory history = open(new File(args[0]));
+		try {
+			if (args[1].equals("list")) {
+				System.out.println("index     episode   mode     score");
+				for (long i = 0; i < history.size(); i++) {
+					String mode = (history.getFlags(i) & EVALUATION) != 0 ? "eval " : "learn";
+					System.out.println(String.format("%-9d %-9d %s %9.2f", i, history.getEpisode(i), mode,
+							history.getScore(i)));
+				}
+			} else if (args[1].equals("export") && args.length >= 4) {
+				//same format as RLAgent.saveWeights
+				BufferedWriter writer = new BufferedWriter(new FileWriter(args[3], false));
+				try {
+					for (double weight : history.getWeights(Long.parseLong(args[2]))) {
+						writer.write(String.format("%f\n", weight));
+					}
+				} finally {
+					writer.close();
+				}
+			} else {
+				System.err.println("Unknown command: " + args[1]);
+			}
+		} finally {
+			history.close();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Shares Q-function weights between several agents that are learning at the same time.
+ *
+ * An agent that has a WeightSync hands in what it learned at the end of every episode and continues
+ * with whatever the shared weights are at that point. Arrays returned by a WeightSync are shared and
+ * must not be modified.
+ */
+interface WeightSync {
+
+	/**
+	 * @return The latest shared weights
+	 */
+	double[] latest();
+
+	/**
+	 * Hands in what an agent learned since its last exchange.
+	 *
+	 * @param baseWeights The weights the agent got from its last exchange (or from latest)
+	 * @param learnedWeights The agent's weights now
+	 * @return The latest shared weights, which the agent should continue learning from
+	 */
+	double[] exchange(double[] baseWeights, double[] learnedWeights);
+}
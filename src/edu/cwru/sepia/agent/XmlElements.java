@@ -0,0 +1,49 @@
+package edu.cwru.sepia.agent;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for reading SEPIA's XML files (configurations, maps and state saves) with the DOM.
+ */
+final class XmlElements {
+
+	private XmlElements() {
+	}
+
+	/**
+	 * @return The direct element children of parent with the given tag, or all of them if tagName is null
+	 */
+	static List<Element> children(Element parent, String tagName) {
+		List<Element> children = new ArrayList<>();
+		NodeList nodes = parent.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i++) {
+			Node node = nodes.item(i);
+			if (node.getNodeType() == Node.ELEMENT_NODE &&
+					(tagName == null || ((Element) node).getTagName().equals(tagName))) {
+				children.add((Element) node);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * @return The first direct child of parent with the given tag, or null if there is none
+	 */
+	static Element child(Element parent, String tagName) {
+		List<Element> children = children(parent, tagName);
+		return children.isEmpty() ? null : children.get(0);
+	}
+
+	/**
+	 * @return The trimmed text of the first direct child of parent with the given tag, or null if there is none
+	 */
+	static String text(Element parent, String tagName) {
+		Element child = child(parent, tagName);
+		return child == null ? null : child.getTextContent().trim();
+	}
+}